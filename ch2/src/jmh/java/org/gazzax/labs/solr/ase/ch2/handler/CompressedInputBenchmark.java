@@ -0,0 +1,224 @@
+package org.gazzax.labs.solr.ase.ch2.handler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Ingest time of a gzip'd flat file: decompressed to disk and then loaded (the previous workflow), against
+ * decompressed on the fly by {@link FlatDataLoader} (streaming). Loading an already decompressed file is the baseline.
+ *
+ * The flat data is parsed in bytes mode, like {@link FlatDataLoader} does: a plain file is memory-mapped, a compressed
+ * stream is read through a reusable buffer. Documents are handed to a {@link Blackhole} instead of the update chain.
+ *
+ * <pre>
+ * mvn -Pjmh package &amp;&amp; java -jar target/benchmarks.jar CompressedInputBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CompressedInputBenchmark {
+	@Param({"100000"})
+	int records;
+
+	private File plainFile;
+	private File compressedFile;
+	private FlatRecordLayout layout;
+	private FlatDataLoader loader;
+
+	@Setup
+	public void setUp() throws IOException {
+		layout = FlatRecordLayout.defaultLayout();
+		loader = new FlatDataLoader(layout, null, 0, null, null);
+		plainFile = File.createTempFile("flat-records", ".txt");
+		compressedFile = File.createTempFile("flat-records", ".txt.gz");
+
+		final Random random = new Random(31);
+		final Writer plain = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(plainFile), StandardCharsets.UTF_8));
+		final Writer compressed = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(compressedFile)), StandardCharsets.UTF_8));
+		try {
+			for (int i = 0; i < records; i++) {
+				final String record = String.format(
+						Locale.ROOT,
+						"%08d%-13d%-44s%-42s\n",
+						i,
+						9780000000000L + random.nextInt(1000000),
+						"A Title number " + random.nextInt(100000),
+						"Some Author " + random.nextInt(1000));
+				plain.write(record);
+				compressed.write(record);
+			}
+		} finally {
+			plain.close();
+			compressed.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		plainFile.delete();
+		compressedFile.delete();
+	}
+
+	/**
+	 * Baseline: the input is already decompressed, so it is memory-mapped.
+	 */
+	@Benchmark
+	public int plain(final Blackhole blackhole) throws IOException {
+		return parseMapped(plainFile, blackhole);
+	}
+
+	/**
+	 * The previous workflow: the input is decompressed to a temporary file, which is then memory-mapped.
+	 */
+	@Benchmark
+	public int decompressToDiskThenLoad(final Blackhole blackhole) throws IOException {
+		final File decompressed = File.createTempFile("flat-records", ".txt");
+		try {
+			final InputStream input = new GZIPInputStream(new FileInputStream(compressedFile), FlatDataLoader.READ_BUFFER_SIZE);
+			final OutputStream output = new FileOutputStream(decompressed);
+			try {
+				final byte [] buffer = new byte[FlatDataLoader.READ_BUFFER_SIZE];
+				int read;
+				while ((read = input.read(buffer)) != -1) {
+					output.write(buffer, 0, read);
+				}
+			} finally {
+				input.close();
+				output.close();
+			}
+			return parseMapped(decompressed, blackhole);
+		} finally {
+			decompressed.delete();
+		}
+	}
+
+	/**
+	 * Streaming: the compressed input is detected and decompressed on the fly, while reading.
+	 */
+	@Benchmark
+	public int streamingDecompression(final Blackhole blackhole) throws IOException {
+		final InputStream input = loader.open(new ContentStreamBase.FileStream(compressedFile), FlatDataLoader.AUTO_COMPRESSION);
+		try {
+			return parseChannel(Channels.newChannel(input), blackhole);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Parses a memory-mapped file.
+	 *
+	 * @param file the file.
+	 * @param blackhole the sink of the parsed documents.
+	 * @return the number of parsed documents.
+	 * @throws IOException in case of I/O failure.
+	 */
+	private int parseMapped(final File file, final Blackhole blackhole) throws IOException {
+		final RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = input.getChannel();
+			return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), true, new FlatRecordScanner(), decoder(), blackhole);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Parses a stream, through a reusable buffer.
+	 *
+	 * @param channel the stream channel.
+	 * @param blackhole the sink of the parsed documents.
+	 * @return the number of parsed documents.
+	 * @throws IOException in case of I/O failure.
+	 */
+	private int parseChannel(final ReadableByteChannel channel, final Blackhole blackhole) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(FlatDataLoader.READ_BUFFER_SIZE);
+		final FlatRecordScanner scanner = new FlatRecordScanner();
+		final FlatRecordDecoder decoder = decoder();
+		int count = 0;
+		boolean endOfInput = false;
+		while (!endOfInput) {
+			while (buffer.hasRemaining() && !endOfInput) {
+				endOfInput = channel.read(buffer) == -1;
+			}
+			buffer.flip();
+			count += parse(buffer, endOfInput, scanner, decoder, blackhole);
+			buffer.compact();
+		}
+		return count;
+	}
+
+	/**
+	 * Parses the complete records within the given buffer.
+	 *
+	 * @param buffer the buffer, flipped for reading.
+	 * @param endOfInput true if the buffer contains the last chunk of the input.
+	 * @param scanner the record scanner.
+	 * @param decoder the record decoder.
+	 * @param blackhole the sink of the parsed documents.
+	 * @return the number of parsed documents.
+	 */
+	private int parse(
+			final ByteBuffer buffer,
+			final boolean endOfInput,
+			final FlatRecordScanner scanner,
+			final FlatRecordDecoder decoder,
+			final Blackhole blackhole) {
+		int count = 0;
+		while (scanner.next(buffer, endOfInput)) {
+			final SolrInputDocument document = decoder.decode(buffer, scanner.start(), scanner.length());
+			if (document != null) {
+				blackhole.consume(document);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns a new decoder of the benchmark records.
+	 *
+	 * @return a new decoder of the benchmark records.
+	 */
+	private FlatRecordDecoder decoder() {
+		return new FlatRecordDecoder(layout, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,178 @@
+package org.gazzax.labs.solr.ase.ch2.handler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing throughput of a fixed-width file (the example books layout): the original line-by-line path
+ * (a String per line and a substring per field), the current reader mode and the (memory-mapped) bytes mode
+ * of {@link FlatDataLoader}.
+ *
+ * Only the parsing is measured: documents are handed to a {@link Blackhole} instead of the update chain.
+ * Each benchmark returns the number of parsed documents, so the score is in files (of "records" records) per second.
+ *
+ * <pre>
+ * mvn -Pjmh package &amp;&amp; java -jar target/benchmarks.jar FlatRecordParsingBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FlatRecordParsingBenchmark {
+	@Param({"100000"})
+	int records;
+
+	@Param({"UTF-8", "ISO-8859-1"})
+	String charset;
+
+	private File file;
+	private FlatRecordLayout layout;
+
+	@Setup
+	public void setUp() throws IOException {
+		layout = FlatRecordLayout.defaultLayout();
+		file = File.createTempFile("flat-records", ".txt");
+
+		final Random random = new Random(31);
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName(charset)));
+		try {
+			for (int i = 0; i < records; i++) {
+				writer.write(String.format(Locale.ROOT, "%08d", i));
+				writer.write(pad(String.valueOf(9780000000000L + random.nextInt(1000000)), 13));
+				writer.write(pad("A Title number " + random.nextInt(100000), 44));
+				writer.write(pad("Some Author " + random.nextInt(1000), 42));
+				writer.write("\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * The original implementation: a String for each line, a substring (plus a trim) for each field.
+	 */
+	@Benchmark
+	public int originalLines(final Blackhole blackhole) throws IOException {
+		int count = 0;
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charset.forName(charset)));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() != 107) {
+					continue;
+				}
+
+				final SolrInputDocument document = new SolrInputDocument();
+				document.setField("id", line.substring(0, 8));
+				document.setField("isbn", line.substring(8, 21).trim());
+				document.setField("title", line.substring(21, 65).trim());
+				document.setField("author", line.substring(65).trim());
+				blackhole.consume(document);
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+		return count;
+	}
+
+	/**
+	 * The reader mode: a String for each line, decoded by the {@link FlatRecordDecoder}.
+	 */
+	@Benchmark
+	public int readerMode(final Blackhole blackhole) throws IOException {
+		int count = 0;
+		final FlatRecordDecoder decoder = new FlatRecordDecoder(layout, Charset.forName(charset));
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charset.forName(charset)));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() != layout.recordLength) {
+					continue;
+				}
+				blackhole.consume(decoder.decode(line));
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+		return count;
+	}
+
+	/**
+	 * The bytes mode: records are found and decoded within a memory-mapped buffer.
+	 */
+	@Benchmark
+	public int bytesMode(final Blackhole blackhole) throws IOException {
+		int count = 0;
+		final FlatRecordDecoder decoder = new FlatRecordDecoder(layout, Charset.forName(charset));
+		final FlatRecordScanner scanner = new FlatRecordScanner();
+		final RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = input.getChannel();
+			final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			while (scanner.next(buffer, true)) {
+				final SolrInputDocument document = decoder.decode(buffer, scanner.start(), scanner.length());
+				if (document != null) {
+					blackhole.consume(document);
+					count++;
+				}
+			}
+		} finally {
+			input.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Pads the given value with trailing spaces.
+	 *
+	 * @param value the value.
+	 * @param length the target length.
+	 * @return the padded value.
+	 */
+	private static String pad(final String value, final int length) {
+		final StringBuilder builder = new StringBuilder(length).append(value);
+		while (builder.length() < length) {
+			builder.append(' ');
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,163 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-document cost of the field transformations of the example configuration: chained (a
+ * {@link RemoveTrailingUnderscoreProcessor} followed by a {@link SplitCompoundFieldProcessor}) against fused
+ * (a single {@link FusedFieldProcessor}). Processors are created by their factories, with the configuration of the
+ * "remove-trailing-underscore-chain" and "fused-chain" chains.
+ *
+ * Documents are modified by the processors, so a new batch is built before each invocation (outside the measurement).
+ * The chains end with the transformation processors: nothing is indexed.
+ *
+ * <pre>
+ * mvn -Pjmh package &amp;&amp; java -jar target/benchmarks.jar FusedFieldProcessorBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FusedFieldProcessorBenchmark {
+	static final int BATCH_SIZE = 1000;
+
+	private static final String [] LANGUAGES = {"eng", "ita", "fre", "ger", "spa"};
+
+	private final AddUpdateCommand [] commands = new AddUpdateCommand[BATCH_SIZE];
+
+	private UpdateRequestProcessor chained;
+	private UpdateRequestProcessor fused;
+
+	@Setup
+	public void setUp() {
+		final RemoveTrailingUnderscoreProcessorFactory removeTrailingUnderscore = new RemoveTrailingUnderscoreProcessorFactory();
+		removeTrailingUnderscore.init(removeTrailingUnderscoreArgs());
+		final SplitCompoundFieldProcessorFactory splitCompoundField = new SplitCompoundFieldProcessorFactory();
+		splitCompoundField.init(splitCompoundFieldArgs());
+		chained = removeTrailingUnderscore.getInstance(null, null, splitCompoundField.getInstance(null, null, null));
+
+		final NamedList<Object> fusedArgs = new NamedList<Object>();
+		fusedArgs.add(FusedFieldTransformations.REMOVE_TRAILING_UNDERSCORE, removeTrailingUnderscoreArgs());
+		fusedArgs.add(FusedFieldTransformations.SPLIT_COMPOUND_FIELD, splitCompoundFieldArgs());
+		final FusedFieldProcessorFactory fusedFactory = new FusedFieldProcessorFactory();
+		fusedFactory.init(fusedArgs);
+		fused = fusedFactory.getInstance(null, null, null);
+
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			commands[i] = new AddUpdateCommand(null);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void newBatch() {
+		final Random random = new Random(31);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			final SolrInputDocument document = new SolrInputDocument();
+			document.setField("id", String.valueOf(i));
+			document.setField("isbn", String.valueOf(9780000000000L + random.nextInt(1000000)));
+			document.setField("title", "A Title number " + random.nextInt(100000) + (random.nextBoolean() ? "_" : ""));
+			document.setField("author", "Some Author " + random.nextInt(1000) + (random.nextBoolean() ? "_" : ""));
+			document.setField("publisher", "Some Publisher " + random.nextInt(100));
+			document.setField("subject", Arrays.asList("Subject " + random.nextInt(100), "Subject " + random.nextInt(100)));
+			document.setField(
+					FieldSplitRules.DEFAULT_SOURCE,
+					String.format(
+							Locale.ROOT,
+							"%04d%-32s%s",
+							1900 + random.nextInt(120),
+							"xx|||||||||||||||||||",
+							LANGUAGES[random.nextInt(LANGUAGES.length)]));
+			commands[i].solrDoc = document;
+		}
+	}
+
+	/**
+	 * The transformations applied by two chained processors.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public AddUpdateCommand [] chained() throws IOException {
+		return process(chained);
+	}
+
+	/**
+	 * The transformations applied by a single processor.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public AddUpdateCommand [] fused() throws IOException {
+		return process(fused);
+	}
+
+	/**
+	 * Sends the current batch to the given processor.
+	 *
+	 * @param processor the processor.
+	 * @return the processed commands.
+	 * @throws IOException in case of processing failure.
+	 */
+	private AddUpdateCommand [] process(final UpdateRequestProcessor processor) throws IOException {
+		for (final AddUpdateCommand command : commands) {
+			processor.processAdd(command);
+		}
+		return commands;
+	}
+
+	/**
+	 * Returns the configuration of the trailing underscore removal.
+	 *
+	 * @return the configuration of the trailing underscore removal.
+	 */
+	private static NamedList<Object> removeTrailingUnderscoreArgs() {
+		final NamedList<Object> args = new NamedList<Object>();
+		args.add("fields", "title,author");
+		return args;
+	}
+
+	/**
+	 * Returns the configuration of the compound field split.
+	 *
+	 * @return the configuration of the compound field split.
+	 */
+	private static NamedList<Object> splitCompoundFieldArgs() {
+		final NamedList<Object> year = new NamedList<Object>();
+		year.add("start", 0);
+		year.add("end", 4);
+		year.add("type", "int");
+
+		final NamedList<Object> language = new NamedList<Object>();
+		language.add("start", 36);
+		language.add("end", 39);
+
+		final NamedList<Object> args = new NamedList<Object>();
+		args.add(FieldSplitRules.SOURCE_PARAM_NAME, FieldSplitRules.DEFAULT_SOURCE);
+		args.add(FieldSplitRules.REMOVE_SOURCE_PARAM_NAME, true);
+		args.add("year", year);
+		args.add("language", language);
+		return args;
+	}
+}
@@ -0,0 +1,165 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-document cost of removing trailing suffixes: the original processor (a value lookup and a setField for each
+ * target field, single valued strings and the underscore only) against {@link RemoveTrailingUnderscoreProcessor}
+ * (in place replacement through the {@link SuffixMatcher}), with the same configuration, with a multivalued target
+ * field and with several suffixes.
+ *
+ * Documents are modified by the processors, so a new batch is built before each invocation (outside the measurement).
+ * The chain ends with the processor under test: nothing is indexed.
+ *
+ * <pre>
+ * mvn -Pjmh package &amp;&amp; java -jar target/benchmarks.jar RemoveTrailingUnderscoreBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RemoveTrailingUnderscoreBenchmark {
+	static final int BATCH_SIZE = 1000;
+
+	private static final String [] SINGLE_VALUED_FIELDS = {"title", "author"};
+	private static final String [] ALL_FIELDS = {"title", "author", "subject"};
+	private static final String [] SUFFIXES = {"_", ".", ",", " /", " :", " ;"};
+
+	private final AddUpdateCommand [] commands = new AddUpdateCommand[BATCH_SIZE];
+
+	private UpdateRequestProcessor original;
+	private UpdateRequestProcessor singleValued;
+	private UpdateRequestProcessor multiValued;
+	private UpdateRequestProcessor multipleSuffixes;
+
+	@Setup
+	public void setUp() {
+		original = new OriginalProcessor(null, SINGLE_VALUED_FIELDS);
+		singleValued = new RemoveTrailingUnderscoreProcessor(null, SINGLE_VALUED_FIELDS);
+		multiValued = new RemoveTrailingUnderscoreProcessor(null, ALL_FIELDS);
+		multipleSuffixes = new RemoveTrailingUnderscoreProcessor(null, ALL_FIELDS, new SuffixMatcher(SUFFIXES));
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			commands[i] = new AddUpdateCommand(null);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void newBatch() {
+		final Random random = new Random(31);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			final String suffix = SUFFIXES[random.nextInt(SUFFIXES.length)];
+			final SolrInputDocument document = new SolrInputDocument();
+			document.setField("id", String.valueOf(i));
+			document.setField("title", "A Title number " + random.nextInt(100000) + (random.nextBoolean() ? suffix : ""));
+			document.setField("author", "Some Author " + random.nextInt(1000) + (random.nextBoolean() ? "_" : ""));
+			document.setField("subject", Arrays.asList(
+					"Subject " + random.nextInt(100) + suffix,
+					"Subject " + random.nextInt(100),
+					"Subject " + random.nextInt(100) + "_"));
+			document.setField("year", 1900 + random.nextInt(120));
+			commands[i].solrDoc = document;
+		}
+	}
+
+	/**
+	 * The original processor, on the single valued fields.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public AddUpdateCommand [] original() throws IOException {
+		return process(original);
+	}
+
+	/**
+	 * The current processor, on the single valued fields.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public AddUpdateCommand [] singleValued() throws IOException {
+		return process(singleValued);
+	}
+
+	/**
+	 * The current processor, on the single valued fields and a multivalued field.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public AddUpdateCommand [] multiValued() throws IOException {
+		return process(multiValued);
+	}
+
+	/**
+	 * The current processor, on the single valued fields and a multivalued field, with several suffixes.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public AddUpdateCommand [] multipleSuffixes() throws IOException {
+		return process(multipleSuffixes);
+	}
+
+	/**
+	 * Sends the current batch to the given processor.
+	 *
+	 * @param processor the processor.
+	 * @return the processed commands.
+	 * @throws IOException in case of processing failure.
+	 */
+	private AddUpdateCommand [] process(final UpdateRequestProcessor processor) throws IOException {
+		for (final AddUpdateCommand command : commands) {
+			processor.processAdd(command);
+		}
+		return commands;
+	}
+
+	/**
+	 * The original implementation of {@link RemoveTrailingUnderscoreProcessor}.
+	 */
+	static class OriginalProcessor extends UpdateRequestProcessor {
+		private final String [] fields;
+
+		/**
+		 * Builds a new processor with the next processor in the chain.
+		 *
+		 * @param next the next processor in the chain.
+		 * @param fields the target fields.
+		 */
+		OriginalProcessor(final UpdateRequestProcessor next, final String [] fields) {
+			super(next);
+			this.fields = fields;
+		}
+
+		@Override
+		public void processAdd(final AddUpdateCommand command) throws IOException {
+			final SolrInputDocument document = command.getSolrInputDocument();
+			for (final String fieldName : fields) {
+				final String fieldValue = (String) document.getFieldValue(fieldName);
+				if (fieldValue != null && fieldValue.endsWith("_")) {
+					document.setField(fieldName, fieldValue.substring(0, fieldValue.length() -1));
+				}
+			}
+			super.processAdd(command);
+		}
+	}
+}
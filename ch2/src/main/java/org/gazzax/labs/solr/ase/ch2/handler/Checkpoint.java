@@ -0,0 +1,158 @@
+package org.gazzax.labs.solr.ase.ch2.handler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.apache.solr.common.util.ContentStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The checkpoint of a flat data load: the input offset (in bytes, after decompression) up to which
+ * all records have been sent to the update chain and committed.
+ *
+ * The checkpoint also records the identity of the input (name, size and modification time of a file, or an explicit input id
+ * and size) and whether the load completed: a checkpoint is resumed only if it belongs to the same input and the load didn't
+ * complete, otherwise the load starts from the beginning. Inputs without an identity (e.g. a request body) cannot be resumed.
+ *
+ * The checkpoint is a small properties file, which is rewritten (through a temporary file, synced to disk, and a rename)
+ * each time it is saved, so a crash never leaves a partially written checkpoint.
+ */
+class Checkpoint {
+	private final static Logger LOGGER = LoggerFactory.getLogger(Checkpoint.class);
+
+	static final String OFFSET = "offset";
+	static final String COMPLETED = "completed";
+	static final String INPUT = "input";
+
+	private final File file;
+	private final File temporaryFile;
+
+	/**
+	 * Builds a new checkpoint backed by the given file.
+	 *
+	 * @param file the checkpoint file.
+	 */
+	Checkpoint(final File file) {
+		this.file = file;
+		this.temporaryFile = new File(file.getPath() + ".tmp");
+	}
+
+	/**
+	 * Returns the identity of the given input: the explicit input id and the size, if an id is given, otherwise,
+	 * if the input is a file, its name, size and modification time.
+	 *
+	 * @param stream the content stream.
+	 * @param inputId the explicit input id, null if not given.
+	 * @return the identity of the given input, null if it cannot be determined (i.e. without an explicit id, the input is not a file).
+	 */
+	static String identity(final ContentStream stream, final String inputId) {
+		if (inputId != null) {
+			return "id:" + inputId + "|" + stream.getSize();
+		}
+
+		final String sourceInfo = stream.getSourceInfo();
+		if (sourceInfo != null && sourceInfo.startsWith("file:")) {
+			try {
+				final File file = new File(URI.create(sourceInfo));
+				if (file.isFile()) {
+					return stream.getName() + "|" + stream.getSize() + "|" + file.lastModified();
+				}
+			} catch (final IllegalArgumentException exception) {
+				// Not a file URI: the identity cannot be determined
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the offset recorded in this checkpoint, if it can be resumed for the given input.
+	 *
+	 * @param input the identity of the input being loaded (see {@link #identity(ContentStream, String)}).
+	 * @return the offset recorded in this checkpoint, 0 if the checkpoint doesn't exist, belongs to another input or completed.
+	 * @throws IOException in case the checkpoint cannot be read.
+	 */
+	long offset(final String input) throws IOException {
+		if (!file.isFile()) {
+			return 0;
+		}
+
+		final Properties properties = new Properties();
+		final InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+
+		if (!input.equals(properties.getProperty(INPUT))) {
+			LOGGER.warn("Checkpoint " + file + " belongs to another input (" + properties.getProperty(INPUT) + "): loading " + input + " from the beginning.");
+			return 0;
+		}
+
+		if (Boolean.parseBoolean(properties.getProperty(COMPLETED))) {
+			LOGGER.warn("Checkpoint " + file + " belongs to a completed load: loading " + input + " from the beginning.");
+			return 0;
+		}
+
+		try {
+			return Long.parseLong(properties.getProperty(OFFSET, "0"));
+		} catch (final NumberFormatException exception) {
+			throw new IOException("Invalid offset in checkpoint file " + file, exception);
+		}
+	}
+
+	/**
+	 * Saves this checkpoint.
+	 *
+	 * @param input the identity of the input being loaded (see {@link #identity(ContentStream, String)}), null if unknown.
+	 * @param offset the input offset up to which all records have been sent to the update chain and committed.
+	 * @param completed true if the whole input has been loaded.
+	 * @throws IOException in case the checkpoint cannot be written.
+	 */
+	void save(final String input, final long offset, final boolean completed) throws IOException {
+		final File directory = file.getParentFile();
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create the checkpoint directory " + directory);
+		}
+
+		final Properties properties = new Properties();
+		if (input != null) {
+			properties.setProperty(INPUT, input);
+		}
+		properties.setProperty(OFFSET, String.valueOf(offset));
+		properties.setProperty(COMPLETED, String.valueOf(completed));
+
+		final FileOutputStream out = new FileOutputStream(temporaryFile);
+		try {
+			properties.store(out, null);
+			out.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		try {
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (final AtomicMoveNotSupportedException exception) {
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Returns the checkpoint file.
+	 *
+	 * @return the checkpoint file.
+	 */
+	File file() {
+		return file;
+	}
+}
@@ -1,64 +1,937 @@
 package org.gazzax.labs.solr.ase.ch2.handler;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.params.UpdateParams;
 import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.handler.loader.ContentStreamLoader;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.gazzax.labs.solr.ase.ch2.handler.PartitionedRecordParser.ParsedPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * A {@link ContentStreamLoader} for fixed-width (flat) records.
+ *
+ * Two parsing modes are available, selected with the "flat.mode" request parameter:
+ *
+ * <ul>
+ * 	<li><b>reader</b> (default): the stream is read line by line through a {@link BufferedReader};</li>
+ * 	<li><b>bytes</b>: records are located and decoded directly on the raw bytes. If the stream is a file
+ * 	its content is memory-mapped, otherwise it is read through a {@link ReadableByteChannel}.</li>
+ * </ul>
+ *
+ * With "flat.parallel=true" the (bytes) input is split in partitions at record boundaries
+ * ("flat.partition.size" bytes each) and partitions are parsed concurrently on the handler worker pool.
+ * Parsed documents are then sent to the update chain by the request thread, in input order unless "flat.ordered=false".
+ *
+ * Record length and fields are defined by a {@link FlatRecordLayout}, declared in the handler configuration.
+ * In both modes they are measured in characters and records are decoded with the charset of the stream (UTF-8 if the 
+ * content type doesn't declare any), so the indexed content doesn't depend on the mode. The bytes mode requires
+ * an ASCII compatible charset (e.g. UTF-8 or ISO-8859-1, not UTF-16), since records are split at line feed bytes.
+ *
+ * Documents are sent to the update chain in batches of "flat.batch.size" documents. Per-batch timings and counters
+ * are collected and exposed in the statistics of the owning handler.
+ *
+ * Records are never silently dropped: each stream load reports (in the response) the number of processed, skipped
+ * (i.e. wrong length) and failed (i.e. not parseable or rejected by the update chain) records.
+ * Optionally:
+ *
+ * <ul>
+ * 	<li>skipped and unparseable records are streamed to "flat.reject.file" (a file name, created in the reject directory),
+ * 	up to "flat.reject.max.size" bytes;</li>
+ * 	<li>the load is aborted as soon as skipped and failed records exceed "flat.max.errors".</li>
+ * </ul>
+ *
+ * Compressed streams are decompressed on the fly, while reading. The "flat.compression" parameter can be
+ * "gzip", "deflate" (zlib), "none" or "auto" (default), which detects gzip content by means of its magic header.
+ * Note that a compressed file cannot be memory-mapped, so in bytes mode it is read through a channel.
+ *
+ * A long load can be made resumable with "flat.checkpoint" (a file name, created in the checkpoint directory):
+ * every "flat.checkpoint.interval" batches the loader issues a hard commit (without opening a searcher) and then records
+ * the input offset up to which all records have been committed. A later request with "flat.resume=true" (or with an
+ * explicit "flat.offset") starts reading from that offset, without sending again what has been already loaded.
+ * A checkpoint is resumed only for the same input (name, size and modification time of a file) and only if that load didn't complete.
+ * Other inputs (e.g. a request body or a remote stream) can be resumed only if they are identified by an explicit "flat.input.id",
+ * otherwise "flat.resume" is rejected: two unrelated inputs with the same length would be indistinguishable.
+ * Offsets are bytes of the (decompressed) input, so checkpointing implies the bytes mode and requires ordered partitions.
+ */
 public class FlatDataLoader extends ContentStreamLoader {
+	private final static Logger LOGGER = LoggerFactory.getLogger(FlatDataLoader.class);
+
+	static final String MODE_PARAM_NAME = "flat.mode";
+	static final String READER_MODE = "reader";
+	static final String BYTES_MODE = "bytes";
+	static final String PARALLEL_PARAM_NAME = "flat.parallel";
+	static final String ORDERED_PARAM_NAME = "flat.ordered";
+	static final String PARTITION_SIZE_PARAM_NAME = "flat.partition.size";
+	static final int DEFAULT_PARTITION_SIZE = 1024 * 1024;
+	static final String BATCH_SIZE_PARAM_NAME = "flat.batch.size";
+	static final int DEFAULT_BATCH_SIZE = 1000;
+	static final String REJECT_FILE_PARAM_NAME = "flat.reject.file";
+	static final String REJECT_MAX_SIZE_PARAM_NAME = "flat.reject.max.size";
+	static final long DEFAULT_REJECT_MAX_SIZE = 10 * 1024 * 1024;
+	static final String MAX_ERRORS_PARAM_NAME = "flat.max.errors";
+	static final String COMPRESSION_PARAM_NAME = "flat.compression";
+	static final String AUTO_COMPRESSION = "auto";
+	static final String GZIP_COMPRESSION = "gzip";
+	static final String DEFLATE_COMPRESSION = "deflate";
+	static final String NO_COMPRESSION = "none";
+	static final String CHECKPOINT_PARAM_NAME = "flat.checkpoint";
+	static final String CHECKPOINT_INTERVAL_PARAM_NAME = "flat.checkpoint.interval";
+	static final int DEFAULT_CHECKPOINT_INTERVAL = 10;
+	static final String RESUME_PARAM_NAME = "flat.resume";
+	static final String OFFSET_PARAM_NAME = "flat.offset";
+	static final String INPUT_ID_PARAM_NAME = "flat.input.id";
+
+	static final String DEFAULT_CHARSET = "UTF-8";
+
+	static final int READ_BUFFER_SIZE = 64 * 1024;
+	static final long MAX_MAPPED_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private final FlatRecordLayout layout;
+	private final ExecutorService parsers;
+	private final int parserThreads;
+	private final File rejectDirectory;
+	private final File checkpointDirectory;
+
+	private final AtomicLong streams = new AtomicLong();
+	private final AtomicLong documents = new AtomicLong();
+	private final AtomicLong skippedRecords = new AtomicLong();
+	private final AtomicLong failedRecords = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong loadTime = new AtomicLong();
+	private final AtomicLong chainTime = new AtomicLong();
+	private final AtomicLong maxBatchTime = new AtomicLong();
+
+	/**
+	 * Builds a new loader with the given record layout and worker pool.
+	 *
+	 * @param layout the (compiled) record layout.
+	 * @param parsers the worker pool used for parsing partitions in parallel.
+	 * @param parserThreads the number of threads of the worker pool.
+	 * @param rejectDirectory the directory where reject files are created, null for the "rejects" folder in the core data directory.
+	 * @param checkpointDirectory the directory where checkpoint files are created, null for the "checkpoints" folder in the core data directory.
+	 */
+	FlatDataLoader(
+			final FlatRecordLayout layout,
+			final ExecutorService parsers,
+			final int parserThreads,
+			final File rejectDirectory,
+			final File checkpointDirectory) {
+		this.layout = layout;
+		this.parsers = parsers;
+		this.parserThreads = parserThreads;
+		this.rejectDirectory = rejectDirectory;
+		this.checkpointDirectory = checkpointDirectory;
+	}
 
 	@Override
 	public void load(final SolrQueryRequest req, final SolrQueryResponse rsp,
 			final ContentStream stream, final UpdateRequestProcessor processor)
 			throws Exception {
+		final long start = System.nanoTime();
+		final StreamLoad load = new StreamLoad(req, stream, processor);
+		try {
+			if (BYTES_MODE.equals(req.getParams().get(MODE_PARAM_NAME, READER_MODE))
+					|| load.parser != null
+					|| load.checkpoint != null
+					|| load.start != 0) {
+				loadBytes(load, stream);
+			} else {
+				loadLines(load, stream);
+			}
+			load.finish();
+		} finally {
+			load.close();
+			rsp.add("flat", load.report());
+
+			streams.incrementAndGet();
+			loadTime.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Returns the ingestion statistics of this loader.
+	 * The time spent in the update chain is measured per batch, the difference with
+	 * the overall load time is basically the time spent in reading and parsing.
+	 *
+	 * @return the ingestion statistics of this loader.
+	 */
+	public NamedList<Object> getStatistics() {
+		final long batchCount = batches.get();
+		final NamedList<Object> statistics = new SimpleOrderedMap<Object>();
+		statistics.add("streams", streams.get());
+		statistics.add("documents", documents.get());
+		statistics.add("skipped", skippedRecords.get());
+		statistics.add("failed", failedRecords.get());
+		statistics.add("batches", batchCount);
+		statistics.add("loadTimeMs", TimeUnit.NANOSECONDS.toMillis(loadTime.get()));
+		statistics.add("chainTimeMs", TimeUnit.NANOSECONDS.toMillis(chainTime.get()));
+		statistics.add("avgBatchTimeMs", batchCount != 0 ? (double) chainTime.get() / batchCount / 1000000 : 0d);
+		statistics.add("maxBatchTimeMs", TimeUnit.NANOSECONDS.toMillis(maxBatchTime.get()));
+		return statistics;
+	}
+
+	/**
+	 * Loads the given stream line by line.
+	 *
+	 * @param load the current load.
+	 * @param stream the content stream.
+	 * @throws IOException in case of I/O failure.
+	 */
+	void loadLines(final StreamLoad load, final ContentStream stream) throws IOException {
 		BufferedReader reader = null;
 
 		try {
-			reader = new BufferedReader(stream.getReader());
+			reader = new BufferedReader(new InputStreamReader(open(stream, load.compression), load.charset));
 			String actLine = null;
 			while ((actLine = reader.readLine()) != null) {
 				// 1. Sanity check: line must have a fixed length, otherwise
 				// skip
-				if (actLine.length() != 107) {
+				if (actLine.length() != layout.recordLength) {
+					load.skip(actLine);
 					continue;
 				}
 
 				// 2. parse and create the document
-				final SolrInputDocument document = new SolrInputDocument();
-				document.setField("id", actLine.substring(0, 8));
-				document.setField("isbn", actLine.substring(8,21).trim());
-				document.setField("title", actLine.substring(21, 65).trim());
-				document.setField("author", actLine.substring(65).trim());				
-				
-				AddUpdateCommand command = getAddCommand(req);
-				command.solrDoc = document;
-				
-				processor.processAdd(command);
+				final SolrInputDocument document;
+				try {
+					document = load.decoder.decode(actLine);
+				} catch (final IllegalArgumentException exception) {
+					load.fail(actLine, exception);
+					continue;
+				}
+				load.emit(document);
 			}
-		} catch (Exception e) {
-			// TODO: handle exception
 		} finally {
 			if (reader != null) {
 				try {
 					reader.close();
 				} catch (Exception ignore) {
-					// TODO: handle exception
+					// Nothing to be done here
 				}
 			}
 		}
 	}
 
-	private AddUpdateCommand getAddCommand(final SolrQueryRequest req) {
-		final AddUpdateCommand addCmd = new AddUpdateCommand(req);
+	/**
+	 * Loads the given stream working directly on its bytes.
+	 *
+	 * @param load the current load.
+	 * @param stream the content stream.
+	 * @throws IOException in case of I/O failure.
+	 * @throws InterruptedException if the request thread has been interrupted while waiting for parsed partitions.
+	 */
+	void loadBytes(final StreamLoad load, final ContentStream stream) throws IOException, InterruptedException {
+		if (!Arrays.equals("\r\n".getBytes(load.charset), new byte [] {'\r', '\n'})) {
+			throw new SolrException(ErrorCode.BAD_REQUEST, "The " + BYTES_MODE + " mode requires an ASCII compatible charset, " + load.charset.name() + " is not.");
+		}
+		
+		final InputStream input = open(stream, load.compression);
+		try {
+			if (input instanceof FileInputStream) {
+				loadMapped(load, ((FileInputStream)input).getChannel());
+			} else {
+				skip(input, load.start);
+				loadChannel(load, Channels.newChannel(input));
+			}
+		} finally {
+			try {
+				input.close();
+			} catch (Exception ignore) {
+				// Nothing to be done here
+			}
+		}
+	}
+
+	/**
+	 * Opens the given stream, decompressing its content if needed.
+	 *
+	 * @param stream the content stream.
+	 * @param compression the compression requested for the stream.
+	 * @return the (possibly decompressing) input stream.
+	 * @throws IOException in case of I/O failure.
+	 */
+	InputStream open(final ContentStream stream, final String compression) throws IOException {
+		final InputStream input = stream.getStream();
+		if (GZIP_COMPRESSION.equals(compression)) {
+			return new GZIPInputStream(input, READ_BUFFER_SIZE);
+		} else if (DEFLATE_COMPRESSION.equals(compression)) {
+			return new InflaterInputStream(new BufferedInputStream(input, READ_BUFFER_SIZE));
+		} else if (NO_COMPRESSION.equals(compression)) {
+			return input;
+		} else if (!AUTO_COMPRESSION.equals(compression)) {
+			input.close();
+			throw new SolrException(ErrorCode.BAD_REQUEST, "Unknown " + COMPRESSION_PARAM_NAME + " value: " + compression);
+		}
+
+		// Auto detection: a file is checked with a positional read, in order to preserve memory-mapping for plain files
+		final byte [] header = new byte[2];
+		if (input instanceof FileInputStream) {
+			final FileChannel channel = ((FileInputStream)input).getChannel();
+			final ByteBuffer buffer = ByteBuffer.wrap(header);
+			while (buffer.hasRemaining() && channel.read(buffer, channel.position() + buffer.position()) > 0) {
+				// Keep reading until the header is complete or the file ends
+			}
+			return isGzip(header) ? new GZIPInputStream(input, READ_BUFFER_SIZE) : input;
+		}
+
+		final BufferedInputStream buffered = new BufferedInputStream(input, READ_BUFFER_SIZE);
+		buffered.mark(header.length);
+		int read = 0;
+		int count;
+		while (read < header.length && (count = buffered.read(header, read, header.length - read)) != -1) {
+			read += count;
+		}
+		buffered.reset();
+		return isGzip(header) ? new GZIPInputStream(buffered, READ_BUFFER_SIZE) : buffered;
+	}
+
+	/**
+	 * Skips the given number of bytes (or less, if the stream ends before) from the given stream.
+	 *
+	 * @param input the input stream.
+	 * @param count the number of bytes to be skipped.
+	 * @throws IOException in case of I/O failure.
+	 */
+	private void skip(final InputStream input, final long count) throws IOException {
+		long remaining = count;
+		while (remaining > 0) {
+			final long skipped = input.skip(remaining);
+			if (skipped > 0) {
+				remaining -= skipped;
+			} else if (input.read() == -1) {
+				return;
+			} else {
+				remaining--;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the given header is the gzip magic number.
+	 *
+	 * @param header the first two bytes of a stream.
+	 * @return true if the given header is the gzip magic number.
+	 */
+	private boolean isGzip(final byte [] header) {
+		return (header[0] & 0xFF) == 0x1F && (header[1] & 0xFF) == 0x8B;
+	}
+
+	/**
+	 * Returns the value of the given (long) parameter. SolrParams has no getLong in this Solr version.
+	 *
+	 * @param params the request parameters.
+	 * @param name the parameter name.
+	 * @param defaultValue the value returned if the parameter is missing.
+	 * @return the value of the given parameter, the default value if it is missing.
+	 */
+	private static long getLong(final SolrParams params, final String name, final long defaultValue) {
+		final String value = params.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Long.parseLong(value.trim());
+		} catch (final NumberFormatException exception) {
+			throw new SolrException(ErrorCode.BAD_REQUEST, name + " must be a number, not " + value);
+		}
+	}
+
+	/**
+	 * Returns the charset declared in the content type of the given stream, UTF-8 if the content type doesn't declare any charset.
+	 *
+	 * @param stream the content stream.
+	 * @return the charset of the given stream.
+	 */
+	private Charset charset(final ContentStream stream) {
+		String name = DEFAULT_CHARSET;
+		final String contentType = stream.getContentType();
+		if (contentType != null) {
+			for (final String parameter : contentType.split(";")) {
+				final String trimmed = parameter.trim();
+				if (trimmed.toLowerCase(Locale.ROOT).startsWith("charset=")) {
+					name = trimmed.substring("charset=".length()).replace("\"", "").trim();
+				}
+			}
+		}
 		
-		addCmd.overwrite = req.getParams().getBool(UpdateParams.OVERWRITE, true);
-		addCmd.commitWithin = req.getParams().getInt(UpdateParams.COMMIT_WITHIN, -1);
-		return addCmd;
+		try {
+			return Charset.forName(name);
+		} catch (final IllegalCharsetNameException | UnsupportedCharsetException exception) {
+			throw new SolrException(ErrorCode.BAD_REQUEST, "Unsupported charset: " + name);
+		}
+	}
+
+	/**
+	 * Loads a file by memory-mapping its content, one window at time.
+	 *
+	 * @param load the current load.
+	 * @param channel the file channel.
+	 * @throws IOException in case of I/O failure.
+	 * @throws InterruptedException if the request thread has been interrupted while waiting for parsed partitions.
+	 */
+	private void loadMapped(final StreamLoad load, final FileChannel channel) throws IOException, InterruptedException {
+		final long size = channel.size();
+		final long origin = channel.position();
+		long position = origin + load.start;
+		while (position < size) {
+			final long windowSize = Math.min(MAX_MAPPED_WINDOW_SIZE, size - position);
+			final ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+
+			// Mapped windows are never reused, so partitions can be slices of them.
+			load.consume(window, position - origin, position + windowSize == size, false);
+
+			// A window never ends within a record, unless it is the last one.
+			position += window.position();
+		}
+	}
+
+	/**
+	 * Loads a (non-file) stream by reading its content through a reusable buffer.
+	 *
+	 * @param load the current load.
+	 * @param channel the stream channel.
+	 * @throws IOException in case of I/O failure.
+	 * @throws InterruptedException if the request thread has been interrupted while waiting for parsed partitions.
+	 */
+	private void loadChannel(final StreamLoad load, final ReadableByteChannel channel) throws IOException, InterruptedException {
+		final ByteBuffer buffer = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE, load.partitionSize));
+		long base = load.start;
+		boolean endOfInput = false;
+		while (!endOfInput) {
+			while (buffer.hasRemaining() && !endOfInput) {
+				endOfInput = channel.read(buffer) == -1;
+			}
+			buffer.flip();
+
+			// The buffer is reused, so partitions must be copied.
+			load.consume(buffer, base, endOfInput, true);
+
+			// Incomplete trailing record, if any, is moved at the beginning of the buffer.
+			base += buffer.position();
+			buffer.compact();
+		}
+	}
+
+	/**
+	 * The state of a single stream load.
+	 * In bytes mode, records are either decoded one by one, or grouped in partitions which are parsed in
+	 * parallel by the worker pool.
+	 * Documents are then sent to the update chain in batches, by the request thread (the only one allowed to interact
+	 * with the {@link UpdateRequestProcessor}), always using the same {@link AddUpdateCommand}.
+	 * Rejected records are counted and, optionally, written in a reject file.
+	 *
+	 * The load also tracks the input offset of the records it goes through: "offset" is the end of the last record
+	 * added to the current batch (or rejected), "flushed" is the end of the last record sent to the update chain,
+	 * "committed" is the end of the last record committed, which is what the checkpoint records.
+	 */
+	private class StreamLoad {
+		final SolrQueryRequest req;
+		final UpdateRequestProcessor processor;
+		final String compression;
+		final Charset charset;
+		final FlatRecordScanner scanner = new FlatRecordScanner();
+		final FlatRecordDecoder decoder;
+		final PartitionedRecordParser parser;
+		final int partitionSize;
+
+		final AddUpdateCommand command;
+		final boolean overwrite;
+		final int commitWithin;
+
+		final List<SolrInputDocument> batch;
+		final int batchSize;
+
+		final long maxErrors;
+		final File rejectFile;
+		final long rejectMaxSize;
+		RejectFile rejects;
+
+		final Checkpoint checkpoint;
+		final String input;
+		final int checkpointInterval;
+		final long start;
+		long offset;
+		long flushed;
+		long committed;
+		long flushes;
+		boolean completed;
+
+		long processed;
+		long skipped;
+		long failed;
+
+		/**
+		 * Builds a new load for the given request.
+		 *
+		 * @param req the current request.
+		 * @param stream the content stream.
+		 * @param processor the first processor of the update chain.
+		 * @throws IOException in case the checkpoint cannot be read.
+		 */
+		StreamLoad(final SolrQueryRequest req, final ContentStream stream, final UpdateRequestProcessor processor) throws IOException {
+			final SolrParams params = req.getParams();
+
+			this.req = req;
+			this.processor = processor;
+			this.charset = charset(stream);
+			this.decoder = new FlatRecordDecoder(layout, charset);
+			this.compression = params.get(COMPRESSION_PARAM_NAME, AUTO_COMPRESSION).toLowerCase(Locale.ROOT);
+			this.partitionSize = params.getInt(PARTITION_SIZE_PARAM_NAME, DEFAULT_PARTITION_SIZE);
+
+			final File checkpointFile = file(req, CHECKPOINT_PARAM_NAME, checkpointDirectory, "checkpoints");
+			this.checkpoint = checkpointFile != null ? new Checkpoint(checkpointFile) : null;
+			this.input = Checkpoint.identity(stream, params.get(INPUT_ID_PARAM_NAME));
+			this.checkpointInterval = Math.max(1, params.getInt(CHECKPOINT_INTERVAL_PARAM_NAME, DEFAULT_CHECKPOINT_INTERVAL));
+
+			final boolean ordered = params.getBool(ORDERED_PARAM_NAME, true);
+			if (checkpoint != null && !ordered) {
+				throw new SolrException(ErrorCode.BAD_REQUEST, CHECKPOINT_PARAM_NAME + " requires ordered partitions (" + ORDERED_PARAM_NAME + "=true)");
+			}
+
+			long resumeOffset = 0;
+			if (params.getBool(RESUME_PARAM_NAME, false)) {
+				if (checkpoint == null) {
+					throw new SolrException(ErrorCode.BAD_REQUEST, RESUME_PARAM_NAME + " requires " + CHECKPOINT_PARAM_NAME);
+				}
+				if (input == null) {
+					throw new SolrException(
+							ErrorCode.BAD_REQUEST,
+							RESUME_PARAM_NAME + " requires a file input or an explicit " + INPUT_ID_PARAM_NAME + ": this input cannot be identified.");
+				}
+				resumeOffset = checkpoint.offset(input);
+			}
+
+			this.start = getLong(params, OFFSET_PARAM_NAME, resumeOffset);
+			if (start < 0) {
+				throw new SolrException(ErrorCode.BAD_REQUEST, OFFSET_PARAM_NAME + " cannot be negative.");
+			}
+			this.offset = start;
+			this.flushed = start;
+			this.committed = start;
+
+			this.parser = params.getBool(PARALLEL_PARAM_NAME, false)
+					? new PartitionedRecordParser(layout, charset, parsers, parserThreads * 2, ordered)
+					: null;
+
+			this.command = new AddUpdateCommand(req);
+			this.overwrite = params.getBool(UpdateParams.OVERWRITE, true);
+			this.commitWithin = params.getInt(UpdateParams.COMMIT_WITHIN, -1);
+
+			this.batchSize = Math.max(1, params.getInt(BATCH_SIZE_PARAM_NAME, DEFAULT_BATCH_SIZE));
+			this.batch = new ArrayList<SolrInputDocument>(batchSize);
+
+			this.maxErrors = getLong(params, MAX_ERRORS_PARAM_NAME, -1);
+			this.rejectMaxSize = getLong(params, REJECT_MAX_SIZE_PARAM_NAME, DEFAULT_REJECT_MAX_SIZE);
+			this.rejectFile = file(req, REJECT_FILE_PARAM_NAME, rejectDirectory, "rejects");
+		}
+
+		/**
+		 * Resolves the file whose name is given by the request parameter with the given name.
+		 *
+		 * @param req the current request.
+		 * @param name the parameter name.
+		 * @param directory the directory where the file is resolved, null for the default directory.
+		 * @param defaultDirectory the name of the default directory, within the core data directory.
+		 * @return the file, null if the request doesn't have the given parameter.
+		 */
+		private File file(final SolrQueryRequest req, final String name, final File directory, final String defaultDirectory) {
+			final String fileName = req.getParams().get(name);
+			if (fileName == null) {
+				return null;
+			}
+
+			if (!new File(fileName).getName().equals(fileName)) {
+				throw new SolrException(ErrorCode.BAD_REQUEST, name + " must be a file name, without any path.");
+			}
+
+			return new File(directory != null ? directory : new File(req.getCore().getDataDir(), defaultDirectory), fileName);
+		}
+
+		/**
+		 * Consumes all complete records within the given buffer.
+		 *
+		 * @param buffer the buffer, flipped for reading.
+		 * @param base the input offset of the first byte in the buffer.
+		 * @param endOfInput true if the buffer contains the last chunk of the input.
+		 * @param copy if true, partitions are copied out of the buffer before being submitted.
+		 * @throws IOException in case of I/O failure.
+		 * @throws InterruptedException if the request thread has been interrupted while waiting for parsed partitions.
+		 */
+		void consume(final ByteBuffer buffer, final long base, final boolean endOfInput, final boolean copy) throws IOException, InterruptedException {
+			if (parser == null) {
+				while (scanner.next(buffer, endOfInput)) {
+					offset = base + buffer.position();
+
+					// 1. decode the document straight from the buffer
+					final SolrInputDocument document;
+					try {
+						document = decoder.decode(buffer, scanner.start(), scanner.length());
+					} catch (final IllegalArgumentException exception) {
+						fail(buffer, scanner.start(), scanner.length(), exception);
+						continue;
+					}
+					
+					// 2. Sanity check: record must have a fixed length, otherwise skip
+					if (document == null) {
+						skip(buffer, scanner.start(), scanner.length());
+						continue;
+					}
+					emit(document);
+				}
+				return;
+			}
+
+			if (!scanner.skipDiscarded(buffer, endOfInput)) {
+				return;
+			}
+
+			int end;
+			while ((end = FlatRecordScanner.partitionEnd(buffer, partitionSize, endOfInput)) != -1) {
+				final ByteBuffer partition = copy ? copy(buffer, end) : slice(buffer, end);
+				buffer.position(end);
+
+				while (parser.isFull()) {
+					emit(parser.take());
+				}
+				parser.submit(partition, base + end);
+			}
+
+			if (!endOfInput && buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+				scanner.discard(buffer);
+			}
+		}
+
+		/**
+		 * Sends to the update chain all partitions that are still in flight and the last (partial) batch.
+		 *
+		 * @throws IOException in case of I/O failure.
+		 * @throws InterruptedException if the request thread has been interrupted while waiting for parsed partitions.
+		 */
+		void finish() throws IOException, InterruptedException {
+			while (parser != null && parser.hasPending()) {
+				emit(parser.take());
+			}
+			flush();
+			flushed = offset;
+
+			if (checkpoint != null) {
+				commit();
+				checkpoint.save(input, committed, true);
+			}
+			completed = true;
+		}
+
+		/**
+		 * Cancels the partitions that are still in flight, if any, and closes the reject file.
+		 * If the load didn't complete, the checkpoint is left at the last committed record: what has been sent to the
+		 * update chain after that point is not durable yet, so it will be sent again by a resumed load.
+		 */
+		void close() {
+			if (parser != null) {
+				parser.cancel();
+			}
+
+			if (rejects != null) {
+				try {
+					rejects.close();
+				} catch (final IOException exception) {
+					LOGGER.error("Unable to close the reject file " + rejects.file(), exception);
+				}
+			}
+
+			if (skipped + failed != 0) {
+				LOGGER.warn("Flat data load completed with errors: " + processed + " processed, " + skipped + " skipped, " + failed + " failed records.");
+			}
+		}
+
+		/**
+		 * Returns the outcome of this load.
+		 *
+		 * @return the outcome of this load.
+		 */
+		NamedList<Object> report() {
+			final NamedList<Object> report = new SimpleOrderedMap<Object>();
+			report.add("processed", processed);
+			report.add("skipped", skipped);
+			report.add("failed", failed);
+			if (rejects != null) {
+				report.add("rejectFile", rejects.file().getAbsolutePath());
+				report.add("rejectFileTruncated", rejects.isTruncated());
+			}
+			if (start != 0) {
+				report.add("resumedFrom", start);
+			}
+			if (checkpoint != null) {
+				report.add("checkpointFile", checkpoint.file().getAbsolutePath());
+				report.add("checkpointOffset", committed);
+			}
+			return report;
+		}
+
+		/**
+		 * Adds the documents of the given partition to the current batch and accounts its rejected records.
+		 *
+		 * @param partition the parsed partition.
+		 * @throws IOException in case of I/O failure.
+		 */
+		void emit(final ParsedPartition partition) throws IOException {
+			for (final byte [] record : partition.skipped) {
+				skipped++;
+				skippedRecords.incrementAndGet();
+				if (rejects() != null) {
+					rejects.write(record);
+				}
+				checkErrors();
+			}
+
+			for (int i = 0; i < partition.failed.size(); i++) {
+				failed(partition.failures.get(i));
+				if (rejects() != null) {
+					rejects.write(partition.failed.get(i));
+				}
+				checkErrors();
+			}
+
+			for (final SolrInputDocument document : partition.documents) {
+				emit(document);
+			}
+
+			// A batch flushed in the middle of the partition doesn't move the checkpoint beyond the previous partition
+			offset = partition.end;
+		}
+
+		/**
+		 * Adds the given document to the current batch.
+		 * If the batch is full, it is sent to the update chain.
+		 *
+		 * @param document the document.
+		 * @throws IOException in case of I/O failure.
+		 */
+		void emit(final SolrInputDocument document) throws IOException {
+			batch.add(document);
+			if (batch.size() >= batchSize) {
+				flush();
+			}
+		}
+
+		/**
+		 * Sends the current batch to the update chain.
+		 *
+		 * @throws IOException in case of I/O failure.
+		 */
+		private void flush() throws IOException {
+			if (batch.isEmpty()) {
+				return;
+			}
+
+			long sent = 0;
+			final long start = System.nanoTime();
+			for (final SolrInputDocument document : batch) {
+				command.clear();
+				command.overwrite = overwrite;
+				command.commitWithin = commitWithin;
+				command.solrDoc = document;
+
+				try {
+					processor.processAdd(command);
+					processed++;
+					sent++;
+				} catch (final SolrException exception) {
+					failed("Document " + command.getPrintableId() + " has been rejected by the update chain: " + exception.getMessage());
+					checkErrors();
+				}
+			}
+			final long elapsed = System.nanoTime() - start;
+
+			flushed = offset;
+			if (checkpoint != null && ++flushes % checkpointInterval == 0) {
+				commit();
+				checkpoint.save(input, committed, false);
+			}
+
+			documents.addAndGet(sent);
+			batches.incrementAndGet();
+			chainTime.addAndGet(elapsed);
+
+			long max;
+			while (elapsed > (max = maxBatchTime.get()) && !maxBatchTime.compareAndSet(max, elapsed)) {
+				// Retry: another request updated the maximum in the meantime
+			}
+
+			batch.clear();
+		}
+
+		/**
+		 * Issues a hard commit, without opening a new searcher, so everything sent to the update chain so far is durable.
+		 *
+		 * @throws IOException in case of I/O failure.
+		 */
+		private void commit() throws IOException {
+			final CommitUpdateCommand commit = new CommitUpdateCommand(req, false);
+			commit.openSearcher = false;
+			processor.processCommit(commit);
+			committed = flushed;
+		}
+
+		/**
+		 * Accounts a record with a wrong length.
+		 *
+		 * @param buffer the buffer that holds the record.
+		 * @param start the (absolute) index of the record within the buffer.
+		 * @param length the record length.
+		 * @throws IOException in case of I/O failure.
+		 */
+		void skip(final ByteBuffer buffer, final int start, final int length) throws IOException {
+			skipped++;
+			skippedRecords.incrementAndGet();
+			if (rejects() != null) {
+				rejects.write(buffer, start, length);
+			}
+			checkErrors();
+		}
+
+		/**
+		 * Accounts a line with a wrong length.
+		 *
+		 * @param line the line.
+		 * @throws IOException in case of I/O failure.
+		 */
+		void skip(final String line) throws IOException {
+			skipped++;
+			skippedRecords.incrementAndGet();
+			if (rejects() != null) {
+				rejects.write(line);
+			}
+			checkErrors();
+		}
+
+		/**
+		 * Accounts a record that cannot be parsed.
+		 *
+		 * @param buffer the buffer that holds the record.
+		 * @param start the (absolute) index of the record within the buffer.
+		 * @param length the record length.
+		 * @param exception the parsing failure.
+		 * @throws IOException in case of I/O failure.
+		 */
+		void fail(final ByteBuffer buffer, final int start, final int length, final Exception exception) throws IOException {
+			failed(exception.getMessage());
+			if (rejects() != null) {
+				rejects.write(buffer, start, length);
+			}
+			checkErrors();
+		}
+
+		/**
+		 * Accounts a line that cannot be parsed.
+		 *
+		 * @param line the line.
+		 * @param exception the parsing failure.
+		 * @throws IOException in case of I/O failure.
+		 */
+		void fail(final String line, final Exception exception) throws IOException {
+			failed(exception.getMessage());
+			if (rejects() != null) {
+				rejects.write(line);
+			}
+			checkErrors();
+		}
+
+		/**
+		 * Increments the failure counters.
+		 *
+		 * @param message the failure message.
+		 */
+		private void failed(final String message) {
+			failed++;
+			failedRecords.incrementAndGet();
+			LOGGER.debug(message);
+		}
+
+		/**
+		 * Aborts the load if the number of rejected records exceeds the configured threshold.
+		 */
+		private void checkErrors() {
+			if (maxErrors >= 0 && skipped + failed > maxErrors) {
+				throw new SolrException(
+						ErrorCode.BAD_REQUEST,
+						"Flat data load aborted: " + (skipped + failed) + " rejected records (" + MAX_ERRORS_PARAM_NAME + " is " + maxErrors + ")");
+			}
+		}
+
+		/**
+		 * Returns the reject file, creating it on first use.
+		 *
+		 * @return the reject file, null if no reject file has been requested.
+		 * @throws IOException in case the reject file cannot be created.
+		 */
+		private RejectFile rejects() throws IOException {
+			if (rejects == null && rejectFile != null) {
+				rejects = new RejectFile(rejectFile, rejectMaxSize);
+			}
+			return rejects;
+		}
+
+		/**
+		 * Returns a view of the buffer content between its position and the given end.
+		 *
+		 * @param buffer the buffer.
+		 * @param end the (absolute, exclusive) end index.
+		 * @return a view of the buffer content between its position and the given end.
+		 */
+		private ByteBuffer slice(final ByteBuffer buffer, final int end) {
+			final ByteBuffer slice = buffer.duplicate();
+			slice.limit(end);
+			return slice.slice();
+		}
+
+		/**
+		 * Returns a copy of the buffer content between its position and the given end.
+		 *
+		 * @param buffer the buffer.
+		 * @param end the (absolute, exclusive) end index.
+		 * @return a copy of the buffer content between its position and the given end.
+		 */
+		private ByteBuffer copy(final ByteBuffer buffer, final int end) {
+			final byte [] bytes = new byte[end - buffer.position()];
+			buffer.duplicate().get(bytes);
+			return ByteBuffer.wrap(bytes);
+		}
 	}
 }
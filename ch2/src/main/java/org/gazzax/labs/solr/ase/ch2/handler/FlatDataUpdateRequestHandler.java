@@ -1,17 +1,81 @@
 package org.gazzax.labs.solr.ase.ch2.handler;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.UpdateRequestHandler;
 import org.apache.solr.handler.loader.ContentStreamLoader;
+import org.apache.solr.util.plugin.SolrCoreAware;
+
+public class FlatDataUpdateRequestHandler extends UpdateRequestHandler implements SolrCoreAware {
+	static final String PARSER_THREADS_PARAM_NAME = "parser-threads";
+	static final String REJECT_DIR_PARAM_NAME = "reject-dir";
+	static final String CHECKPOINT_DIR_PARAM_NAME = "checkpoint-dir";
+
+	private ExecutorService parsers;
+	private FlatDataLoader loader;
 
-public class FlatDataUpdateRequestHandler extends UpdateRequestHandler {
 	@SuppressWarnings("rawtypes")
 	protected Map<String,ContentStreamLoader> createDefaultLoaders(NamedList args) {
+		final SolrParams parameters = args != null ? SolrParams.toSolrParams(args) : null;
+		final int parserThreads = parameters != null
+				? parameters.getInt(PARSER_THREADS_PARAM_NAME, Runtime.getRuntime().availableProcessors())
+				: Runtime.getRuntime().availableProcessors();
+		final String rejectDirectory = parameters != null ? parameters.get(REJECT_DIR_PARAM_NAME) : null;
+		final String checkpointDirectory = parameters != null ? parameters.get(CHECKPOINT_DIR_PARAM_NAME) : null;
+		parsers = Executors.newFixedThreadPool(parserThreads, new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable task) {
+				final Thread thread = new Thread(task, "flat-data-parser-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		loader = new FlatDataLoader(
+				FlatRecordLayout.compile(args),
+				parsers,
+				parserThreads,
+				rejectDirectory != null ? new File(rejectDirectory) : null,
+				checkpointDirectory != null ? new File(checkpointDirectory) : null);
+
 		Map<String,ContentStreamLoader> registry = new HashMap<String,ContentStreamLoader>();
-	    registry.put("text/plain", new FlatDataLoader());
+	    registry.put("text/plain", loader);
+	    registry.put("application/gzip", loader);
+	    registry.put("application/x-gzip", loader);
 	    return registry;
 	}
+
+	@Override
+	public NamedList<Object> getStatistics() {
+		final NamedList<Object> statistics = super.getStatistics();
+		statistics.addAll(loader.getStatistics());
+		return statistics;
+	}
+
+	@Override
+	public void inform(final SolrCore core) {
+		core.addCloseHook(new CloseHook() {
+			@Override
+			public void preClose(final SolrCore core) {
+				parsers.shutdownNow();
+			}
+
+			@Override
+			public void postClose(final SolrCore core) {
+				// Nothing to be done here
+			}
+		});
+	}
 }
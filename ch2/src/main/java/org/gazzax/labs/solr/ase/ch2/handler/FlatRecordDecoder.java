@@ -0,0 +1,260 @@
+package org.gazzax.labs.solr.ase.ch2.handler;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Decodes a fixed-width record according with a {@link FlatRecordLayout}.
+ *
+ * The record is first decoded in a reusable character buffer, with the charset of the input stream: bytes of a single-byte
+ * charset are mapped through a lookup table, otherwise (e.g. UTF-8) a reusable {@link CharsetDecoder} is used, replacing
+ * malformed input like an {@link java.io.InputStreamReader} does. Record length and field ranges are always in characters,
+ * whatever the input mode. Then field boundaries and trimming are computed on that buffer, so each
+ * string value is materialized exactly once, while typed values (int, long, date) are parsed straight from
+ * the character range, without any intermediate string.
+ *
+ * Instances are not thread-safe, as they reuse an internal decoding buffer.
+ */
+class FlatRecordDecoder {
+	private final FlatRecordLayout layout;
+	private final char [] chars;
+	private final char [] singleByteTable;
+	private final CharsetDecoder charsetDecoder;
+	private final CharBuffer charBuffer;
+	private final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ROOT);
+	private final int [] dateParts = new int[6];
+
+	/**
+	 * Builds a new decoder for the given layout.
+	 *
+	 * @param layout the record layout.
+	 * @param charset the charset of the records (in bytes mode).
+	 */
+	FlatRecordDecoder(final FlatRecordLayout layout, final Charset charset) {
+		this.layout = layout;
+		
+		// One more character, so a record longer than the layout overflows the buffer
+		this.chars = new char[layout.recordLength + 1];
+		this.charBuffer = CharBuffer.wrap(chars);
+		this.calendar.setLenient(false);
+
+		if (isSingleByte(charset)) {
+			final byte [] bytes = new byte[256];
+			for (int value = 0; value < bytes.length; value++) {
+				bytes[value] = (byte) value;
+			}
+			final String decoded = new String(bytes, charset);
+			this.singleByteTable = decoded.length() == bytes.length ? decoded.toCharArray() : null;
+		} else {
+			this.singleByteTable = null;
+		}
+		
+		this.charsetDecoder = singleByteTable == null 
+				? charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE) 
+				: null;
+	}
+
+	/**
+	 * Returns true if the given charset encodes each character with exactly one byte.
+	 *
+	 * @param charset the charset.
+	 * @return true if the given charset encodes each character with exactly one byte.
+	 */
+	static boolean isSingleByte(final Charset charset) {
+		return charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1f;
+	}
+
+	/**
+	 * Decodes the record that starts at the given (absolute) index.
+	 *
+	 * @param buffer the buffer that holds the record.
+	 * @param offset the (absolute) index of the record within the buffer.
+	 * @param length the record length, in bytes.
+	 * @return a new {@link SolrInputDocument} with the record data, null if the decoded record doesn't have the layout length.
+	 */
+	SolrInputDocument decode(final ByteBuffer buffer, final int offset, final int length) {
+		if (singleByteTable != null) {
+			if (length != layout.recordLength) {
+				return null;
+			}
+			
+			for (int index = 0; index < length; index++) {
+				chars[index] = singleByteTable[buffer.get(offset + index) & 0xFF];
+			}
+			return decode();
+		}
+
+		// A character takes at least one byte
+		if (length < layout.recordLength) {
+			return null;
+		}
+		
+		final ByteBuffer input = buffer.duplicate();
+		input.limit(offset + length).position(offset);
+		charBuffer.clear();
+		charsetDecoder.reset();
+		CoderResult result = charsetDecoder.decode(input, charBuffer, true);
+		if (!result.isOverflow()) {
+			result = charsetDecoder.flush(charBuffer);
+		}
+		
+		if (result.isOverflow() || charBuffer.position() != layout.recordLength) {
+			return null;
+		}
+		return decode();
+	}
+
+	/**
+	 * Decodes the given record.
+	 *
+	 * @param record the record.
+	 * @return a new {@link SolrInputDocument} with the record data.
+	 */
+	SolrInputDocument decode(final String record) {
+		record.getChars(0, layout.recordLength, chars, 0);
+		return decode();
+	}
+
+	/**
+	 * Extracts the layout fields from the decoding buffer.
+	 *
+	 * @return a new {@link SolrInputDocument} with the record data.
+	 */
+	private SolrInputDocument decode() {
+		final SolrInputDocument document = new SolrInputDocument();
+		for (int i = 0; i < layout.names.length; i++) {
+			int from = layout.starts[i];
+			int to = layout.ends[i];
+			if (layout.trims[i] || layout.types[i] != FlatRecordLayout.Type.STRING) {
+				while (from < to && chars[from] <= ' ') {
+					from++;
+				}
+
+				while (to > from && chars[to - 1] <= ' ') {
+					to--;
+				}
+			}
+
+			switch (layout.types[i]) {
+				case STRING:
+					document.setField(layout.names[i], new String(chars, from, to - from));
+					break;
+				case INT:
+					if (from < to) {
+						document.setField(layout.names[i], (int) parseLong(i, from, to));
+					}
+					break;
+				case LONG:
+					if (from < to) {
+						document.setField(layout.names[i], parseLong(i, from, to));
+					}
+					break;
+				case DATE:
+					if (from < to) {
+						document.setField(layout.names[i], parseDate(i, from, to));
+					}
+					break;
+			}
+		}
+		return document;
+	}
+
+	/**
+	 * Parses a (signed) integer number from the given range.
+	 *
+	 * @param field the field index.
+	 * @param from the range start.
+	 * @param to the range end (exclusive).
+	 * @return the parsed number.
+	 */
+	private long parseLong(final int field, final int from, final int to) {
+		int index = from;
+		final boolean negative = chars[index] == '-';
+		if (negative || chars[index] == '+') {
+			index++;
+		}
+
+		if (index == to) {
+			throw invalid(field, from, to);
+		}
+
+		long value = 0;
+		for (; index < to; index++) {
+			final int digit = chars[index] - '0';
+			if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+				throw invalid(field, from, to);
+			}
+			value = value * 10 + digit;
+		}
+
+		if (layout.types[field] == FlatRecordLayout.Type.INT && (value > (long) Integer.MAX_VALUE + (negative ? 1 : 0))) {
+			throw invalid(field, from, to);
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses a date (yyyyMMdd or yyyyMMddHHmmss) from the given range.
+	 * Any non-digit character within the range is considered a separator and therefore ignored.
+	 *
+	 * @param field the field index.
+	 * @param from the range start.
+	 * @param to the range end (exclusive).
+	 * @return the parsed date.
+	 */
+	private Date parseDate(final int field, final int from, final int to) {
+		final int [] parts = dateParts;
+		Arrays.fill(parts, 0);
+
+		int digits = 0;
+		for (int index = from; index < to; index++) {
+			final int digit = chars[index] - '0';
+			if (digit >= 0 && digit <= 9) {
+				if (digits == 14) {
+					throw invalid(field, from, to);
+				}
+
+				// 4 digits for the year, then 2 digits for each other part
+				final int part = digits < 4 ? 0 : (digits - 4) / 2 + 1;
+				parts[part] = parts[part] * 10 + digit;
+				digits++;
+			}
+		}
+
+		if (digits != 8 && digits != 14) {
+			throw invalid(field, from, to);
+		}
+
+		calendar.clear();
+		calendar.set(parts[0], parts[1] - 1, parts[2], parts[3], parts[4], parts[5]);
+		try {
+			return calendar.getTime();
+		} catch (final IllegalArgumentException exception) {
+			throw invalid(field, from, to);
+		}
+	}
+
+	/**
+	 * Builds the exception thrown in case a typed value cannot be parsed.
+	 *
+	 * @param field the field index.
+	 * @param from the range start.
+	 * @param to the range end (exclusive).
+	 * @return the exception thrown in case a typed value cannot be parsed.
+	 */
+	private IllegalArgumentException invalid(final int field, final int from, final int to) {
+		return new IllegalArgumentException(
+				"Invalid " + layout.types[field].name().toLowerCase(Locale.ROOT) + " value \"" + new String(chars, from, to - from) + "\" for field " + layout.names[field]);
+	}
+}
@@ -0,0 +1,203 @@
+package org.gazzax.labs.solr.ase.ch2.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * The (compiled) layout of a fixed-width record.
+ *
+ * A layout is declared in the handler configuration, within a "layout" list that contains the record length
+ * and a list for each field (field name is the list name):
+ *
+ * <pre>
+	&lt;lst name="layout"&gt;
+		&lt;int name="record-length"&gt;111&lt;/int&gt;
+		&lt;lst name="id"&gt;
+			&lt;int name="start"&gt;0&lt;/int&gt;
+			&lt;int name="end"&gt;8&lt;/int&gt;
+			&lt;bool name="trim"&gt;false&lt;/bool&gt;
+		&lt;/lst&gt;
+		&lt;lst name="year"&gt;
+			&lt;int name="start"&gt;107&lt;/int&gt;
+			&lt;int name="end"&gt;111&lt;/int&gt;
+			&lt;str name="type"&gt;int&lt;/str&gt;
+		&lt;/lst&gt;
+		...
+	&lt;/lst&gt;
+ * </pre>
+ *
+ * "end" defaults to the record length, "trim" to true and "type" to "string". Available types are
+ * "string", "int", "long" and "date" (yyyyMMdd or yyyyMMddHHmmss, UTC, separators are ignored).
+ * The record length, if omitted, is the greatest field end.
+ *
+ * Fields are compiled in parallel arrays, so extracting a record is a plain loop without any lookup.
+ */
+class FlatRecordLayout {
+	static final String LAYOUT_PARAM_NAME = "layout";
+	static final String RECORD_LENGTH_PARAM_NAME = "record-length";
+
+	/**
+	 * Supported field types.
+	 */
+	enum Type {
+		STRING, INT, LONG, DATE
+	}
+
+	final int recordLength;
+	final String [] names;
+	final int [] starts;
+	final int [] ends;
+	final boolean [] trims;
+	final Type [] types;
+
+	/**
+	 * Builds a new layout with the given data.
+	 *
+	 * @param recordLength the record length.
+	 * @param names the field names.
+	 * @param starts the field starts.
+	 * @param ends the field ends (exclusive).
+	 * @param trims the field trim flags.
+	 * @param types the field types.
+	 */
+	private FlatRecordLayout(
+			final int recordLength,
+			final String [] names,
+			final int [] starts,
+			final int [] ends,
+			final boolean [] trims,
+			final Type [] types) {
+		this.recordLength = recordLength;
+		this.names = names;
+		this.starts = starts;
+		this.ends = ends;
+		this.trims = trims;
+		this.types = types;
+	}
+
+	/**
+	 * Returns the number of fields in this layout.
+	 *
+	 * @return the number of fields in this layout.
+	 */
+	int size() {
+		return names.length;
+	}
+
+	/**
+	 * Returns the layout of the example books feed (id, isbn, title, author), which is used when no layout is configured.
+	 *
+	 * @return the layout of the example books feed.
+	 */
+	static FlatRecordLayout defaultLayout() {
+		return new FlatRecordLayout(
+				107,
+				new String [] {"id", "isbn", "title", "author"},
+				new int [] {0, 8, 21, 65},
+				new int [] {8, 21, 65, 107},
+				new boolean [] {false, true, true, true},
+				new Type [] {Type.STRING, Type.STRING, Type.STRING, Type.STRING});
+	}
+
+	/**
+	 * Compiles the layout declared in the given configuration.
+	 *
+	 * @param args the handler configuration.
+	 * @return the compiled layout, or the default layout if the configuration doesn't declare a layout.
+	 */
+	@SuppressWarnings("rawtypes")
+	static FlatRecordLayout compile(final NamedList args) {
+		final Object layout = args != null ? args.get(LAYOUT_PARAM_NAME) : null;
+		if (layout == null) {
+			return defaultLayout();
+		}
+
+		if (!(layout instanceof NamedList)) {
+			throw new SolrException(ErrorCode.SERVER_ERROR, "Flat data layout must be a list of fields.");
+		}
+
+		// 1. Collect the field definitions
+		final NamedList definitions = (NamedList) layout;
+		final Object declaredLength = definitions.get(RECORD_LENGTH_PARAM_NAME);
+		int recordLength = declaredLength != null ? Integer.parseInt(String.valueOf(declaredLength)) : -1;
+
+		final List<String> names = new ArrayList<String>();
+		final List<NamedList> fields = new ArrayList<NamedList>();
+		for (int i = 0; i < definitions.size(); i++) {
+			final Object definition = definitions.getVal(i);
+			if (definition instanceof NamedList) {
+				names.add(definitions.getName(i));
+				fields.add((NamedList) definition);
+			}
+		}
+
+		if (names.isEmpty()) {
+			throw new SolrException(ErrorCode.SERVER_ERROR, "Flat data layout doesn't declare any field.");
+		}
+
+		// 2. Record length, if not declared, is the greatest field end
+		if (recordLength == -1) {
+			for (final NamedList field : fields) {
+				final Object end = field.get("end");
+				if (end == null) {
+					throw new SolrException(ErrorCode.SERVER_ERROR, "Flat data layout without record-length must declare the end of each field.");
+				}
+				recordLength = Math.max(recordLength, Integer.parseInt(String.valueOf(end)));
+			}
+		}
+
+		// 3. Compile the field definitions in parallel arrays
+		final int size = names.size();
+		final int [] starts = new int[size];
+		final int [] ends = new int[size];
+		final boolean [] trims = new boolean[size];
+		final Type [] types = new Type[size];
+		for (int i = 0; i < size; i++) {
+			final String name = names.get(i);
+			starts[i] = intValue(fields.get(i), "start", 0);
+			ends[i] = intValue(fields.get(i), "end", recordLength);
+			trims[i] = !"false".equals(stringValue(fields.get(i), "trim", "true"));
+			types[i] = type(name, stringValue(fields.get(i), "type", "string"));
+
+			if (starts[i] < 0 || ends[i] <= starts[i] || ends[i] > recordLength) {
+				throw new SolrException(
+						ErrorCode.SERVER_ERROR,
+						"Invalid range [" + starts[i] + ", " + ends[i] + ") for flat data field " + name + " (record length is " + recordLength + ")");
+			}
+		}
+
+		return new FlatRecordLayout(recordLength, names.toArray(new String[size]), starts, ends, trims, types);
+	}
+
+	/**
+	 * Returns the type with the given name.
+	 *
+	 * @param field the field name.
+	 * @param name the type name.
+	 * @return the type with the given name.
+	 */
+	private static Type type(final String field, final String name) {
+		try {
+			return Type.valueOf(name.toUpperCase(Locale.ROOT));
+		} catch (final IllegalArgumentException exception) {
+			throw new SolrException(ErrorCode.SERVER_ERROR, "Unknown type " + name + " for flat data field " + field);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static int intValue(final NamedList field, final String name, final int defaultValue) {
+		final Object value = field.get(name);
+		return value != null ? Integer.parseInt(String.valueOf(value)) : defaultValue;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static String stringValue(final NamedList field, final String name, final String defaultValue) {
+		final Object value = field.get(name);
+		return value != null ? String.valueOf(value) : defaultValue;
+	}
+}
@@ -0,0 +1,166 @@
+package org.gazzax.labs.solr.ase.ch2.handler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds record (i.e. line) boundaries directly within a {@link ByteBuffer}.
+ *
+ * The scanner works like an iterator: each successful call to {@link #next(ByteBuffer, boolean)}
+ * moves the buffer position after the record terminator and exposes the record start and length
+ * (without the terminator). Nothing is copied: the caller decodes the record in place.
+ *
+ * A buffer that is completely filled by a single unterminated line (e.g. a garbage line longer than the
+ * read buffer) is dropped, together with the rest of that line in the subsequent reads.
+ */
+class FlatRecordScanner {
+	private static final byte LF = '\n';
+	private static final byte CR = '\r';
+
+	private int start;
+	private int length;
+	private boolean discarding;
+
+	/**
+	 * Skips the remaining part of a dropped overlong line, if any.
+	 *
+	 * @param buffer the buffer, flipped for reading.
+	 * @param endOfInput true if the buffer contains the last chunk of the input.
+	 * @return true if the buffer is positioned at the beginning of a record.
+	 */
+	boolean skipDiscarded(final ByteBuffer buffer, final boolean endOfInput) {
+		if (!discarding) {
+			return true;
+		}
+
+		final int limit = buffer.limit();
+		for (int index = buffer.position(); index < limit; index++) {
+			if (buffer.get(index) == LF) {
+				buffer.position(index + 1);
+				discarding = false;
+				return true;
+			}
+		}
+
+		buffer.position(limit);
+		discarding = !endOfInput;
+		return false;
+	}
+
+	/**
+	 * Drops the content of a buffer filled by a single unterminated line.
+	 *
+	 * @param buffer the buffer, flipped for reading.
+	 */
+	void discard(final ByteBuffer buffer) {
+		buffer.position(buffer.limit());
+		discarding = true;
+	}
+
+	/**
+	 * Moves to the next complete record in the given buffer.
+	 *
+	 * @param buffer the buffer, flipped for reading.
+	 * @param endOfInput if true, trailing bytes without a terminator are considered as the last record.
+	 * @return true if a record has been found, false if the buffer doesn't contain a complete record.
+	 */
+	boolean next(final ByteBuffer buffer, final boolean endOfInput) {
+		while (buffer.hasRemaining()) {
+			final int from = buffer.position();
+			final int limit = buffer.limit();
+
+			// 1. Look for the line terminator
+			int index = from;
+			while (index < limit && buffer.get(index) != LF) {
+				index++;
+			}
+
+			// 2. No terminator: the record is incomplete unless we reached the end of the input
+			if (index == limit) {
+				if (discarding || (from == 0 && limit == buffer.capacity() && !endOfInput)) {
+					discarding = !endOfInput;
+					buffer.position(limit);
+					return false;
+				}
+
+				if (!endOfInput) {
+					return false;
+				}
+
+				buffer.position(limit);
+				return found(buffer, from, limit);
+			}
+
+			buffer.position(index + 1);
+
+			// 3. We were skipping an overlong line: the terminator marks its end
+			if (discarding) {
+				discarding = false;
+				continue;
+			}
+
+			return found(buffer, from, index);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the end of the partition that starts at the current buffer position.
+	 * The partition ends at a record boundary, possibly within the requested size.
+	 *
+	 * @param buffer the buffer, flipped for reading.
+	 * @param size the requested partition size, in bytes.
+	 * @param endOfInput if true, trailing bytes without a terminator are included in the last partition.
+	 * @return the (absolute, exclusive) end index of the partition, -1 if the buffer doesn't contain a complete record.
+	 */
+	static int partitionEnd(final ByteBuffer buffer, final int size, final boolean endOfInput) {
+		final int from = buffer.position();
+		final int limit = buffer.limit();
+		final int target = (int) Math.min((long) from + size, limit);
+
+		for (int index = target - 1; index >= from; index--) {
+			if (buffer.get(index) == LF) {
+				return index + 1;
+			}
+		}
+
+		for (int index = target; index < limit; index++) {
+			if (buffer.get(index) == LF) {
+				return index + 1;
+			}
+		}
+
+		return (endOfInput && from < limit) ? limit : -1;
+	}
+
+	/**
+	 * Returns the (absolute) index of the current record within the scanned buffer.
+	 *
+	 * @return the (absolute) index of the current record within the scanned buffer.
+	 */
+	int start() {
+		return start;
+	}
+
+	/**
+	 * Returns the length in bytes of the current record, line terminator excluded.
+	 *
+	 * @return the length in bytes of the current record, line terminator excluded.
+	 */
+	int length() {
+		return length;
+	}
+
+	/**
+	 * Sets the current record boundaries, removing a trailing carriage return, if present.
+	 *
+	 * @param buffer the scanned buffer.
+	 * @param from the record start index.
+	 * @param to the record end index (exclusive).
+	 * @return true.
+	 */
+	private boolean found(final ByteBuffer buffer, final int from, final int to) {
+		start = from;
+		length = (to > from && buffer.get(to - 1) == CR) ? to - from - 1 : to - from;
+		return true;
+	}
+}
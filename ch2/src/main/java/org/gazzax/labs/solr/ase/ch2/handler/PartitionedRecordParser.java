@@ -0,0 +1,179 @@
+package org.gazzax.labs.solr.ase.ch2.handler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Parses partitions (i.e. byte ranges made of complete records) on a worker pool.
+ * Records that cannot be parsed don't stop the partition parsing: they are collected, together with
+ * the decoded documents, in the parsed partition.
+ *
+ * The number of partitions in flight is bounded, so the caller (that is, the thread which reads the input and
+ * feeds the update chain) is forced to drain parsed partitions before submitting new ones.
+ * Parsed partitions are returned in submission order or, if ordering isn't required, as soon as they are available.
+ *
+ * Instances are meant to be used by a single (request) thread.
+ */
+class PartitionedRecordParser {
+	private final FlatRecordLayout layout;
+	private final Charset charset;
+	private final ExecutorService executor;
+	private final CompletionService<ParsedPartition> completionService;
+	private final Deque<Future<ParsedPartition>> pending = new ArrayDeque<Future<ParsedPartition>>();
+	private final int maxInFlight;
+	private final boolean ordered;
+
+	/**
+	 * Builds a new parser with the given data.
+	 *
+	 * @param layout the record layout.
+	 * @param charset the charset of the records.
+	 * @param executor the worker pool.
+	 * @param maxInFlight the maximum number of partitions that can be parsed concurrently.
+	 * @param ordered if true, partitions are returned in the same order they have been submitted.
+	 */
+	PartitionedRecordParser(final FlatRecordLayout layout, final Charset charset, final ExecutorService executor, final int maxInFlight, final boolean ordered) {
+		this.layout = layout;
+		this.charset = charset;
+		this.executor = executor;
+		this.completionService = new ExecutorCompletionService<ParsedPartition>(executor);
+		this.maxInFlight = maxInFlight;
+		this.ordered = ordered;
+	}
+
+	/**
+	 * Schedules the parsing of the given partition.
+	 * The partition buffer must contain only complete records and it must not be modified until it has been parsed.
+	 *
+	 * @param partition the partition.
+	 * @param end the input offset where the partition ends.
+	 */
+	void submit(final ByteBuffer partition, final long end) {
+		final Callable<ParsedPartition> task = new Callable<ParsedPartition>() {
+			@Override
+			public ParsedPartition call() throws Exception {
+				final FlatRecordScanner scanner = new FlatRecordScanner();
+				final FlatRecordDecoder decoder = new FlatRecordDecoder(layout, charset);
+				final ParsedPartition result = new ParsedPartition(partition.remaining() / (layout.recordLength + 1) + 1, end);
+				while (scanner.next(partition, true)) {
+					try {
+						final SolrInputDocument document = decoder.decode(partition, scanner.start(), scanner.length());
+						if (document == null) {
+							result.skipped.add(copy(partition, scanner.start(), scanner.length()));
+							continue;
+						}
+						result.documents.add(document);
+					} catch (final IllegalArgumentException exception) {
+						result.failed.add(copy(partition, scanner.start(), scanner.length()));
+						result.failures.add(exception.getMessage());
+					}
+				}
+				return result;
+			}
+		};
+
+		// Completed futures are queued by the completion service until taken, so it is used only when needed.
+		pending.addLast(ordered ? executor.submit(task) : completionService.submit(task));
+	}
+
+	/**
+	 * Returns true if no more partitions can be submitted before taking a parsed one.
+	 *
+	 * @return true if no more partitions can be submitted before taking a parsed one.
+	 */
+	boolean isFull() {
+		return pending.size() >= maxInFlight;
+	}
+
+	/**
+	 * Returns true if there are submitted partitions that haven't been taken yet.
+	 *
+	 * @return true if there are submitted partitions that haven't been taken yet.
+	 */
+	boolean hasPending() {
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * Waits for and returns the next parsed partition.
+	 *
+	 * @return the next parsed partition.
+	 * @throws IOException in case the partition parsing failed.
+	 * @throws InterruptedException if the current thread has been interrupted while waiting.
+	 */
+	ParsedPartition take() throws IOException, InterruptedException {
+		try {
+			if (ordered) {
+				return pending.removeFirst().get();
+			}
+
+			final Future<ParsedPartition> completed = completionService.take();
+			pending.remove(completed);
+			return completed.get();
+		} catch (final ExecutionException exception) {
+			throw new IOException(exception.getCause());
+		}
+	}
+
+	/**
+	 * Returns a copy of the given record.
+	 *
+	 * @param buffer the buffer that holds the record.
+	 * @param start the (absolute) index of the record within the buffer.
+	 * @param length the record length.
+	 * @return a copy of the given record.
+	 */
+	private static byte [] copy(final ByteBuffer buffer, final int start, final int length) {
+		final byte [] record = new byte[length];
+		for (int index = 0; index < length; index++) {
+			record[index] = buffer.get(start + index);
+		}
+		return record;
+	}
+
+	/**
+	 * Cancels all partitions that haven't been taken yet.
+	 */
+	void cancel() {
+		for (final Future<ParsedPartition> future : pending) {
+			future.cancel(true);
+		}
+		pending.clear();
+	}
+
+	/**
+	 * The outcome of a partition parsing: decoded documents and rejected records.
+	 * Rejected records are copied out of the partition, as they could be written in a reject file.
+	 */
+	static class ParsedPartition {
+		final List<SolrInputDocument> documents;
+		final List<byte []> skipped = new ArrayList<byte []>(0);
+		final List<byte []> failed = new ArrayList<byte []>(0);
+		final List<String> failures = new ArrayList<String>(0);
+		final long end;
+
+		/**
+		 * Builds a new (empty) parsed partition.
+		 *
+		 * @param expectedSize the expected number of documents.
+		 * @param end the input offset where the partition ends.
+		 */
+		ParsedPartition(final int expectedSize, final long end) {
+			this.documents = new ArrayList<SolrInputDocument>(expectedSize);
+			this.end = end;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package org.gazzax.labs.solr.ase.ch2.handler;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A bounded file where rejected records are streamed, one per line.
+ *
+ * Once the maximum size has been reached, subsequent records are no longer written and the file is marked as truncated.
+ * Records coming from the bytes path are written as they are, while lines coming from the reader path are encoded in UTF-8.
+ */
+class RejectFile implements Closeable {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int LF = '\n';
+
+	private final File file;
+	private final OutputStream out;
+	private final long maxSize;
+	private long size;
+	private boolean truncated;
+
+	/**
+	 * Creates (or overwrites) a reject file.
+	 *
+	 * @param file the reject file.
+	 * @param maxSize the maximum size, in bytes, of the reject file.
+	 * @throws IOException in case the file cannot be created.
+	 */
+	RejectFile(final File file, final long maxSize) throws IOException {
+		final File directory = file.getParentFile();
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create the reject directory " + directory);
+		}
+
+		this.file = file;
+		this.maxSize = maxSize;
+		this.out = new BufferedOutputStream(new FileOutputStream(file));
+	}
+
+	/**
+	 * Writes a rejected record.
+	 *
+	 * @param buffer the buffer that holds the record.
+	 * @param start the (absolute) index of the record within the buffer.
+	 * @param length the record length.
+	 * @throws IOException in case of I/O failure.
+	 */
+	void write(final ByteBuffer buffer, final int start, final int length) throws IOException {
+		if (fits(length)) {
+			for (int index = start; index < start + length; index++) {
+				out.write(buffer.get(index));
+			}
+			out.write(LF);
+		}
+	}
+
+	/**
+	 * Writes a rejected record.
+	 *
+	 * @param record the record bytes.
+	 * @throws IOException in case of I/O failure.
+	 */
+	void write(final byte [] record) throws IOException {
+		if (fits(record.length)) {
+			out.write(record);
+			out.write(LF);
+		}
+	}
+
+	/**
+	 * Writes a rejected line.
+	 *
+	 * @param line the line.
+	 * @throws IOException in case of I/O failure.
+	 */
+	void write(final String line) throws IOException {
+		write(line.getBytes(UTF_8));
+	}
+
+	/**
+	 * Returns the reject file.
+	 *
+	 * @return the reject file.
+	 */
+	File file() {
+		return file;
+	}
+
+	/**
+	 * Returns true if one or more records haven't been written because the maximum size has been reached.
+	 *
+	 * @return true if one or more records haven't been written because the maximum size has been reached.
+	 */
+	boolean isTruncated() {
+		return truncated;
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Checks if a record with the given length can still be written.
+	 *
+	 * @param length the record length.
+	 * @return true if a record with the given length can still be written.
+	 */
+	private boolean fits(final int length) {
+		if (truncated || size + length + 1 > maxSize) {
+			truncated = true;
+			return false;
+		}
+
+		size += length + 1;
+		return true;
+	}
+}
@@ -21,20 +21,24 @@ public class AddCoordinatesUpdateRequestProcessor extends UpdateRequestProcessor
 	private final static Logger LOGGER = LoggerFactory.getLogger(AddCoordinatesUpdateRequestProcessor.class);
 	private final int sleepTimeInMsecs;
 	private final GoogleGeoLocationService service;
+	private final CoordinatesCache cache;
 	
 	/**
 	 * Builds a new {@link UpdateRequestProcessor} with the given data.
 	 * 
 	 * @param service the geolocation service provider.
+	 * @param cache the coordinates cache, null if coordinates are not cached.
 	 * @param sleepTimeInMsecs the pause time between each geolocation request.
 	 */
-	public AddCoordinatesUpdateRequestProcessor(
+	AddCoordinatesUpdateRequestProcessor(
 			final GoogleGeoLocationService service,
+			final CoordinatesCache cache,
 			final int sleepTimeInMsecs,
 			final UpdateRequestProcessor next) {
 		super(next);
 		this.sleepTimeInMsecs = sleepTimeInMsecs;
 		this.service = service;
+		this.cache = cache;
 	}
 
 	@Override
@@ -44,19 +48,29 @@ public class AddCoordinatesUpdateRequestProcessor extends UpdateRequestProcessor
 		if (address != null && address.trim().length() !=  0) {
 			try {
 				final String id = String.valueOf(document.getFieldValue("id"));
-				final String coordinates = service.getCoordinates(id, address);
+				final String cached = cache != null ? cache.get(address) : null;
+				final String coordinates = cached != null ? cached : service.getCoordinates(id, address);
 				if (coordinates != null && coordinates.trim().length() != 0) {
 					document.addField("coordinates", coordinates);
 				} else {
 					LOGGER.error("Document " + id + "  with address \"" + address+" \" hasn't been translated (null address)");
 				}
 			
-				sleep();
+				// A cache hit doesn't call the service, so there's no need to wait
+				if (cached == null) {
+					if (cache != null) {
+						cache.put(address, coordinates);
+					}
+					sleep();
+				}
+			} catch (final GoogleGeoLocationService.UnavailableServiceException exception) {
+				// The circuit is open: the rejection has been already counted by the service
+				LOGGER.debug(exception.getMessage());
 			} catch (final Exception exception) {
 				LOGGER.error("Unable to get coordinates for "+ document, exception);
 			}
-			super.processAdd(command);			
 		}
+		super.processAdd(command);			
 	}
 	
 	/**
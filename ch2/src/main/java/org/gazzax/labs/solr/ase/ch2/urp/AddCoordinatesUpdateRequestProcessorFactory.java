@@ -1,42 +1,197 @@
 package org.gazzax.labs.solr.ase.ch2.urp;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
 import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * An {@link UpdateRequestProcessor} that uses the value of an address field (in the incoming documents) for 
+ * An {@link UpdateRequestProcessor} that uses the value of an address field (in the incoming documents) for
  * obtaining the corresponding longitude and latitude.
- * 
- * The processor uses Google Maps API to retrieve the coordinates. Since Google stops rapid and subsequent requests coming from 
+ *
+ * The processor uses Google Maps API to retrieve the coordinates. Since Google stops rapid and subsequent requests coming from
  * the same IP this processor accepts a "sleep-time" parameter which represents a "sleep" time in msecs between one requests
- * 
+ *
+ * With "async" set to true, geolocation requests are executed by a pool of "threads" workers and limited to "rate" requests
+ * per second (with bursts up to "burst" requests) instead of sleeping between them. The default rate is the one implied by
+ * the sleep time, while at most "max-pending" documents per request wait for their coordinates.
+ * The "service-url" parameter overrides the geocoding endpoint (e.g. for pointing to a local stub), while connection pool,
+ * timeouts and circuit breaker are configured as described in {@link GoogleGeoLocationService#init(SolrParams)}.
+ * When the circuit is open, documents are indexed without coordinates.
+ *
+ * Coordinates are cached (unless "cache" is false) in memory, up to "cache-size" addresses, and on disk, in "cache-dir"
+ * (by default the "geocoding" folder in the core data directory). A cache hit never waits for the rate limit.
+ * Cache and service statistics (including latency percentiles) are exposed through the {@link SolrInfoMBean} interface.
+ *
  * @author Andrea Gazzarini
  */
-public class AddCoordinatesUpdateRequestProcessorFactory extends UpdateRequestProcessorFactory {
+public class AddCoordinatesUpdateRequestProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware, SolrInfoMBean {
+	private final static Logger LOGGER = LoggerFactory.getLogger(AddCoordinatesUpdateRequestProcessorFactory.class);
+
 	static final String SLEEP_TIME_PARAM_NAME = "sleep-time";
 	static final int DEFAULT_SLEEP_TIME = 1000;
+	static final String ASYNC_PARAM_NAME = "async";
+	static final String THREADS_PARAM_NAME = "threads";
+	static final int DEFAULT_THREADS = 4;
+	static final String RATE_PARAM_NAME = "rate";
+	static final String BURST_PARAM_NAME = "burst";
+	static final int DEFAULT_BURST = 1;
+	static final String MAX_PENDING_PARAM_NAME = "max-pending";
+	static final int DEFAULT_MAX_PENDING = 100;
+	static final String SERVICE_URL_PARAM_NAME = "service-url";
+	static final String CACHE_PARAM_NAME = "cache";
+	static final String CACHE_SIZE_PARAM_NAME = "cache-size";
+	static final int DEFAULT_CACHE_SIZE = 10000;
+	static final String CACHE_DIR_PARAM_NAME = "cache-dir";
 
 	int sleepTimeInMsecs = DEFAULT_SLEEP_TIME;
-	
+
 	GoogleGeoLocationService service;
-	
+
+	boolean async;
+	int maxPendingDocuments = DEFAULT_MAX_PENDING;
+	ExecutorService executor;
+	TokenBucket rateLimiter;
+
+	boolean cacheEnabled;
+	int cacheSize = DEFAULT_CACHE_SIZE;
+	String cacheDirectory;
+	CoordinatesCache cache;
+
 	@Override
 	public UpdateRequestProcessor getInstance(
-			final SolrQueryRequest request, 
-			final SolrQueryResponse response, 
+			final SolrQueryRequest request,
+			final SolrQueryResponse response,
 			final UpdateRequestProcessor next) {
-		return new AddCoordinatesUpdateRequestProcessor(service, sleepTimeInMsecs, next);
+		return async
+				? new AsyncAddCoordinatesUpdateRequestProcessor(service, cache, executor, rateLimiter, maxPendingDocuments, request, next)
+				: new AddCoordinatesUpdateRequestProcessor(service, cache, sleepTimeInMsecs, next);
 	}
-	
+
 	@SuppressWarnings({ "rawtypes"})
 	@Override
 	public void init(final NamedList args) {
-		sleepTimeInMsecs = SolrParams.toSolrParams(args).getInt(SLEEP_TIME_PARAM_NAME, DEFAULT_SLEEP_TIME);
-		service = new GoogleGeoLocationService();
-		service.init();
+		final SolrParams parameters = SolrParams.toSolrParams(args);
+		sleepTimeInMsecs = parameters.getInt(SLEEP_TIME_PARAM_NAME, DEFAULT_SLEEP_TIME);
+		service = new GoogleGeoLocationService(parameters.get(SERVICE_URL_PARAM_NAME, GoogleGeoLocationService.DEFAULT_URL));
+		service.init(parameters);
+
+		cacheEnabled = parameters.getBool(CACHE_PARAM_NAME, true);
+		cacheSize = parameters.getInt(CACHE_SIZE_PARAM_NAME, DEFAULT_CACHE_SIZE);
+		cacheDirectory = parameters.get(CACHE_DIR_PARAM_NAME);
+
+		async = parameters.getBool(ASYNC_PARAM_NAME, false);
+		if (async) {
+			maxPendingDocuments = Math.max(1, parameters.getInt(MAX_PENDING_PARAM_NAME, DEFAULT_MAX_PENDING));
+
+			final double rate = parameters.getDouble(RATE_PARAM_NAME, sleepTimeInMsecs > 0 ? 1000d / sleepTimeInMsecs : 0);
+			rateLimiter = rate > 0 ? new TokenBucket(rate, parameters.getInt(BURST_PARAM_NAME, DEFAULT_BURST)) : null;
+
+			executor = Executors.newFixedThreadPool(parameters.getInt(THREADS_PARAM_NAME, DEFAULT_THREADS), new ThreadFactory() {
+				private final AtomicInteger counter = new AtomicInteger();
+
+				@Override
+				public Thread newThread(final Runnable task) {
+					final Thread thread = new Thread(task, "geolocation-" + counter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	@Override
+	public void inform(final SolrCore core) {
+		if (cacheEnabled) {
+			final File directory = cacheDirectory != null ? new File(cacheDirectory) : new File(core.getDataDir(), "geocoding");
+			try {
+				cache = new CoordinatesCache(cacheSize, directory);
+			} catch (final IOException exception) {
+				LOGGER.error("Unable to open the coordinates cache in " + directory + ": only the in-memory cache will be used.", exception);
+				try {
+					cache = new CoordinatesCache(cacheSize, null);
+				} catch (final IOException impossible) {
+					// Nothing to be done here: a memory-only cache doesn't do any I/O
+				}
+			}
+		}
+
+		core.addCloseHook(new CloseHook() {
+			@Override
+			public void preClose(final SolrCore core) {
+				if (executor != null) {
+					executor.shutdownNow();
+				}
+			}
+
+			@Override
+			public void postClose(final SolrCore core) {
+				service.shutdown();
+				if (cache != null) {
+					try {
+						cache.close();
+					} catch (final IOException exception) {
+						LOGGER.error("Unable to close the coordinates cache.", exception);
+					}
+				}
+			}
+		});
+	}
+
+	@Override
+	public String getName() {
+		return getClass().getName();
+	}
+
+	@Override
+	public String getVersion() {
+		return "1.0";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Adds coordinates to documents with an address";
+	}
+
+	@Override
+	public Category getCategory() {
+		return Category.UPDATEHANDLER;
+	}
+
+	@Override
+	public String getSource() {
+		return null;
+	}
+
+	@Override
+	public URL[] getDocs() {
+		return null;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public NamedList getStatistics() {
+		final NamedList<Object> statistics = new NamedList<Object>();
+		if (cache != null) {
+			statistics.addAll(cache.getStatistics());
+		}
+		statistics.addAll(service.getStatistics());
+		return statistics;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,229 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.MergeIndexesCommand;
+import org.apache.solr.update.RollbackUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The asynchronous version of {@link AddCoordinatesUpdateRequestProcessor}.
+ *
+ * Geolocation requests are executed by a (shared) worker pool, while a {@link TokenBucket} (shared as well) replaces
+ * the fixed sleep between requests. Documents are forwarded to the next processor by the request thread, in the same order
+ * they have been received, as soon as their coordinates come back. The number of documents waiting for coordinates is bounded:
+ * once reached, the request thread waits for the oldest lookup. Documents whose address is cached don't wait at all.
+ *
+ * Pending documents are always forwarded before any other command (delete, commit, rollback, merge) and on {@link #finish()}.
+ */
+public class AsyncAddCoordinatesUpdateRequestProcessor extends UpdateRequestProcessor {
+	private final static Logger LOGGER = LoggerFactory.getLogger(AsyncAddCoordinatesUpdateRequestProcessor.class);
+
+	private final GoogleGeoLocationService service;
+	private final CoordinatesCache cache;
+	private final ExecutorService executor;
+	private final TokenBucket rateLimiter;
+	private final int maxPendingDocuments;
+	private final SolrQueryRequest request;
+
+	private final Deque<PendingDocument> pending = new ArrayDeque<PendingDocument>();
+
+	/**
+	 * A document waiting for its coordinates.
+	 */
+	private static class PendingDocument {
+		final AddUpdateCommand command;
+		final Future<String> coordinates;
+
+		/**
+		 * Builds a new pending document.
+		 *
+		 * @param command the add command.
+		 * @param coordinates the geolocation request, null if the document doesn't have an address.
+		 */
+		PendingDocument(final AddUpdateCommand command, final Future<String> coordinates) {
+			this.command = command;
+			this.coordinates = coordinates;
+		}
+	}
+
+	/**
+	 * Builds a new {@link UpdateRequestProcessor} with the given data.
+	 *
+	 * @param service the geolocation service provider.
+	 * @param cache the coordinates cache, null if coordinates are not cached.
+	 * @param executor the worker pool that executes the geolocation requests.
+	 * @param rateLimiter the rate limiter of the geolocation requests, null if requests are not limited.
+	 * @param maxPendingDocuments the maximum number of documents waiting for their coordinates.
+	 * @param request the current request.
+	 * @param next the next processor in the chain.
+	 */
+	AsyncAddCoordinatesUpdateRequestProcessor(
+			final GoogleGeoLocationService service,
+			final CoordinatesCache cache,
+			final ExecutorService executor,
+			final TokenBucket rateLimiter,
+			final int maxPendingDocuments,
+			final SolrQueryRequest request,
+			final UpdateRequestProcessor next) {
+		super(next);
+		this.service = service;
+		this.cache = cache;
+		this.executor = executor;
+		this.rateLimiter = rateLimiter;
+		this.maxPendingDocuments = maxPendingDocuments;
+		this.request = request;
+	}
+
+	@Override
+	public void processAdd(final AddUpdateCommand command) throws IOException {
+		final SolrInputDocument document = command.getSolrInputDocument();
+
+		// 1. The caller may reuse the command, so the pending document needs its own copy
+		final AddUpdateCommand copy = copy(command);
+
+		// 2. Schedule the geolocation request, unless the coordinates are cached (in that case the document is immediately ready)
+		final String address = (String) document.getFieldValue("address");
+		final String cached = address != null && address.trim().length() != 0 && cache != null ? cache.get(address) : null;
+		Future<String> coordinates = null;
+		if (cached != null) {
+			document.addField("coordinates", cached);
+		} else if (address != null && address.trim().length() != 0) {
+			final String id = String.valueOf(document.getFieldValue("id"));
+			coordinates = executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					// While the circuit is open the request fails fast, so there's no need to wait for a token
+					if (rateLimiter != null && service.isAvailable()) {
+						rateLimiter.acquire();
+					}
+
+					final String result = service.getCoordinates(id, address);
+					if (cache != null) {
+						cache.put(address, result);
+					}
+					return result;
+				}
+			});
+		}
+		pending.addLast(new PendingDocument(copy, coordinates));
+
+		// 3. Forward the documents whose coordinates are already there, waiting for the oldest if too many are pending
+		while (!pending.isEmpty() && (pending.size() > maxPendingDocuments || isDone(pending.peekFirst()))) {
+			forward(pending.removeFirst());
+		}
+	}
+
+	@Override
+	public void processDelete(final DeleteUpdateCommand command) throws IOException {
+		flush();
+		super.processDelete(command);
+	}
+
+	@Override
+	public void processCommit(final CommitUpdateCommand command) throws IOException {
+		flush();
+		super.processCommit(command);
+	}
+
+	@Override
+	public void processRollback(final RollbackUpdateCommand command) throws IOException {
+		flush();
+		super.processRollback(command);
+	}
+
+	@Override
+	public void processMergeIndexes(final MergeIndexesCommand command) throws IOException {
+		flush();
+		super.processMergeIndexes(command);
+	}
+
+	@Override
+	public void finish() throws IOException {
+		flush();
+		super.finish();
+	}
+
+	/**
+	 * Forwards all pending documents, waiting for their coordinates.
+	 *
+	 * @throws IOException in case of I/O failure in the next processors.
+	 */
+	private void flush() throws IOException {
+		while (!pending.isEmpty()) {
+			forward(pending.removeFirst());
+		}
+	}
+
+	/**
+	 * Returns a copy of the given command, with all its attributes (the indexed id is not copied, as it is derived from the document).
+	 *
+	 * @param command the add command.
+	 * @return a copy of the given command.
+	 */
+	private AddUpdateCommand copy(final AddUpdateCommand command) {
+		final AddUpdateCommand copy = new AddUpdateCommand(request);
+		copy.solrDoc = command.solrDoc;
+		copy.updateTerm = command.updateTerm;
+		copy.overwrite = command.overwrite;
+		copy.commitWithin = command.commitWithin;
+		copy.setVersion(command.getVersion());
+		copy.setFlags(command.getFlags());
+		return copy;
+	}
+
+	/**
+	 * Returns true if the given document can be forwarded without waiting.
+	 *
+	 * @param document the pending document.
+	 * @return true if the given document can be forwarded without waiting.
+	 */
+	private boolean isDone(final PendingDocument document) {
+		return document.coordinates == null || document.coordinates.isDone();
+	}
+
+	/**
+	 * Adds the coordinates to the given document (waiting for them, if needed) and forwards it to the next processor.
+	 * A document whose coordinates cannot be retrieved is forwarded without coordinates.
+	 *
+	 * @param document the pending document.
+	 * @throws IOException in case of I/O failure in the next processors.
+	 */
+	private void forward(final PendingDocument document) throws IOException {
+		final SolrInputDocument solrDocument = document.command.getSolrInputDocument();
+		if (document.coordinates != null) {
+			try {
+				final String coordinates = document.coordinates.get();
+				if (coordinates != null && coordinates.trim().length() != 0) {
+					solrDocument.addField("coordinates", coordinates);
+				} else {
+					LOGGER.error("Document " + solrDocument.getFieldValue("id") + "  with address \"" + solrDocument.getFieldValue("address") + " \" hasn't been translated (null address)");
+				}
+			} catch (final ExecutionException exception) {
+				if (exception.getCause() instanceof GoogleGeoLocationService.UnavailableServiceException) {
+					// The circuit is open: the rejection has been already counted by the service
+					LOGGER.debug(exception.getCause().getMessage());
+				} else {
+					LOGGER.error("Unable to get coordinates for " + solrDocument, exception.getCause());
+				}
+			} catch (final InterruptedException exception) {
+				Thread.currentThread().interrupt();
+				throw new IOException(exception);
+			}
+		}
+		super.processAdd(document.command);
+	}
+}
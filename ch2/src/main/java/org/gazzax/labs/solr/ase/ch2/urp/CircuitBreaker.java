@@ -0,0 +1,133 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A circuit breaker in front of a remote service.
+ *
+ * The circuit opens after a given number of consecutive failures: while open, requests are rejected without calling the service.
+ * Once the open time has elapsed, a single (trial) request is let through: if it succeeds the circuit closes, otherwise it opens again.
+ * State transitions are logged once (with the number of requests rejected while the circuit was open), not for each rejected request.
+ *
+ * Instances are thread-safe.
+ */
+class CircuitBreaker {
+	private final static Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	/**
+	 * The circuit states.
+	 */
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openTimeInMsecs;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+	private long rejected;
+	private long rejectedSinceOpened;
+	private long trips;
+
+	/**
+	 * Builds a new (closed) circuit breaker.
+	 *
+	 * @param failureThreshold the number of consecutive failures that opens the circuit.
+	 * @param openTimeInMsecs how long the circuit stays open before letting a trial request through.
+	 */
+	CircuitBreaker(final int failureThreshold, final long openTimeInMsecs) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openTimeInMsecs = openTimeInMsecs;
+	}
+
+	/**
+	 * Returns true if a request can be sent to the service.
+	 * A caller which gets true must report the outcome of the request through {@link #onSuccess()} or {@link #onFailure()}.
+	 *
+	 * @return true if a request can be sent to the service.
+	 */
+	synchronized boolean allowRequest() {
+		switch (state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				if (System.currentTimeMillis() - openedAt >= openTimeInMsecs) {
+					state = State.HALF_OPEN;
+					return true;
+				}
+				break;
+			default:
+				// Half open: the trial request is still running
+				break;
+		}
+		rejected++;
+		rejectedSinceOpened++;
+		return false;
+	}
+
+	/**
+	 * Returns true if the circuit is open, that is, requests would be rejected.
+	 *
+	 * @return true if the circuit is open.
+	 */
+	synchronized boolean isOpen() {
+		return state == State.HALF_OPEN || (state == State.OPEN && System.currentTimeMillis() - openedAt < openTimeInMsecs);
+	}
+
+	/**
+	 * Records a successful request.
+	 */
+	synchronized void onSuccess() {
+		consecutiveFailures = 0;
+		if (state != State.CLOSED) {
+			LOGGER.info("Circuit closed: " + rejectedSinceOpened + " requests have been rejected while it was open.");
+		}
+		state = State.CLOSED;
+	}
+
+	/**
+	 * Records a failed request.
+	 */
+	synchronized void onFailure() {
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+			if (state == State.CLOSED) {
+				LOGGER.error("Circuit opened after " + consecutiveFailures + " consecutive failures: requests will be rejected for " + openTimeInMsecs + " msecs.");
+				rejectedSinceOpened = 0;
+			}
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			trips++;
+		}
+	}
+
+	/**
+	 * Returns the current state of the circuit.
+	 *
+	 * @return the current state of the circuit.
+	 */
+	synchronized State state() {
+		return state;
+	}
+
+	/**
+	 * Returns the number of requests rejected because the circuit was open.
+	 *
+	 * @return the number of requests rejected because the circuit was open.
+	 */
+	synchronized long rejected() {
+		return rejected;
+	}
+
+	/**
+	 * Returns how many times the circuit has been opened.
+	 *
+	 * @return how many times the circuit has been opened.
+	 */
+	synchronized long trips() {
+		return trips;
+	}
+}
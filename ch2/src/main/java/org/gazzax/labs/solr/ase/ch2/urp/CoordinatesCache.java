@@ -0,0 +1,157 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A two-tier address / coordinates cache.
+ *
+ * The first tier is a bounded, in-memory LRU map, the second is a {@link CoordinatesLog} which survives core reloads.
+ * Addresses are normalised (trimmed, lowercased, with whitespaces collapsed) before being used as keys, and only
+ * successful lookups are cached.
+ *
+ * Instances are thread-safe.
+ */
+class CoordinatesCache implements Closeable {
+	private final static Logger LOGGER = LoggerFactory.getLogger(CoordinatesCache.class);
+
+	private final Map<String, String> memory;
+	private final CoordinatesLog disk;
+
+	private final AtomicLong memoryHits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Builds a new cache with the given data.
+	 *
+	 * @param memorySize the maximum number of entries of the in-memory tier.
+	 * @param directory the directory of the on-disk tier, null if the cache is memory only.
+	 * @throws IOException in case the on-disk tier cannot be opened.
+	 */
+	@SuppressWarnings("serial")
+	CoordinatesCache(final int memorySize, final File directory) throws IOException {
+		this.memory = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+				return size() > memorySize;
+			}
+		};
+		this.disk = directory != null ? new CoordinatesLog(directory) : null;
+	}
+
+	/**
+	 * Returns the cached coordinates of the given address.
+	 *
+	 * @param address the address.
+	 * @return the cached coordinates of the given address, null in case of cache miss.
+	 */
+	String get(final String address) {
+		final String key = normalise(address);
+		String coordinates;
+		synchronized (memory) {
+			coordinates = memory.get(key);
+		}
+
+		if (coordinates != null) {
+			memoryHits.incrementAndGet();
+			return coordinates;
+		}
+
+		if (disk != null) {
+			try {
+				coordinates = disk.get(key);
+			} catch (final IOException exception) {
+				LOGGER.error("Unable to read from the coordinates cache " + disk.file(), exception);
+			}
+
+			if (coordinates != null) {
+				diskHits.incrementAndGet();
+				synchronized (memory) {
+					memory.put(key, coordinates);
+				}
+				return coordinates;
+			}
+		}
+
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Caches the coordinates of the given address.
+	 *
+	 * @param address the address.
+	 * @param coordinates the coordinates.
+	 */
+	void put(final String address, final String coordinates) {
+		if (coordinates == null || coordinates.trim().length() == 0) {
+			return;
+		}
+
+		final String key = normalise(address);
+		synchronized (memory) {
+			memory.put(key, coordinates);
+		}
+
+		if (disk != null) {
+			try {
+				disk.put(key, coordinates);
+			} catch (final IOException exception) {
+				LOGGER.error("Unable to write in the coordinates cache " + disk.file(), exception);
+			}
+		}
+	}
+
+	/**
+	 * Returns the statistics of this cache.
+	 *
+	 * @return the statistics of this cache.
+	 */
+	NamedList<Object> getStatistics() {
+		final long memoryHitCount = memoryHits.get();
+		final long diskHitCount = diskHits.get();
+		final long lookups = memoryHitCount + diskHitCount + misses.get();
+
+		final NamedList<Object> statistics = new SimpleOrderedMap<Object>();
+		statistics.add("lookups", lookups);
+		statistics.add("memoryHits", memoryHitCount);
+		statistics.add("diskHits", diskHitCount);
+		statistics.add("misses", misses.get());
+		statistics.add("hitRatio", lookups != 0 ? (double) (memoryHitCount + diskHitCount) / lookups : 0d);
+		synchronized (memory) {
+			statistics.add("memorySize", memory.size());
+		}
+		if (disk != null) {
+			statistics.add("diskSize", disk.size());
+		}
+		return statistics;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (disk != null) {
+			disk.close();
+		}
+	}
+
+	/**
+	 * Normalises the given address.
+	 *
+	 * @param address the address.
+	 * @return the normalised address.
+	 */
+	static String normalise(final String address) {
+		return address.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,165 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An append-only, on-disk store of address / coordinates pairs.
+ *
+ * Each pair is a line ("address TAB coordinates LF", UTF-8) appended at the end of the log. When the log is opened,
+ * its content is scanned once in order to build an index with the position of each value, so only keys are kept in memory
+ * while values are read from the file on demand. A trailing partial line (e.g. after a crash) is truncated.
+ *
+ * Instances are thread-safe.
+ */
+class CoordinatesLog implements Closeable {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final byte TAB = '\t';
+	private static final byte LF = '\n';
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	// Values are short (lat,lng), so the index packs the value position and length in a long: (position << 8) | length
+	private static final int MAX_VALUE_LENGTH = 0xFF;
+
+	private final File file;
+	private final FileChannel channel;
+	private final Map<String, Long> index = new HashMap<String, Long>();
+
+	/**
+	 * Opens (or creates) the log in the given directory.
+	 *
+	 * @param directory the log directory.
+	 * @throws IOException in case the log cannot be opened.
+	 */
+	CoordinatesLog(final File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create the coordinates cache directory " + directory);
+		}
+
+		this.file = new File(directory, "coordinates.log");
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		channel.truncate(load());
+		channel.position(channel.size());
+	}
+
+	/**
+	 * Returns the coordinates associated with the given address.
+	 *
+	 * @param address the (normalised) address.
+	 * @return the coordinates associated with the given address, null if the log doesn't contain the address.
+	 * @throws IOException in case of I/O failure.
+	 */
+	synchronized String get(final String address) throws IOException {
+		final Long entry = index.get(address);
+		if (entry == null) {
+			return null;
+		}
+
+		final ByteBuffer value = ByteBuffer.allocate((int) (entry & MAX_VALUE_LENGTH));
+		final long position = entry >>> 8;
+		while (value.hasRemaining() && channel.read(value, position + value.position()) > 0) {
+			// Keep reading until the value is complete
+		}
+		return new String(value.array(), 0, value.position(), UTF_8);
+	}
+
+	/**
+	 * Appends the given pair to the log.
+	 * Values longer than 255 bytes are not stored.
+	 *
+	 * @param address the (normalised) address.
+	 * @param coordinates the coordinates.
+	 * @throws IOException in case of I/O failure.
+	 */
+	synchronized void put(final String address, final String coordinates) throws IOException {
+		final byte [] key = address.getBytes(UTF_8);
+		final byte [] value = coordinates.getBytes(UTF_8);
+		if (value.length > MAX_VALUE_LENGTH || index.containsKey(address)) {
+			return;
+		}
+
+		final long position = channel.size();
+		final ByteBuffer record = ByteBuffer.allocate(key.length + value.length + 2);
+		record.put(key).put(TAB).put(value).put(LF);
+		record.flip();
+		while (record.hasRemaining()) {
+			channel.write(record, position + record.position());
+		}
+		index.put(address, ((position + key.length + 1) << 8) | value.length);
+	}
+
+	/**
+	 * Returns the number of pairs in this log.
+	 *
+	 * @return the number of pairs in this log.
+	 */
+	synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Returns the log file.
+	 *
+	 * @return the log file.
+	 */
+	File file() {
+		return file;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Scans the log and builds the index.
+	 *
+	 * @return the position after the last complete line.
+	 * @throws IOException in case of I/O failure.
+	 */
+	private long load() throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		long base = 0;
+		boolean endOfInput = false;
+		while (!endOfInput) {
+			while (buffer.hasRemaining() && !endOfInput) {
+				endOfInput = channel.read(buffer, base + buffer.position()) == -1;
+			}
+			buffer.flip();
+
+			// 1. Index all complete lines in the buffer
+			int lineStart = 0;
+			int separator = -1;
+			for (int i = 0; i < buffer.limit(); i++) {
+				final byte current = buffer.get(i);
+				if (current == TAB && separator == -1) {
+					separator = i;
+				} else if (current == LF) {
+					if (separator != -1 && i - separator - 1 <= MAX_VALUE_LENGTH) {
+						final String address = new String(buffer.array(), lineStart, separator - lineStart, UTF_8);
+						index.put(address, ((base + separator + 1) << 8) | (i - separator - 1));
+					}
+					lineStart = i + 1;
+					separator = -1;
+				}
+			}
+
+			// 2. A line longer than the whole buffer cannot be a valid entry: the log is truncated there
+			if (lineStart == 0 && buffer.limit() == buffer.capacity()) {
+				return base;
+			}
+
+			base += lineStart;
+			buffer.position(lineStart);
+			buffer.compact();
+		}
+		return base;
+	}
+}
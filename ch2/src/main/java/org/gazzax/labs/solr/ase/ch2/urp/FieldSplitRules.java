@@ -0,0 +1,340 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The (compiled) rules that split compound (fixed-position) field values in several target fields.
+ *
+ * Rules are declared in the factory configuration, with a list for each target field (the target field is the list name):
+ *
+ * <pre>
+	&lt;str name="source"&gt;fixed_length_general_information&lt;/str&gt;
+	&lt;bool name="remove-source"&gt;true&lt;/bool&gt;
+	&lt;lst name="year"&gt;
+		&lt;int name="start"&gt;0&lt;/int&gt;
+		&lt;int name="end"&gt;4&lt;/int&gt;
+		&lt;str name="type"&gt;int&lt;/str&gt;
+	&lt;/lst&gt;
+	&lt;lst name="language"&gt;
+		&lt;int name="start"&gt;36&lt;/int&gt;
+		&lt;int name="end"&gt;39&lt;/int&gt;
+	&lt;/lst&gt;
+	...
+ * </pre>
+ *
+ * Each rule can override the default "source" and "remove-source" (a source field is removed if at least one of its rules asks so).
+ * "start" defaults to 0, "trim" to true and "type" to "string". Available types are "string", "int" and "long": typed values
+ * are parsed straight from the compound value, and a value that isn't a number (e.g. "19uu") doesn't produce the target field.
+ * A rule whose range exceeds the compound value is ignored. Empty (trimmed) values don't produce the target field.
+ *
+ * Rules are compiled in flat arrays, grouped by source field, so applying them is a plain loop with a single lookup for each source field.
+ * Instances are immutable and therefore thread-safe.
+ */
+class FieldSplitRules {
+	private final static Logger LOGGER = LoggerFactory.getLogger(FieldSplitRules.class);
+
+	static final String SOURCE_PARAM_NAME = "source";
+	static final String REMOVE_SOURCE_PARAM_NAME = "remove-source";
+	static final String DEFAULT_SOURCE = "fixed_length_general_information";
+
+	/**
+	 * Supported target types.
+	 */
+	enum Type {
+		STRING, INT, LONG
+	}
+
+	final String [] sources;
+	final boolean [] removeSources;
+	final int [] firstRules;
+
+	final String [] targets;
+	final int [] starts;
+	final int [] ends;
+	final boolean [] trims;
+	final Type [] types;
+
+	/**
+	 * Builds new rules with the given data.
+	 *
+	 * @param sources the source fields.
+	 * @param removeSources the source fields removal flags.
+	 * @param firstRules for each source field, the index of its first rule (plus a last entry with the number of rules).
+	 * @param targets the target fields.
+	 * @param starts the rule starts.
+	 * @param ends the rule ends (exclusive).
+	 * @param trims the rule trim flags.
+	 * @param types the target types.
+	 */
+	private FieldSplitRules(
+			final String [] sources,
+			final boolean [] removeSources,
+			final int [] firstRules,
+			final String [] targets,
+			final int [] starts,
+			final int [] ends,
+			final boolean [] trims,
+			final Type [] types) {
+		this.sources = sources;
+		this.removeSources = removeSources;
+		this.firstRules = firstRules;
+		this.targets = targets;
+		this.starts = starts;
+		this.ends = ends;
+		this.trims = trims;
+		this.types = types;
+	}
+
+	/**
+	 * Returns the rules of the bibliographic example (year and language from fixed_length_general_information),
+	 * which are used when no rule is configured.
+	 *
+	 * @return the default rules.
+	 */
+	static FieldSplitRules defaultRules() {
+		return defaultRules(DEFAULT_SOURCE, true);
+	}
+
+	/**
+	 * Returns the rules of the bibliographic example (year and language), applied to the given source field.
+	 *
+	 * @param source the source field.
+	 * @param removeSource true if the source field has to be removed.
+	 * @return the default rules, applied to the given source field.
+	 */
+	static FieldSplitRules defaultRules(final String source, final boolean removeSource) {
+		return new FieldSplitRules(
+				new String [] {source},
+				new boolean [] {removeSource},
+				new int [] {0, 2},
+				new String [] {"year", "language"},
+				new int [] {0, 36},
+				new int [] {4, 39},
+				new boolean [] {true, true},
+				new Type [] {Type.INT, Type.STRING});
+	}
+
+	/**
+	 * Compiles the rules declared in the given configuration.
+	 *
+	 * @param args the factory configuration.
+	 * @return the compiled rules, or the default rules (with the configured source and remove-source) if the configuration doesn't declare any rule.
+	 */
+	@SuppressWarnings("rawtypes")
+	static FieldSplitRules compile(final NamedList args) {
+		if (args == null) {
+			return defaultRules();
+		}
+
+		final Object declaredSource = args.get(SOURCE_PARAM_NAME);
+		final String defaultSource = declaredSource != null ? String.valueOf(declaredSource) : DEFAULT_SOURCE;
+		final boolean defaultRemoveSource = !"false".equals(String.valueOf(args.get(REMOVE_SOURCE_PARAM_NAME)));
+
+		// 1. Collect the rule definitions, grouped by source field
+		final Map<String, List<Integer>> rulesBySource = new LinkedHashMap<String, List<Integer>>();
+		final Map<String, Boolean> removals = new LinkedHashMap<String, Boolean>();
+		final List<String> names = new ArrayList<String>();
+		final List<NamedList> definitions = new ArrayList<NamedList>();
+		for (int i = 0; i < args.size(); i++) {
+			final Object definition = args.getVal(i);
+			if (definition instanceof NamedList) {
+				final NamedList rule = (NamedList) definition;
+				final String source = stringValue(rule, SOURCE_PARAM_NAME, defaultSource);
+				final boolean removeSource = !"false".equals(stringValue(rule, REMOVE_SOURCE_PARAM_NAME, String.valueOf(defaultRemoveSource)));
+
+				List<Integer> rules = rulesBySource.get(source);
+				if (rules == null) {
+					rules = new ArrayList<Integer>();
+					rulesBySource.put(source, rules);
+					removals.put(source, removeSource);
+				} else if (removeSource) {
+					removals.put(source, true);
+				}
+
+				rules.add(definitions.size());
+				names.add(args.getName(i));
+				definitions.add(rule);
+			}
+		}
+
+		if (definitions.isEmpty()) {
+			return defaultRules(defaultSource, defaultRemoveSource);
+		}
+
+		// 2. Compile the rules in flat arrays
+		final int size = definitions.size();
+		final String [] sources = rulesBySource.keySet().toArray(new String[rulesBySource.size()]);
+		final boolean [] removeSources = new boolean[sources.length];
+		final int [] firstRules = new int[sources.length + 1];
+		final String [] targets = new String[size];
+		final int [] starts = new int[size];
+		final int [] ends = new int[size];
+		final boolean [] trims = new boolean[size];
+		final Type [] types = new Type[size];
+
+		int index = 0;
+		for (int s = 0; s < sources.length; s++) {
+			removeSources[s] = removals.get(sources[s]);
+			firstRules[s] = index;
+			for (final int definitionIndex : rulesBySource.get(sources[s])) {
+				final NamedList rule = definitions.get(definitionIndex);
+				final String target = names.get(definitionIndex);
+				targets[index] = target;
+				starts[index] = intValue(rule, "start", 0);
+				ends[index] = intValue(rule, "end", -1);
+				trims[index] = !"false".equals(stringValue(rule, "trim", "true"));
+				types[index] = type(target, stringValue(rule, "type", "string"));
+
+				if (starts[index] < 0 || ends[index] <= starts[index]) {
+					throw new SolrException(
+							ErrorCode.SERVER_ERROR,
+							"Invalid range [" + starts[index] + ", " + ends[index] + ") for split field " + target);
+				}
+				index++;
+			}
+		}
+		firstRules[sources.length] = index;
+
+		return new FieldSplitRules(sources, removeSources, firstRules, targets, starts, ends, trims, types);
+	}
+
+	/**
+	 * Applies these rules to the given document.
+	 *
+	 * @param document the document.
+	 */
+	void apply(final SolrInputDocument document) {
+		for (int s = 0; s < sources.length; s++) {
+			final SolrInputField field = document.getField(sources[s]);
+			if (field == null) {
+				continue;
+			}
+
+			final Object value = field.getFirstValue();
+			if (value != null) {
+				final String compound = value.toString();
+				for (int r = firstRules[s]; r < firstRules[s + 1]; r++) {
+					final Object target = extract(compound, r);
+					if (target != null) {
+						document.setField(targets[r], target);
+					}
+				}
+			}
+
+			if (removeSources[s]) {
+				document.removeField(sources[s]);
+			}
+		}
+	}
+
+	/**
+	 * Extracts the value of the given rule from a compound value.
+	 *
+	 * @param compound the compound value.
+	 * @param rule the rule index.
+	 * @return the extracted value, null if the compound value doesn't contain a (valid) value for the given rule.
+	 */
+	Object extract(final String compound, final int rule) {
+		if (compound.length() < ends[rule]) {
+			return null;
+		}
+
+		int from = starts[rule];
+		int to = ends[rule];
+		if (trims[rule] || types[rule] != Type.STRING) {
+			while (from < to && compound.charAt(from) <= ' ') {
+				from++;
+			}
+
+			while (to > from && compound.charAt(to - 1) <= ' ') {
+				to--;
+			}
+		}
+
+		if (from == to) {
+			return null;
+		}
+
+		switch (types[rule]) {
+			case INT:
+			case LONG:
+				return parseNumber(compound, from, to, rule);
+			default:
+				return compound.substring(from, to);
+		}
+	}
+
+	/**
+	 * Parses a (signed) number from the given range.
+	 *
+	 * @param compound the compound value.
+	 * @param from the range start.
+	 * @param to the range end (exclusive).
+	 * @param rule the rule index.
+	 * @return the parsed number (an Integer or a Long, depending on the rule type), null if the range doesn't contain a valid number.
+	 */
+	private Number parseNumber(final String compound, final int from, final int to, final int rule) {
+		int index = from;
+		final boolean negative = compound.charAt(index) == '-';
+		if (negative || compound.charAt(index) == '+') {
+			index++;
+		}
+
+		if (index == to) {
+			return null;
+		}
+
+		final long limit = types[rule] == Type.INT ? (long) Integer.MAX_VALUE + (negative ? 1 : 0) : Long.MAX_VALUE;
+		long value = 0;
+		for (; index < to; index++) {
+			final int digit = compound.charAt(index) - '0';
+			if (digit < 0 || digit > 9 || value > (limit - digit) / 10) {
+				LOGGER.debug("Invalid " + types[rule].name().toLowerCase(Locale.ROOT) + " value \"" + compound.substring(from, to) + "\" for split field " + targets[rule]);
+				return null;
+			}
+			value = value * 10 + digit;
+		}
+
+		final long signed = negative ? -value : value;
+		return types[rule] == Type.INT ? Integer.valueOf((int) signed) : Long.valueOf(signed);
+	}
+
+	/**
+	 * Returns the type with the given name.
+	 *
+	 * @param field the target field.
+	 * @param name the type name.
+	 * @return the type with the given name.
+	 */
+	private static Type type(final String field, final String name) {
+		try {
+			return Type.valueOf(name.toUpperCase(Locale.ROOT));
+		} catch (final IllegalArgumentException exception) {
+			throw new SolrException(ErrorCode.SERVER_ERROR, "Unknown type " + name + " for split field " + field);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static int intValue(final NamedList rule, final String name, final int defaultValue) {
+		final Object value = rule.get(name);
+		return value != null ? Integer.parseInt(String.valueOf(value)) : defaultValue;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static String stringValue(final NamedList rule, final String name, final String defaultValue) {
+		final Object value = rule.get(name);
+		return value != null ? String.valueOf(value) : defaultValue;
+	}
+}
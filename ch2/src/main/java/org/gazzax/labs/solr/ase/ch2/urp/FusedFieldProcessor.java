@@ -0,0 +1,35 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import java.io.IOException;
+
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+
+/**
+ * An {@link UpdateRequestProcessor} that applies several field transformations (see {@link FusedFieldTransformations})
+ * in a single pass over the fields of each document, instead of one pass (and one processor) for each transformation.
+ */
+public class FusedFieldProcessor extends UpdateRequestProcessor {
+
+	private final FusedFieldTransformations transformations;
+
+	/**
+	 * Builds a new {@link FusedFieldProcessor} with the given transformations.
+	 *
+	 * @param next the next processor in the chain.
+	 * @param transformations the (compiled) field transformations.
+	 */
+	FusedFieldProcessor(final UpdateRequestProcessor next, final FusedFieldTransformations transformations) {
+		super(next);
+		this.transformations = transformations;
+	}
+
+	@Override
+	public void processAdd(final AddUpdateCommand command) throws IOException {
+		// 1. Apply all transformations, visiting each field of the Solr (Input) document once
+		transformations.apply(command.getSolrInputDocument());
+
+		// 2. IMPORTANT: forward the control to the next processor in the chain.
+		super.processAdd(command);
+	}
+}
@@ -0,0 +1,47 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+
+/**
+ * A factory that replaces a sequence of field transformation processors (e.g. {@link RemoveTrailingUnderscoreProcessorFactory}
+ * followed by {@link SplitCompoundFieldProcessorFactory}) with a single processor.
+ *
+ * Each transformation is declared as a list, in chain order, with the same parameters of the corresponding factory:
+ *
+ * <pre>
+	&lt;processor class="org.gazzax.labs.solr.ase.ch2.urp.FusedFieldProcessorFactory"&gt;
+		&lt;lst name="remove-trailing-underscore"&gt;
+			&lt;str name="fields"&gt;title,author&lt;/str&gt;
+		&lt;/lst&gt;
+		&lt;lst name="split-compound-field"&gt;
+			&lt;lst name="year"&gt;...&lt;/lst&gt;
+			&lt;lst name="language"&gt;...&lt;/lst&gt;
+		&lt;/lst&gt;
+	&lt;/processor&gt;
+ * </pre>
+ *
+ * The indexed documents are the same produced by the chained processors.
+ * Configurations where that isn't guaranteed (see {@link FusedFieldTransformations}) are rejected at startup.
+ */
+public class FusedFieldProcessorFactory extends UpdateRequestProcessorFactory {
+
+	private FusedFieldTransformations transformations;
+
+	@Override
+	public void init(@SuppressWarnings("rawtypes") final NamedList args) {
+		transformations = FusedFieldTransformations.compile(args);
+	}
+
+	@Override
+	public UpdateRequestProcessor getInstance(
+			final SolrQueryRequest request,
+			final SolrQueryResponse response,
+			final UpdateRequestProcessor next) {
+		// Without transformations there's nothing to do, so the processor is not added to the chain at all
+		return transformations.isEmpty() ? next : new FusedFieldProcessor(next, transformations);
+	}
+}
@@ -0,0 +1,307 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * A list of field transformations (the same ones executed by {@link RemoveTrailingUnderscoreProcessor} and
+ * {@link SplitCompoundFieldProcessor}) compiled for being applied in a single pass over the document fields.
+ *
+ * Transformations are declared in order, each one as a list whose name is the transformation type:
+ *
+ * <pre>
+	&lt;lst name="remove-trailing-underscore"&gt;
+		&lt;str name="fields"&gt;title,author&lt;/str&gt;
+	&lt;/lst&gt;
+	&lt;lst name="split-compound-field"&gt;
+		&lt;str name="source"&gt;fixed_length_general_information&lt;/str&gt;
+		&lt;lst name="year"&gt;...&lt;/lst&gt;
+	&lt;/lst&gt;
+ * </pre>
+ *
+ * Each list accepts the same parameters of the corresponding processor factory. At compile time, operations are indexed by field name,
+ * in declaration order, so each document field requires a single lookup, whatever the number of transformations.
+ * The result is the same of the equivalent chain, provided that a field created by a split isn't read by the same or a subsequent
+ * transformation: such configurations are rejected, and they must be executed by a regular chain.
+ *
+ * Instances are immutable and therefore thread-safe.
+ */
+class FusedFieldTransformations {
+	static final String REMOVE_TRAILING_UNDERSCORE = "remove-trailing-underscore";
+	static final String SPLIT_COMPOUND_FIELD = "split-compound-field";
+
+	/**
+	 * An operation on a single field.
+	 */
+	abstract static class Operation {
+		final int stage;
+
+		/**
+		 * Builds a new operation for the given stage.
+		 *
+		 * @param stage the position of the owning transformation in the declared list.
+		 */
+		Operation(final int stage) {
+			this.stage = stage;
+		}
+
+		/**
+		 * Applies this operation to the given field.
+		 *
+		 * @param field the field.
+		 * @param additions the collector of the fields created by this operation.
+		 * @return false if the field has been consumed (i.e. it must be removed from the document), true otherwise.
+		 */
+		abstract boolean apply(SolrInputField field, List<Addition> additions);
+	}
+
+	/**
+	 * A field created by an operation.
+	 */
+	static class Addition {
+		final int stage;
+		final String name;
+		final Object value;
+
+		/**
+		 * Builds a new addition with the given data.
+		 *
+		 * @param stage the stage that created the field.
+		 * @param name the field name.
+		 * @param value the field value.
+		 */
+		Addition(final int stage, final String name, final Object value) {
+			this.stage = stage;
+			this.name = name;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Removes suffixes from the field values.
+	 */
+	static class StripOperation extends Operation {
+		private final SuffixMatcher suffixes;
+
+		/**
+		 * Builds a new strip operation.
+		 *
+		 * @param stage the position of the owning transformation in the declared list.
+		 * @param suffixes the suffixes that will be removed.
+		 */
+		StripOperation(final int stage, final SuffixMatcher suffixes) {
+			super(stage);
+			this.suffixes = suffixes;
+		}
+
+		@Override
+		boolean apply(final SolrInputField field, final List<Addition> additions) {
+			RemoveTrailingUnderscoreProcessor.strip(field, suffixes);
+			return true;
+		}
+	}
+
+	/**
+	 * Splits the field value according with the rules of a source field.
+	 */
+	static class SplitOperation extends Operation {
+		private final FieldSplitRules rules;
+		private final int source;
+
+		/**
+		 * Builds a new split operation.
+		 *
+		 * @param stage the position of the owning transformation in the declared list.
+		 * @param rules the split rules.
+		 * @param source the index of the source field within the split rules.
+		 */
+		SplitOperation(final int stage, final FieldSplitRules rules, final int source) {
+			super(stage);
+			this.rules = rules;
+			this.source = source;
+		}
+
+		@Override
+		boolean apply(final SolrInputField field, final List<Addition> additions) {
+			final Object value = field.getFirstValue();
+			if (value != null) {
+				final String compound = value.toString();
+				for (int r = rules.firstRules[source]; r < rules.firstRules[source + 1]; r++) {
+					final Object target = rules.extract(compound, r);
+					if (target != null) {
+						additions.add(new Addition(stage, rules.targets[r], target));
+					}
+				}
+			}
+			return !rules.removeSources[source];
+		}
+	}
+
+	private final Map<String, Operation []> operations;
+
+	/**
+	 * Builds a new list of transformations with the given (compiled) operations.
+	 *
+	 * @param operations the operations, indexed by field name.
+	 */
+	private FusedFieldTransformations(final Map<String, Operation []> operations) {
+		this.operations = operations;
+	}
+
+	/**
+	 * Compiles the transformations declared in the given configuration.
+	 *
+	 * @param args the factory configuration.
+	 * @return the compiled transformations.
+	 */
+	@SuppressWarnings("rawtypes")
+	static FusedFieldTransformations compile(final NamedList args) {
+		final Map<String, List<Operation>> byField = new HashMap<String, List<Operation>>();
+		final Map<String, Integer> lastReadingStage = new HashMap<String, Integer>();
+		final List<String> createdFields = new ArrayList<String>();
+		final List<Integer> creatingStages = new ArrayList<Integer>();
+
+		int stage = 0;
+		for (int i = 0; args != null && i < args.size(); i++) {
+			if (!(args.getVal(i) instanceof NamedList)) {
+				continue;
+			}
+
+			final String type = args.getName(i);
+			final NamedList definition = (NamedList) args.getVal(i);
+			if (REMOVE_TRAILING_UNDERSCORE.equals(type)) {
+				final SolrParams parameters = SolrParams.toSolrParams(definition);
+				final String [] suffixList = RemoveTrailingUnderscoreProcessorFactory.list(parameters.get("suffixes", "_"));
+				final Operation operation = new StripOperation(
+						stage,
+						suffixList.length != 0 ? new SuffixMatcher(suffixList) : RemoveTrailingUnderscoreProcessor.UNDERSCORE);
+				for (final String field : RemoveTrailingUnderscoreProcessorFactory.list(parameters.get("fields", ""))) {
+					add(byField, lastReadingStage, field, operation);
+				}
+			} else if (SPLIT_COMPOUND_FIELD.equals(type)) {
+				final FieldSplitRules rules = FieldSplitRules.compile(definition);
+				for (int s = 0; s < rules.sources.length; s++) {
+					add(byField, lastReadingStage, rules.sources[s], new SplitOperation(stage, rules, s));
+				}
+
+				for (final String target : rules.targets) {
+					createdFields.add(target);
+					creatingStages.add(stage);
+				}
+			} else {
+				throw new SolrException(ErrorCode.SERVER_ERROR, "Unknown field transformation: " + type);
+			}
+			stage++;
+		}
+
+		// A field created by a split must not be read by the same or a subsequent transformation
+		final Set<String> checked = new HashSet<String>();
+		for (int i = 0; i < createdFields.size(); i++) {
+			final Integer lastReader = lastReadingStage.get(createdFields.get(i));
+			if (lastReader != null && lastReader >= creatingStages.get(i) && checked.add(createdFields.get(i))) {
+				throw new SolrException(
+						ErrorCode.SERVER_ERROR,
+						"Field " + createdFields.get(i) + " is created by transformation #" + creatingStages.get(i)
+						+ " and read by transformation #" + lastReader + ": these transformations cannot be fused.");
+			}
+		}
+
+		final Map<String, Operation []> operations = new HashMap<String, Operation []>();
+		for (final Map.Entry<String, List<Operation>> entry : byField.entrySet()) {
+			operations.put(entry.getKey(), entry.getValue().toArray(new Operation[entry.getValue().size()]));
+		}
+		return new FusedFieldTransformations(operations);
+	}
+
+	/**
+	 * Returns true if there are no transformations.
+	 *
+	 * @return true if there are no transformations.
+	 */
+	boolean isEmpty() {
+		return operations.isEmpty();
+	}
+
+	/**
+	 * Applies the transformations to the given document, in a single pass over its fields.
+	 *
+	 * @param document the document.
+	 */
+	void apply(final SolrInputDocument document) {
+		List<Addition> additions = null;
+		List<String> removals = null;
+
+		// 1. Apply the operations of each field, in declaration order, stopping if the field is consumed
+		for (final SolrInputField field : document) {
+			final Operation [] fieldOperations = operations.get(field.getName());
+			if (fieldOperations == null) {
+				continue;
+			}
+
+			if (additions == null) {
+				additions = new ArrayList<Addition>(4);
+			}
+
+			for (final Operation operation : fieldOperations) {
+				if (!operation.apply(field, additions)) {
+					if (removals == null) {
+						removals = new ArrayList<String>(2);
+					}
+					removals.add(field.getName());
+					break;
+				}
+			}
+		}
+
+		// 2. Consumed fields are removed, then created fields are set, in stage order (as a chain would do)
+		if (removals != null) {
+			for (final String name : removals) {
+				document.removeField(name);
+			}
+		}
+
+		if (additions != null) {
+			for (int stage = 0, remaining = additions.size(); remaining > 0; stage++) {
+				for (final Addition addition : additions) {
+					if (addition.stage == stage) {
+						document.setField(addition.name, addition.value);
+						remaining--;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Registers an operation for the given field.
+	 *
+	 * @param byField the operations indexed by field.
+	 * @param lastReadingStage the last stage which reads each field.
+	 * @param field the field name.
+	 * @param operation the operation.
+	 */
+	private static void add(
+			final Map<String, List<Operation>> byField,
+			final Map<String, Integer> lastReadingStage,
+			final String field,
+			final Operation operation) {
+		List<Operation> fieldOperations = byField.get(field);
+		if (fieldOperations == null) {
+			fieldOperations = new ArrayList<Operation>(2);
+			byField.put(field, fieldOperations);
+		}
+		fieldOperations.add(operation);
+		lastReadingStage.put(field, operation.stage);
+	}
+}
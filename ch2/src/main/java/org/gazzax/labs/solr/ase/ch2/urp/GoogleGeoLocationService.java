@@ -1,26 +1,38 @@
 package org.gazzax.labs.solr.ase.ch2.urp;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PreDestroy;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * Google geolocation service.
@@ -38,90 +50,97 @@ import org.xml.sax.helpers.DefaultHandler;
 		</location>
  * </pre>
  * 
+ * The response is parsed in streaming (StAX) and the parsing stops as soon as the first latitude and longitude 
+ * have been read. The parsing state is local to each call, so the service can be safely shared by several threads.
+ * 
+ * Requests go through a pool of keep-alive connections, bounded by connect, read and pool timeouts. A circuit breaker 
+ * rejects requests (failing fast) after a number of consecutive failures, while the latency of each call is recorded
+ * in a histogram. See {@link #init(SolrParams)} for the available parameters.
+ * 
  * @author Andrea Gazzarini
  */
 public class GoogleGeoLocationService {
 	private final static Logger LOGGER = LoggerFactory.getLogger(GoogleGeoLocationService.class);
 	
-	private static String URL = "http://maps.googleapis.com/maps/api/geocode/xml?sensor=false&address=";
+	static final String DEFAULT_URL = "http://maps.googleapis.com/maps/api/geocode/xml?sensor=false&address=";
 	
+	static final String MAX_CONNECTIONS_PARAM_NAME = "max-connections";
+	static final int DEFAULT_MAX_CONNECTIONS = 20;
+	static final String MAX_CONNECTIONS_PER_ROUTE_PARAM_NAME = "max-connections-per-route";
+	static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+	static final String CONNECT_TIMEOUT_PARAM_NAME = "connect-timeout";
+	static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+	static final String SOCKET_TIMEOUT_PARAM_NAME = "socket-timeout";
+	static final int DEFAULT_SOCKET_TIMEOUT = 5000;
+	static final String POOL_TIMEOUT_PARAM_NAME = "pool-timeout";
+	static final int DEFAULT_POOL_TIMEOUT = 2000;
+	static final String KEEP_ALIVE_PARAM_NAME = "keep-alive";
+	static final int DEFAULT_KEEP_ALIVE = 30000;
+	static final String IDLE_TIMEOUT_PARAM_NAME = "idle-timeout";
+	static final int DEFAULT_IDLE_TIMEOUT = 60000;
+	static final String CIRCUIT_BREAKER_FAILURES_PARAM_NAME = "circuit-breaker-failures";
+	static final int DEFAULT_CIRCUIT_BREAKER_FAILURES = 5;
+	static final String CIRCUIT_BREAKER_OPEN_TIME_PARAM_NAME = "circuit-breaker-open-time";
+	static final int DEFAULT_CIRCUIT_BREAKER_OPEN_TIME = 30000;
+	
+	private final String url;
 	private CloseableHttpClient client;
-	private SAXParser parser;
+	private PoolingHttpClientConnectionManager connectionManager;
+	private ScheduledExecutorService connectionEvictor;
+	private CircuitBreaker circuitBreaker;
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private XMLInputFactory inputFactory;
 	
-	private final String LATITUDE_TAG_NAME = "lat";
-	private final String LONGITUDE_TAG_NAME = "lng";
+	private final static String LATITUDE_TAG_NAME = "lat";
+	private final static String LONGITUDE_TAG_NAME = "lng";
 	
-	private StringBuilder coordinates = new StringBuilder();
+	/**
+	 * Thrown when a geolocation request is rejected because the circuit is open.
+	 * Rejections are counted (and logged once per circuit transition) by the service, so callers shouldn't log them again.
+	 */
+	public static class UnavailableServiceException extends IOException {
+		private static final long serialVersionUID = 1L;
 
-	private DefaultHandler responseParser =  new DefaultHandler() {
-		private boolean isProcessingLatitude;
-		private boolean isProcessingLongitude;		
-		private boolean coordinatesHasBeenCollected;
-		
-		@Override
-		public void startDocument() throws SAXException {
-			reset();
-		};
-		
-		@Override
-		public void endDocument() throws SAXException  {
-			// Nothing to be done here...
-		};
-		
-		@Override
-		public void startElement(
-				final String uri, 
-				final String localName, 
-				final String qName, 
-				final Attributes attributes) throws SAXException {
-			if (!coordinatesHasBeenCollected) {
-				isProcessingLatitude = LATITUDE_TAG_NAME.equals(qName);
-				isProcessingLongitude = LONGITUDE_TAG_NAME.equals(qName);
-			}
-		};
-		
-		public void characters(final char[] ch, final int start, final int length) throws SAXException {
-			if (!coordinatesHasBeenCollected) {
-				if (isProcessingLatitude || isProcessingLongitude) {
-					coordinates.append(new String(ch, start, length).trim());
-				}
-			}
-		};
-		
-		public void endElement(
-				final String uri, 
-				final String localName, 
-				final String qName) throws SAXException {
-			if (!coordinatesHasBeenCollected) {
-				if (isProcessingLatitude)
-				{
-					coordinates.append(",");
-				} else if (isProcessingLongitude)
-				{
-					coordinatesHasBeenCollected = true;
-				}
-			}
-		};
-		
 		/**
-		 * Resets the state of this parser.
+		 * Builds a new exception with the given message.
+		 *
+		 * @param message the detail message.
 		 */
-		private void reset() {
-			coordinates.setLength(0);
-			isProcessingLatitude = false;
-			isProcessingLongitude = false;			
-			coordinatesHasBeenCollected = false;
+		UnavailableServiceException(final String message) {
+			super(message);
 		}
-	};
+	}
+
+	/**
+	 * Builds a new service that uses the Google Geocoding API.
+	 */
+	public GoogleGeoLocationService() {
+		this(DEFAULT_URL);
+	}
+	
+	/**
+	 * Builds a new service that uses the given endpoint.
+	 * 
+	 * @param url the endpoint URL, which the (encoded) address is appended to.
+	 */
+	public GoogleGeoLocationService(final String url) {
+		this.url = url;
+	}
 	
 	@SuppressWarnings("deprecation")
 	public String getCoordinates(final String identifier, final String address) throws IOException {
+		if (!circuitBreaker.allowRequest()) {
+			throw new UnavailableServiceException("Google Geocoding Service : circuit is open, geolocation request for " + identifier + " has been rejected");
+		}
+		
+		final long start = System.nanoTime();
+		boolean succeeded = false;
 		HttpGet method = null;
 		CloseableHttpResponse response = null;
 		try {
-			method = new HttpGet(URL + URLEncoder.encode(address, "UTF-8"));
+			method = new HttpGet(url + URLEncoder.encode(address, "UTF-8"));
 		} catch (final UnsupportedEncodingException exception) {
-			method = new HttpGet(URL + URLEncoder.encode(address));
+			method = new HttpGet(url + URLEncoder.encode(address));
 		}
 		
 		try {
@@ -130,12 +149,14 @@ public class GoogleGeoLocationService {
 			int statusCode = response.getStatusLine().getStatusCode();
 			switch (statusCode) {
 				case HttpStatus.SC_OK:					
-					parser.parse(new ByteArrayInputStream(EntityUtils.toByteArray(entity)), responseParser);
-				
-					String result = coordinates.toString();
+					final String result = parse(entity.getContent());
+					
+					// Drain the rest of the response, so the connection can be reused
+					EntityUtils.consume(entity);
 					
 					LOGGER.debug("Document " + identifier + "  with address \"" + address+" \" has been translated to " + result);
 					
+					succeeded = true;
 					return result;
 				default:
 					String message = "Google Geocoding Service : unable to parse geolocation data for " + identifier;
@@ -147,6 +168,13 @@ public class GoogleGeoLocationService {
 			LOGGER.error("Google Geocoding Service : unable to parse geolocation data for " + identifier);
 			throw new IOException(exception);
 		} finally {
+			latencies.record(System.nanoTime() - start);
+			if (succeeded) {
+				circuitBreaker.onSuccess();
+			} else {
+				circuitBreaker.onFailure();
+			}
+			
 			if (response != null) {
 				response.close();
 			}
@@ -154,12 +182,128 @@ public class GoogleGeoLocationService {
 	}
 	
 	/**
-	 * Initializes this service.
+	 * Returns true if the service is available, that is, if requests are not rejected by the circuit breaker.
+	 * 
+	 * @return true if the service is available.
+	 */
+	public boolean isAvailable() {
+		return !circuitBreaker.isOpen();
+	}
+	
+	/**
+	 * Returns the statistics of this service: latencies and circuit breaker state.
+	 * 
+	 * @return the statistics of this service.
+	 */
+	public NamedList<Object> getStatistics() {
+		final NamedList<Object> statistics = latencies.getStatistics("request");
+		statistics.add("circuit", circuitBreaker.state().name());
+		statistics.add("circuitTrips", circuitBreaker.trips());
+		statistics.add("circuitRejectedRequests", circuitBreaker.rejected());
+		return statistics;
+	}
+	
+	/**
+	 * Extracts the coordinates from the given response.
+	 * 
+	 * @param response the geocoding service response.
+	 * @return the coordinates ("latitude,longitude"), an empty string if the response doesn't contain any coordinate.
+	 * @throws XMLStreamException in case the response cannot be parsed.
+	 */
+	String parse(final InputStream response) throws XMLStreamException {
+		final XMLStreamReader reader = inputFactory.createXMLStreamReader(response);
+		try {
+			String latitude = null;
+			String longitude = null;
+			while ((latitude == null || longitude == null) && reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+					final String name = reader.getLocalName();
+					if (latitude == null && LATITUDE_TAG_NAME.equals(name)) {
+						latitude = reader.getElementText().trim();
+					} else if (longitude == null && LONGITUDE_TAG_NAME.equals(name)) {
+						longitude = reader.getElementText().trim();
+					}
+				}
+			}
+			return latitude != null && longitude != null ? latitude + "," + longitude : "";
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Initializes this service with the default configuration.
 	 */
 	public void init() {
+		init(new ModifiableSolrParams());
+	}
+	
+	/**
+	 * Initializes this service.
+	 * The following parameters are available (timeouts and times are in msecs):
+	 * 
+	 * <ul>
+	 * 	<li>max-connections: the maximum number of pooled connections (default 20);</li>
+	 * 	<li>max-connections-per-route: the maximum number of pooled connections for each route (default 10);</li>
+	 * 	<li>connect-timeout: the connection timeout (default 2000);</li>
+	 * 	<li>socket-timeout: the read timeout (default 5000);</li>
+	 * 	<li>pool-timeout: how long a request waits for a pooled connection (default 2000);</li>
+	 * 	<li>keep-alive: how long an idle connection is kept alive, unless the server asks for less (default 30000);</li>
+	 * 	<li>idle-timeout: idle connections older than this are evicted from the pool (default 60000);</li>
+	 * 	<li>circuit-breaker-failures: the number of consecutive failures that opens the circuit (default 5);</li>
+	 * 	<li>circuit-breaker-open-time: how long the circuit stays open (default 30000).</li>
+	 * </ul>
+	 * 
+	 * @param parameters the service configuration.
+	 */
+	public void init(final SolrParams parameters) {
 		try {
-			client = HttpClients.createDefault();
-			parser = SAXParserFactory.newInstance().newSAXParser();
+			connectionManager = new PoolingHttpClientConnectionManager();
+			connectionManager.setMaxTotal(parameters.getInt(MAX_CONNECTIONS_PARAM_NAME, DEFAULT_MAX_CONNECTIONS));
+			connectionManager.setDefaultMaxPerRoute(parameters.getInt(MAX_CONNECTIONS_PER_ROUTE_PARAM_NAME, DEFAULT_MAX_CONNECTIONS_PER_ROUTE));
+			
+			final long keepAlive = parameters.getInt(KEEP_ALIVE_PARAM_NAME, DEFAULT_KEEP_ALIVE);
+			client = HttpClients.custom()
+					.setConnectionManager(connectionManager)
+					.setDefaultRequestConfig(RequestConfig.custom()
+							.setConnectTimeout(parameters.getInt(CONNECT_TIMEOUT_PARAM_NAME, DEFAULT_CONNECT_TIMEOUT))
+							.setSocketTimeout(parameters.getInt(SOCKET_TIMEOUT_PARAM_NAME, DEFAULT_SOCKET_TIMEOUT))
+							.setConnectionRequestTimeout(parameters.getInt(POOL_TIMEOUT_PARAM_NAME, DEFAULT_POOL_TIMEOUT))
+							.build())
+					.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+						@Override
+						public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+							final long requested = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+							return requested > 0 ? Math.min(requested, keepAlive) : keepAlive;
+						}
+					})
+					.build();
+			
+			final long idleTimeout = parameters.getInt(IDLE_TIMEOUT_PARAM_NAME, DEFAULT_IDLE_TIMEOUT);
+			connectionEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable task) {
+					final Thread thread = new Thread(task, "geolocation-connection-evictor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			connectionEvictor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					connectionManager.closeExpiredConnections();
+					connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+				}
+			}, idleTimeout, Math.max(1000, idleTimeout / 2), TimeUnit.MILLISECONDS);
+			
+			circuitBreaker = new CircuitBreaker(
+					parameters.getInt(CIRCUIT_BREAKER_FAILURES_PARAM_NAME, DEFAULT_CIRCUIT_BREAKER_FAILURES),
+					parameters.getInt(CIRCUIT_BREAKER_OPEN_TIME_PARAM_NAME, DEFAULT_CIRCUIT_BREAKER_OPEN_TIME));
+			
+			inputFactory = XMLInputFactory.newInstance();
+			inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
 		} catch (final Exception exception) {
 			throw new RuntimeException(exception);
 		}
@@ -170,6 +314,10 @@ public class GoogleGeoLocationService {
 	 */
 	@PreDestroy
 	public void shutdown() {
+		if (connectionEvictor != null) {
+			connectionEvictor.shutdownNow();
+		}
+		
 		try {
 			client.close();
 		} catch (final IOException exception) {
@@ -0,0 +1,117 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * A lock-free latency histogram, with a bounded relative error.
+ *
+ * Latencies are recorded in nanoseconds, in log-linear buckets: values below 16 have their own bucket, while each
+ * greater power of two is split in 16 sub-buckets. Percentiles are therefore reported (as bucket upper bounds)
+ * with a relative error below 1/16, using a fixed amount of memory whatever the number of recorded values.
+ *
+ * Instances are thread-safe.
+ */
+class LatencyHistogram {
+	private static final int SUB_BUCKETS = 16;
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param elapsedNanos the latency, in nanoseconds.
+	 */
+	void record(final long elapsedNanos) {
+		final long nanos = Math.max(0, elapsedNanos);
+		counts.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+			// Retry: another thread updated the maximum in the meantime
+		}
+	}
+
+	/**
+	 * Returns the given percentile, in milliseconds.
+	 *
+	 * @param percentile the percentile (e.g. 99.9).
+	 * @return the given percentile, in milliseconds.
+	 */
+	double percentile(final double percentile) {
+		final long recorded = count.get();
+		if (recorded == 0) {
+			return 0;
+		}
+
+		final long rank = (long) Math.ceil(recorded * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get()) / 1000000d;
+			}
+		}
+		return max.get() / 1000000d;
+	}
+
+	/**
+	 * Returns the statistics of this histogram (count, mean, max and the most relevant percentiles, in milliseconds).
+	 *
+	 * @param prefix the prefix of the statistics names.
+	 * @return the statistics of this histogram.
+	 */
+	NamedList<Object> getStatistics(final String prefix) {
+		final long recorded = count.get();
+		final NamedList<Object> statistics = new SimpleOrderedMap<Object>();
+		statistics.add(prefix + "Count", recorded);
+		statistics.add(prefix + "MeanMs", recorded != 0 ? total.get() / 1000000d / recorded : 0d);
+		statistics.add(prefix + "P50Ms", percentile(50));
+		statistics.add(prefix + "P90Ms", percentile(90));
+		statistics.add(prefix + "P99Ms", percentile(99));
+		statistics.add(prefix + "P999Ms", percentile(99.9));
+		statistics.add(prefix + "MaxMs", max.get() / 1000000d);
+		return statistics;
+	}
+
+	/**
+	 * Returns the index of the bucket that contains the given value.
+	 *
+	 * @param value the value.
+	 * @return the index of the bucket that contains the given value.
+	 */
+	private static int bucket(final long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * Returns the greatest value that falls in the given bucket.
+	 *
+	 * @param bucket the bucket index.
+	 * @return the greatest value that falls in the given bucket.
+	 */
+	private static long upperBound(final int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		final int shift = bucket / SUB_BUCKETS - 1;
+		final long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowerBound + (1L << shift) - 1;
+	}
+}
@@ -1,27 +1,52 @@
 package org.gazzax.labs.solr.ase.ch2.urp;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.ListIterator;
 
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
 import org.apache.solr.update.AddUpdateCommand;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
 
 /**
  * An example of {@link UpdateRequestProcessor} that removes trailing underscores from a given field value.
  * 
+ * More generally, the processor removes from each (string) value of the target fields the longest suffix among a configured set
+ * (by default just the underscore). Multivalued fields are supported, while non-string values are left untouched.
+ * Values are replaced in place, within the {@link SolrInputField}, so each field requires a single lookup.
+ * 
  * @since 1.0
  */
 public class RemoveTrailingUnderscoreProcessor extends UpdateRequestProcessor {
+	static final SuffixMatcher UNDERSCORE = new SuffixMatcher("_");
+	
 	private final String [] fields;
+	private final SuffixMatcher suffixes;
 	
 	/**
 	 * Builds a new {@link RemoveTrailingUnderscoreProcessor} with the next processor in the chain.
 	 * 
 	 * @param next the next processor in the chain.
+	 * @param fields the target fields.
 	 */
 	public RemoveTrailingUnderscoreProcessor(final UpdateRequestProcessor next, final String [] fields) {
+		this(next, fields, UNDERSCORE);
+	}
+	
+	/**
+	 * Builds a new {@link RemoveTrailingUnderscoreProcessor} with the next processor in the chain.
+	 * 
+	 * @param next the next processor in the chain.
+	 * @param fields the target fields.
+	 * @param suffixes the suffixes that will be removed.
+	 */
+	RemoveTrailingUnderscoreProcessor(final UpdateRequestProcessor next, final String [] fields, final SuffixMatcher suffixes) {
 		super(next);
 		this.fields = fields != null ? fields : new String[0];
+		this.suffixes = suffixes;
 	}
 	
 	/**
@@ -39,16 +64,58 @@ public class RemoveTrailingUnderscoreProcessor extends UpdateRequestProcessor {
 		// 2. Loop through the target fields
 		for (final String fieldName : fields) {
 			
-			// 3. Get the field values (for simplicity we assume fields are monovalued and are strings)
-			final String fieldValue = (String) document.getFieldValue(fieldName);
+			// 3. Get the field (values will be changed in place, without further lookups)
+			final SolrInputField field = document.getField(fieldName);
 			
-			// 4. Check and eventually change the value of that field.
-			if (fieldValue != null && fieldValue.endsWith("_")) {
-				document.setField(fieldName, fieldValue.substring(0, fieldValue.length() -1));
+			// 4. Check and eventually change the values of that field.
+			if (field != null) {
+				strip(field, suffixes);
 			}
 		}
 		
 		// 5. IMPORTANT: forward the control to the next processor in the chain.
 		super.processAdd(command);
 	}
+	
+	/**
+	 * Removes the matching suffixes from the (string) values of the given field.
+	 * 
+	 * @param field the field.
+	 * @param suffixes the suffixes that will be removed.
+	 */
+	@SuppressWarnings("unchecked")
+	static void strip(final SolrInputField field, final SuffixMatcher suffixes) {
+		final Object value = field.getValue();
+		if (value instanceof String) {
+			final String stripped = suffixes.strip((String) value);
+			if (stripped != value) {
+				field.setValue(stripped, field.getBoost());
+			}
+		} else if (value instanceof List) {
+			final ListIterator<Object> iterator = ((List<Object>) value).listIterator();
+			while (iterator.hasNext()) {
+				final Object current = iterator.next();
+				if (current instanceof String) {
+					final String stripped = suffixes.strip((String) current);
+					if (stripped != current) {
+						iterator.set(stripped);
+					}
+				}
+			}
+		} else if (value instanceof Collection) {
+			// Not a list: values cannot be replaced in place, so a new list is built (only if something changes)
+			final Collection<Object> values = (Collection<Object>) value;
+			final List<Object> result = new ArrayList<Object>(values.size());
+			boolean changed = false;
+			for (final Object current : values) {
+				final Object stripped = current instanceof String ? suffixes.strip((String) current) : current;
+				changed |= stripped != current;
+				result.add(stripped);
+			}
+			
+			if (changed) {
+				field.setValue(result, field.getBoost());
+			}
+		}
+	}
 }
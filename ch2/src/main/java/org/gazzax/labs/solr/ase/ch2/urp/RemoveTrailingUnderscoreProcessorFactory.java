@@ -1,5 +1,8 @@
 package org.gazzax.labs.solr.ase.ch2.urp;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.SolrQueryRequest;
@@ -11,12 +14,16 @@ import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
  * This is the factory in charge to create concrete instances of a given update request processor.
  * In solr schema you're always declaring factories, not concrete types.
  * 
+ * The factory accepts two (comma-separated) parameters: "fields", the target fields, and "suffixes", the suffixes that 
+ * will be removed (by default just the underscore).
+ * 
  * @author agazzarini
  * @since 1.0
  */
 public class RemoveTrailingUnderscoreProcessorFactory extends UpdateRequestProcessorFactory {
 
 	private String [] fields;
+	private SuffixMatcher suffixes;
 	
 	@Override
 	public void init(@SuppressWarnings("rawtypes") final NamedList args) {
@@ -24,7 +31,28 @@ public class RemoveTrailingUnderscoreProcessorFactory extends UpdateRequestProce
 		final SolrParams parameters = SolrParams.toSolrParams(args);
 		
 		// 2. Retrieve the names of the fields that will be checked by the processor
-		fields = parameters.get("fields","").split(",");
+		fields = list(parameters.get("fields", ""));
+		
+		// 3. Compile the suffixes that will be removed
+		final String [] suffixList = list(parameters.get("suffixes", "_"));
+		suffixes = suffixList.length != 0 ? new SuffixMatcher(suffixList) : RemoveTrailingUnderscoreProcessor.UNDERSCORE;
+	}
+	
+	/**
+	 * Splits the given comma-separated list, trimming each member and discarding empty members.
+	 * 
+	 * @param value the comma-separated list.
+	 * @return the list members.
+	 */
+	static String [] list(final String value) {
+		final List<String> members = new ArrayList<String>();
+		for (final String member : value.split(",")) {
+			final String trimmed = member.trim();
+			if (trimmed.length() != 0) {
+				members.add(trimmed);
+			}
+		}
+		return members.toArray(new String[members.size()]);
 	}
 	
 	/**
@@ -44,7 +72,8 @@ public class RemoveTrailingUnderscoreProcessorFactory extends UpdateRequestProce
 			final SolrQueryRequest request,
 			final SolrQueryResponse response, 
 			final UpdateRequestProcessor next) {
-		return new RemoveTrailingUnderscoreProcessor(next, fields);
+		// Without target fields there's nothing to do, so the processor is not added to the chain at all
+		return fields.length != 0 ? new RemoveTrailingUnderscoreProcessor(next, fields, suffixes) : next;
 	}
 
 }
@@ -1,5 +1,6 @@
 package org.gazzax.labs.solr.ase.ch2.urp;
 
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
@@ -23,15 +24,25 @@ import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
  * Obviously, the logic of this processor strongly depends on the format of the compound fields and on your index / search requirements.
  * In this example we will get the fixed_length_general_information field,  we will create the two fields above and finally we will remove the 
  * compound field.
+ * 
+ * That is the default behaviour: source field, target fields, positions and types can be declared in the factory configuration 
+ * (see {@link FieldSplitRules}), and they are compiled once, when the factory is initialised.
  *
  */
 public class SplitCompoundFieldProcessorFactory extends UpdateRequestProcessorFactory {
 
+	private FieldSplitRules rules = FieldSplitRules.defaultRules();
+	
+	@Override
+	public void init(@SuppressWarnings("rawtypes") final NamedList args) {
+		rules = FieldSplitRules.compile(args);
+	}
+
 	@Override
 	public UpdateRequestProcessor getInstance(
 			final SolrQueryRequest request,
 			final SolrQueryResponse response, 
 			final UpdateRequestProcessor next) {
-		return new SplitCompoundFieldProcessor(next);
+		return new SplitCompoundFieldProcessor(next, rules);
 	}
 }
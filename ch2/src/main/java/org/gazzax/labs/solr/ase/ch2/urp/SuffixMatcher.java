@@ -0,0 +1,122 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A deterministic automaton that matches a set of suffixes.
+ *
+ * The suffixes are compiled, once, in a trie of reversed strings: matching walks the value backwards, starting
+ * from its last character, so the cost depends on the matched suffix length only (not on the value length or on the
+ * number of suffixes). States are stored in flat arrays, each one with its (sorted) outgoing characters.
+ *
+ * Instances are immutable and therefore thread-safe.
+ */
+class SuffixMatcher {
+	private final char [][] labels;
+	private final int [][] targets;
+	private final boolean [] accepting;
+
+	/**
+	 * Compiles the given suffixes.
+	 *
+	 * @param suffixes the suffixes (empty suffixes are ignored).
+	 */
+	SuffixMatcher(final String ... suffixes) {
+		final List<char []> stateLabels = new ArrayList<char []>();
+		final List<int []> stateTargets = new ArrayList<int []>();
+		final List<Boolean> stateAccepting = new ArrayList<Boolean>();
+		stateLabels.add(new char[0]);
+		stateTargets.add(new int[0]);
+		stateAccepting.add(false);
+
+		for (final String suffix : suffixes) {
+			if (suffix == null || suffix.length() == 0) {
+				continue;
+			}
+
+			int state = 0;
+			for (int i = suffix.length() - 1; i >= 0; i--) {
+				final char label = suffix.charAt(i);
+				final char [] currentLabels = stateLabels.get(state);
+				final int index = Arrays.binarySearch(currentLabels, label);
+				if (index >= 0) {
+					state = stateTargets.get(state)[index];
+					continue;
+				}
+
+				// New state: insert the transition keeping labels sorted
+				final int newState = stateLabels.size();
+				stateLabels.add(new char[0]);
+				stateTargets.add(new int[0]);
+				stateAccepting.add(false);
+
+				final int insertion = -index - 1;
+				final int [] currentTargets = stateTargets.get(state);
+				final char [] newLabels = new char[currentLabels.length + 1];
+				final int [] newTargets = new int[currentTargets.length + 1];
+				System.arraycopy(currentLabels, 0, newLabels, 0, insertion);
+				System.arraycopy(currentTargets, 0, newTargets, 0, insertion);
+				newLabels[insertion] = label;
+				newTargets[insertion] = newState;
+				System.arraycopy(currentLabels, insertion, newLabels, insertion + 1, currentLabels.length - insertion);
+				System.arraycopy(currentTargets, insertion, newTargets, insertion + 1, currentTargets.length - insertion);
+				stateLabels.set(state, newLabels);
+				stateTargets.set(state, newTargets);
+				state = newState;
+			}
+			stateAccepting.set(state, true);
+		}
+
+		this.labels = stateLabels.toArray(new char[stateLabels.size()][]);
+		this.targets = stateTargets.toArray(new int[stateTargets.size()][]);
+		this.accepting = new boolean[stateAccepting.size()];
+		for (int i = 0; i < accepting.length; i++) {
+			accepting[i] = stateAccepting.get(i);
+		}
+	}
+
+	/**
+	 * Returns true if this matcher doesn't have any suffix.
+	 *
+	 * @return true if this matcher doesn't have any suffix.
+	 */
+	boolean isEmpty() {
+		return labels[0].length == 0;
+	}
+
+	/**
+	 * Returns the length of the longest suffix of the given value which belongs to this matcher.
+	 *
+	 * @param value the value.
+	 * @return the length of the longest matching suffix, 0 if the value doesn't end with any suffix.
+	 */
+	int match(final CharSequence value) {
+		int state = 0;
+		int matched = 0;
+		for (int i = value.length() - 1; i >= 0; i--) {
+			final int index = Arrays.binarySearch(labels[state], value.charAt(i));
+			if (index < 0) {
+				break;
+			}
+
+			state = targets[state][index];
+			if (accepting[state]) {
+				matched = value.length() - i;
+			}
+		}
+		return matched;
+	}
+
+	/**
+	 * Removes the longest matching suffix from the given value.
+	 *
+	 * @param value the value.
+	 * @return the value without its longest matching suffix, the same value if it doesn't end with any suffix.
+	 */
+	String strip(final String value) {
+		final int matched = match(value);
+		return matched != 0 ? value.substring(0, value.length() - matched) : value;
+	}
+}
@@ -0,0 +1,150 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import java.io.IOException;
+
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+
+/**
+ * An {@link UpdateRequestProcessor} that measures the time spent by another (wrapped) processor.
+ *
+ * The wrapped processor is created with a {@link Downstream} processor as next processor: the time spent in the rest of the chain
+ * is measured there and subtracted, so the recorded latencies belong to the wrapped stage only.
+ * Like any other processor, instances are used by a single thread and they are not thread-safe (histograms are).
+ */
+class TimedUpdateProcessor extends UpdateRequestProcessor {
+
+	/**
+	 * The next processor of the wrapped processor: it measures how long the rest of the chain takes.
+	 */
+	static class Downstream extends UpdateRequestProcessor {
+		long elapsedNanos;
+
+		/**
+		 * Builds a new {@link Downstream} processor.
+		 *
+		 * @param next the next processor in the chain.
+		 */
+		Downstream(final UpdateRequestProcessor next) {
+			super(next);
+		}
+
+		@Override
+		public void processAdd(final AddUpdateCommand command) throws IOException {
+			final long start = System.nanoTime();
+			try {
+				super.processAdd(command);
+			} finally {
+				elapsedNanos += System.nanoTime() - start;
+			}
+		}
+
+		@Override
+		public void processDelete(final DeleteUpdateCommand command) throws IOException {
+			final long start = System.nanoTime();
+			try {
+				super.processDelete(command);
+			} finally {
+				elapsedNanos += System.nanoTime() - start;
+			}
+		}
+
+		@Override
+		public void processCommit(final CommitUpdateCommand command) throws IOException {
+			final long start = System.nanoTime();
+			try {
+				super.processCommit(command);
+			} finally {
+				elapsedNanos += System.nanoTime() - start;
+			}
+		}
+
+		@Override
+		public void finish() throws IOException {
+			final long start = System.nanoTime();
+			try {
+				super.finish();
+			} finally {
+				elapsedNanos += System.nanoTime() - start;
+			}
+		}
+	}
+
+	private final Downstream downstream;
+	private final LatencyHistogram adds;
+	private final LatencyHistogram deletes;
+	private final LatencyHistogram commits;
+	private final LatencyHistogram finishes;
+
+	/**
+	 * Builds a new {@link TimedUpdateProcessor}.
+	 * Commands that aren't measured (rollback and merge) are forwarded as they are to the wrapped processor.
+	 *
+	 * @param wrapped the wrapped processor.
+	 * @param downstream the next processor of the wrapped processor.
+	 * @param adds the histogram of add latencies.
+	 * @param deletes the histogram of delete latencies.
+	 * @param commits the histogram of commit latencies.
+	 * @param finishes the histogram of finish latencies (i.e. the work a stage leaves to the end of the request).
+	 */
+	TimedUpdateProcessor(
+			final UpdateRequestProcessor wrapped,
+			final Downstream downstream,
+			final LatencyHistogram adds,
+			final LatencyHistogram deletes,
+			final LatencyHistogram commits,
+			final LatencyHistogram finishes) {
+		super(wrapped);
+		this.downstream = downstream;
+		this.adds = adds;
+		this.deletes = deletes;
+		this.commits = commits;
+		this.finishes = finishes;
+	}
+
+	@Override
+	public void processAdd(final AddUpdateCommand command) throws IOException {
+		downstream.elapsedNanos = 0;
+		final long start = System.nanoTime();
+		try {
+			super.processAdd(command);
+		} finally {
+			adds.record(System.nanoTime() - start - downstream.elapsedNanos);
+		}
+	}
+
+	@Override
+	public void processDelete(final DeleteUpdateCommand command) throws IOException {
+		downstream.elapsedNanos = 0;
+		final long start = System.nanoTime();
+		try {
+			super.processDelete(command);
+		} finally {
+			deletes.record(System.nanoTime() - start - downstream.elapsedNanos);
+		}
+	}
+
+	@Override
+	public void processCommit(final CommitUpdateCommand command) throws IOException {
+		downstream.elapsedNanos = 0;
+		final long start = System.nanoTime();
+		try {
+			super.processCommit(command);
+		} finally {
+			commits.record(System.nanoTime() - start - downstream.elapsedNanos);
+		}
+	}
+
+	@Override
+	public void finish() throws IOException {
+		downstream.elapsedNanos = 0;
+		final long start = System.nanoTime();
+		try {
+			super.finish();
+		} finally {
+			finishes.record(System.nanoTime() - start - downstream.elapsedNanos);
+		}
+	}
+}
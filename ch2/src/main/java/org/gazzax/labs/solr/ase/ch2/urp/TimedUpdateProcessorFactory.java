@@ -0,0 +1,178 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.util.ResourceLoaderAware;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.core.SolrResourceLoader;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.apache.solr.util.plugin.SolrCoreAware;
+
+/**
+ * A factory that wraps another processor factory, measuring how long its processors take.
+ *
+ * The wrapped factory is declared with the "delegate" parameter (a class name, "solr." shortcuts included) while the
+ * "stage" parameter names the measured stage (by default the simple name of the wrapped factory). All other parameters
+ * are passed, as they are, to the wrapped factory:
+ *
+ * <pre>
+	&lt;processor class="org.gazzax.labs.solr.ase.ch2.urp.TimedUpdateProcessorFactory"&gt;
+		&lt;str name="stage"&gt;geocoding&lt;/str&gt;
+		&lt;str name="delegate"&gt;org.gazzax.labs.solr.ase.ch2.urp.AddCoordinatesUpdateRequestProcessorFactory&lt;/str&gt;
+		&lt;int name="sleep-time"&gt;500&lt;/int&gt;
+	&lt;/processor&gt;
+ * </pre>
+ *
+ * Call counts and latency percentiles of processAdd, processDelete, processCommit and finish are exposed through the {@link SolrInfoMBean}
+ * interface (so in the admin UI and JMX), each stage with its own name. Latencies exclude the time spent in the rest of the chain.
+ *
+ * Latencies are measured per call, on the request thread. For a stage that forwards documents later than it receives them
+ * (e.g. the asynchronous geocoder) an add latency is the time the request thread spent in the stage for that call, which may include
+ * waiting for previous documents, not the latency of a single document; the documents still pending at the end of the request
+ * are accounted in the finish latencies.
+ *
+ * The wrapped factory is created when the core is available, and then initialised and informed (as {@link ResourceLoaderAware}
+ * and {@link SolrCoreAware}) by this factory, in the same order Solr uses for the plugins it creates. If the wrapped factory is a
+ * {@link SolrInfoMBean} (e.g. the geocoder, with its cache and service statistics) it is registered in the core info registry as
+ * well, with its class name followed by the stage name (e.g. "...AddCoordinatesUpdateRequestProcessorFactory.geocoding").
+ */
+public class TimedUpdateProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware, SolrInfoMBean {
+	static final String DELEGATE_PARAM_NAME = "delegate";
+	static final String STAGE_PARAM_NAME = "stage";
+
+	private String delegateClassName;
+	private String stage;
+	private NamedList<Object> delegateArgs;
+	private UpdateRequestProcessorFactory delegate;
+	private long startTime;
+
+	private final LatencyHistogram adds = new LatencyHistogram();
+	private final LatencyHistogram deletes = new LatencyHistogram();
+	private final LatencyHistogram commits = new LatencyHistogram();
+	private final LatencyHistogram finishes = new LatencyHistogram();
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void init(final NamedList args) {
+		delegateArgs = new NamedList<Object>();
+		for (int i = 0; args != null && i < args.size(); i++) {
+			final String name = args.getName(i);
+			if (DELEGATE_PARAM_NAME.equals(name)) {
+				delegateClassName = String.valueOf(args.getVal(i));
+			} else if (STAGE_PARAM_NAME.equals(name)) {
+				stage = String.valueOf(args.getVal(i));
+			} else {
+				delegateArgs.add(name, args.getVal(i));
+			}
+		}
+
+		if (delegateClassName == null) {
+			throw new SolrException(ErrorCode.SERVER_ERROR, "A timed processor requires a \"" + DELEGATE_PARAM_NAME + "\" factory.");
+		}
+
+		if (stage == null) {
+			stage = delegateClassName.substring(delegateClassName.lastIndexOf('.') + 1);
+		}
+	}
+
+	@Override
+	public void inform(final SolrCore core) {
+		// 1. The resource loader resolves "solr." shortcuts, but ResourceLoaderAware plugins have been already informed at this point:
+		//    so the factory isn't registered with the loader, and it is informed here
+		final SolrResourceLoader loader = core.getResourceLoader();
+		try {
+			delegate = loader.findClass(delegateClassName, UpdateRequestProcessorFactory.class).newInstance();
+		} catch (final InstantiationException | IllegalAccessException exception) {
+			throw new SolrException(ErrorCode.SERVER_ERROR, "Unable to create the " + delegateClassName + " factory.", exception);
+		}
+
+		// 2. Same lifecycle as any other plugin: init, then resource loader and core callbacks
+		delegate.init(delegateArgs);
+		if (delegate instanceof ResourceLoaderAware) {
+			try {
+				((ResourceLoaderAware) delegate).inform(loader);
+			} catch (final IOException exception) {
+				throw new SolrException(ErrorCode.SERVER_ERROR, "Unable to inform the " + delegateClassName + " factory.", exception);
+			}
+		}
+		if (delegate instanceof SolrCoreAware) {
+			((SolrCoreAware) delegate).inform(core);
+		}
+
+		// 3. Solr registers only the plugins it creates, so the wrapped factory statistics would be otherwise invisible
+		if (delegate instanceof SolrInfoMBean) {
+			core.getInfoRegistry().put(delegateClassName + "." + stage, (SolrInfoMBean) delegate);
+		}
+		startTime = System.currentTimeMillis();
+	}
+
+	@Override
+	public UpdateRequestProcessor getInstance(
+			final SolrQueryRequest request,
+			final SolrQueryResponse response,
+			final UpdateRequestProcessor next) {
+		final TimedUpdateProcessor.Downstream downstream = new TimedUpdateProcessor.Downstream(next);
+		final UpdateRequestProcessor wrapped = delegate.getInstance(request, response, downstream);
+
+		// The wrapped factory may decide to skip its stage: in that case there's nothing to measure
+		return wrapped != downstream ? new TimedUpdateProcessor(wrapped, downstream, adds, deletes, commits, finishes) : next;
+	}
+
+	@Override
+	public String getName() {
+		return getClass().getName() + "." + stage;
+	}
+
+	@Override
+	public String getVersion() {
+		return "1.0";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Timings of the " + stage + " update stage (" + delegateClassName + ")";
+	}
+
+	@Override
+	public Category getCategory() {
+		return Category.UPDATEHANDLER;
+	}
+
+	@Override
+	public String getSource() {
+		return null;
+	}
+
+	@Override
+	public URL[] getDocs() {
+		return null;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public NamedList getStatistics() {
+		final NamedList<Object> statistics = new NamedList<Object>();
+		statistics.add("stage", stage);
+		statistics.add("delegate", delegateClassName);
+
+		final long elapsed = startTime != 0 ? System.currentTimeMillis() - startTime : 0;
+		final NamedList<Object> addStatistics = adds.getStatistics("add");
+		statistics.add("addsPerSecond", elapsed > 0
+				? ((Number) addStatistics.get("addCount")).longValue() * (double) TimeUnit.SECONDS.toMillis(1) / elapsed
+				: 0d);
+		statistics.addAll(addStatistics);
+		statistics.addAll(deletes.getStatistics("delete"));
+		statistics.addAll(commits.getStatistics("commit"));
+		statistics.addAll(finishes.getStatistics("finish"));
+		return statistics;
+	}
+}
@@ -0,0 +1,62 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter.
+ * Tokens are added at a constant rate, up to the bucket capacity: each request takes a token, waiting if the bucket is empty.
+ * In this way short bursts are allowed, while the long term rate never exceeds the configured one.
+ *
+ * Instances are thread-safe and meant to be shared by all threads that call the same remote service.
+ */
+class TokenBucket {
+	private final long nanosPerToken;
+	private final long capacity;
+	private long tokens;
+	private long lastRefill;
+
+	/**
+	 * Builds a new (full) token bucket.
+	 *
+	 * @param permitsPerSecond the number of tokens added each second.
+	 * @param capacity the maximum number of tokens in the bucket (i.e. the maximum burst).
+	 */
+	TokenBucket(final double permitsPerSecond, final long capacity) {
+		this.nanosPerToken = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+		this.capacity = Math.max(1, capacity);
+		this.tokens = this.capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Takes a token, waiting until one is available.
+	 *
+	 * @throws InterruptedException if the current thread has been interrupted while waiting.
+	 */
+	void acquire() throws InterruptedException {
+		long wait;
+		while ((wait = tryAcquire()) > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * Takes a token, if available.
+	 *
+	 * @return 0 if a token has been taken, otherwise the time (in nanoseconds) until the next token will be available.
+	 */
+	private synchronized long tryAcquire() {
+		final long now = System.nanoTime();
+		final long refilled = (now - lastRefill) / nanosPerToken;
+		if (refilled > 0) {
+			tokens = Math.min(capacity, tokens + refilled);
+			lastRefill = tokens == capacity ? now : lastRefill + refilled * nanosPerToken;
+		}
+
+		if (tokens > 0) {
+			tokens--;
+			return 0;
+		}
+		return nanosPerToken - (now - lastRefill);
+	}
+}
@@ -0,0 +1,241 @@
+package org.gazzax.labs.solr.ase.ch2.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+/**
+ * Test case for {@link FlatRecordDecoder}.
+ */
+public class FlatRecordDecoderTest {
+
+	private final FlatRecordLayout layout = FlatRecordLayout.defaultLayout();
+
+	/**
+	 * Fields are extracted from their ranges and trimmed, except the id.
+	 */
+	@Test
+	public void decodeString() {
+		final SolrInputDocument document = new FlatRecordDecoder(layout, StandardCharsets.US_ASCII).decode(record(" 1234567", "9780000000001", "  A Title", "An Author"));
+
+		assertBook(document, " 1234567", "9780000000001", "A Title", "An Author");
+	}
+
+	/**
+	 * With a single-byte charset, records are decoded through the lookup table.
+	 */
+	@Test
+	public void decodeSingleByteCharset() {
+		final Charset charset = StandardCharsets.ISO_8859_1;
+		final String record = record("00000001", "9780000000001", "Caffè Società", "Françoise Müller");
+
+		final SolrInputDocument document = decode(new FlatRecordDecoder(layout, charset), record, charset);
+
+		assertBook(document, "00000001", "9780000000001", "Caffè Società", "Françoise Müller");
+	}
+
+	/**
+	 * With UTF-8, the record length is in characters, even if non-ASCII characters take more than one byte.
+	 */
+	@Test
+	public void decodeUtf8() {
+		final Charset charset = StandardCharsets.UTF_8;
+		final String record = record("00000001", "9780000000001", "Caffè Società", "Françoise Müller 日本");
+		assertTrue(record.getBytes(charset).length > layout.recordLength);
+
+		final SolrInputDocument document = decode(new FlatRecordDecoder(layout, charset), record, charset);
+
+		assertBook(document, "00000001", "9780000000001", "Caffè Società", "Françoise Müller 日本");
+	}
+
+	/**
+	 * Records with fewer or more characters than the layout are rejected, whatever the charset.
+	 */
+	@Test
+	public void wrongLength() {
+		final String record = record("00000001", "9780000000001", "Caffè", "Müller");
+		for (final Charset charset : new Charset [] {StandardCharsets.ISO_8859_1, StandardCharsets.UTF_8}) {
+			final FlatRecordDecoder decoder = new FlatRecordDecoder(layout, charset);
+
+			assertNull(charset.name(), decode(decoder, record.substring(1), charset));
+			assertNull(charset.name(), decode(decoder, record + "X", charset));
+			assertNull(charset.name(), decode(decoder, "", charset));
+		}
+	}
+
+	/**
+	 * A record is decoded at its offset within the buffer, and the decoder can be reused.
+	 */
+	@Test
+	public void decodeAtOffset() {
+		final Charset charset = StandardCharsets.UTF_8;
+		final String first = record("00000001", "9780000000001", "Perché", "Dante");
+		final String second = record("00000002", "9780000000002", "Où", "Marcel");
+		final byte [] firstBytes = (first + "\n").getBytes(charset);
+		final byte [] secondBytes = second.getBytes(charset);
+		final ByteBuffer buffer = ByteBuffer.allocate(firstBytes.length + secondBytes.length);
+		buffer.put(firstBytes).put(secondBytes).flip();
+
+		final FlatRecordDecoder decoder = new FlatRecordDecoder(layout, charset);
+		assertBook(decoder.decode(buffer, firstBytes.length, secondBytes.length), "00000002", "9780000000002", "Où", "Marcel");
+		assertBook(decoder.decode(buffer, 0, firstBytes.length - 1), "00000001", "9780000000001", "Perché", "Dante");
+		assertEquals(0, buffer.position());
+	}
+
+	/**
+	 * Typed fields are parsed from their ranges; blank typed fields are omitted.
+	 */
+	@Test
+	public void typedFields() {
+		final FlatRecordDecoder decoder = new FlatRecordDecoder(typedLayout(), StandardCharsets.US_ASCII);
+
+		final SolrInputDocument document = decoder.decode(typedRecord("-42", "12345678901", "2014-12-31 23:59:58"));
+		assertEquals(-42, document.getFieldValue("count"));
+		assertEquals(12345678901L, document.getFieldValue("size"));
+		assertEquals(date(2014, 12, 31, 23, 59, 58), document.getFieldValue("modified"));
+
+		final SolrInputDocument blank = decoder.decode(typedRecord("", "+1234567890", "20141231"));
+		assertNull(blank.getFieldValue("count"));
+		assertEquals(1234567890L, blank.getFieldValue("size"));
+		assertEquals(date(2014, 12, 31, 0, 0, 0), blank.getFieldValue("modified"));
+	}
+
+	/**
+	 * Malformed typed values are rejected.
+	 */
+	@Test
+	public void invalidTypedFields() {
+		final FlatRecordDecoder decoder = new FlatRecordDecoder(typedLayout(), StandardCharsets.US_ASCII);
+		for (final String record : new String [] {
+				typedRecord("4x2", "1", "20141231"),
+				typedRecord("-", "1", "20141231"),
+				typedRecord("42", "1 2", "20141231"),
+				typedRecord("42", "1", "20141331"),
+				typedRecord("42", "1", "201412"),
+				typedRecord("42", "1", "2014123100000000")}) {
+			try {
+				decoder.decode(record);
+				fail(record);
+			} catch (final IllegalArgumentException expected) {
+				// Nothing, this is the expected behaviour
+			}
+		}
+	}
+
+	/**
+	 * Decodes the given record from a buffer, with the given charset.
+	 *
+	 * @param decoder the decoder.
+	 * @param record the record.
+	 * @param charset the charset.
+	 * @return the decoded document, null if the record doesn't have the layout length.
+	 */
+	private static SolrInputDocument decode(final FlatRecordDecoder decoder, final String record, final Charset charset) {
+		final byte [] bytes = record.getBytes(charset);
+		return decoder.decode(ByteBuffer.wrap(bytes), 0, bytes.length);
+	}
+
+	/**
+	 * Asserts the given document has the expected book fields.
+	 *
+	 * @param document the document.
+	 * @param id the expected id.
+	 * @param isbn the expected ISBN.
+	 * @param title the expected title.
+	 * @param author the expected author.
+	 */
+	private static void assertBook(final SolrInputDocument document, final String id, final String isbn, final String title, final String author) {
+		assertEquals(id, document.getFieldValue("id"));
+		assertEquals(isbn, document.getFieldValue("isbn"));
+		assertEquals(title, document.getFieldValue("title"));
+		assertEquals(author, document.getFieldValue("author"));
+	}
+
+	/**
+	 * Builds a record of the default layout, padding each field with spaces.
+	 *
+	 * @param id the id.
+	 * @param isbn the ISBN.
+	 * @param title the title.
+	 * @param author the author.
+	 * @return a record of the default layout.
+	 */
+	private static String record(final String id, final String isbn, final String title, final String author) {
+		return String.format(Locale.ROOT, "%-8s%-13s%-44s%-42s", id, isbn, title, author);
+	}
+
+	/**
+	 * Builds a record of the typed layout, padding each field with spaces.
+	 *
+	 * @param count the int field.
+	 * @param size the long field.
+	 * @param modified the date field.
+	 * @return a record of the typed layout.
+	 */
+	private static String typedRecord(final String count, final String size, final String modified) {
+		return String.format(Locale.ROOT, "%5s %11s %-19s", count, size, modified);
+	}
+
+	/**
+	 * Returns a layout with an int (0-5), a long (6-17) and a date (18-37) field.
+	 *
+	 * @return a layout with typed fields.
+	 */
+	private static FlatRecordLayout typedLayout() {
+		final NamedList<Object> definitions = new NamedList<Object>();
+		definitions.add("count", field(0, 5, "int"));
+		definitions.add("size", field(6, 17, "long"));
+		definitions.add("modified", field(18, 37, "date"));
+
+		final NamedList<Object> args = new NamedList<Object>();
+		args.add(FlatRecordLayout.LAYOUT_PARAM_NAME, definitions);
+		return FlatRecordLayout.compile(args);
+	}
+
+	/**
+	 * Returns the definition of a layout field.
+	 *
+	 * @param start the field start.
+	 * @param end the field end.
+	 * @param type the field type.
+	 * @return the definition of a layout field.
+	 */
+	private static NamedList<Object> field(final int start, final int end, final String type) {
+		final NamedList<Object> field = new NamedList<Object>();
+		field.add("start", start);
+		field.add("end", end);
+		field.add("type", type);
+		return field;
+	}
+
+	/**
+	 * Returns the given UTC date.
+	 *
+	 * @param year the year.
+	 * @param month the month (1-12).
+	 * @param day the day of month.
+	 * @param hour the hour of day.
+	 * @param minute the minute.
+	 * @param second the second.
+	 * @return the given UTC date.
+	 */
+	private static Date date(final int year, final int month, final int day, final int hour, final int minute, final int second) {
+		final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ROOT);
+		calendar.clear();
+		calendar.set(year, month - 1, day, hour, minute, second);
+		return calendar.getTime();
+	}
+}
@@ -0,0 +1,147 @@
+package org.gazzax.labs.solr.ase.ch2.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Test case for {@link FlatRecordScanner}.
+ */
+public class FlatRecordScannerTest {
+
+	private final FlatRecordScanner scanner = new FlatRecordScanner();
+
+	/**
+	 * Records are delimited by line feeds, which are not part of the record.
+	 */
+	@Test
+	public void lineFeedTerminatedRecords() {
+		final ByteBuffer buffer = buffer("first\nsecond\n\nthird\n");
+
+		assertRecord("first", buffer);
+		assertRecord("second", buffer);
+		assertRecord("", buffer);
+		assertRecord("third", buffer);
+		assertFalse(scanner.next(buffer, true));
+		assertFalse(buffer.hasRemaining());
+	}
+
+	/**
+	 * A carriage return before the line feed is removed from the record.
+	 */
+	@Test
+	public void carriageReturnLineFeedTerminatedRecords() {
+		final ByteBuffer buffer = buffer("first\r\nsecond\r\nthird");
+
+		assertRecord("first", buffer);
+		assertRecord("second", buffer);
+		assertTrue(scanner.next(buffer, true));
+		assertEquals("third", record(buffer));
+	}
+
+	/**
+	 * Trailing bytes without a terminator are a record only at the end of the input.
+	 */
+	@Test
+	public void lastRecordWithoutTerminator() {
+		final ByteBuffer buffer = buffer("first\nsec");
+
+		assertRecord("first", buffer);
+		assertFalse(scanner.next(buffer, false));
+		assertEquals("the incomplete record must be left in the buffer", 6, buffer.position());
+
+		assertTrue(scanner.next(buffer, true));
+		assertEquals("sec", record(buffer));
+		assertFalse(scanner.next(buffer, true));
+	}
+
+	/**
+	 * A record split across two reads is found once the buffer has been compacted and refilled.
+	 */
+	@Test
+	public void recordSplitAcrossReads() {
+		final ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.put("first\nsec".getBytes(StandardCharsets.US_ASCII)).flip();
+
+		assertRecord("first", buffer);
+		assertFalse(scanner.next(buffer, false));
+
+		buffer.compact();
+		buffer.put("ond\r\n".getBytes(StandardCharsets.US_ASCII)).flip();
+		assertRecord("second", buffer);
+	}
+
+	/**
+	 * A line that fills the whole buffer is dropped, together with its remaining part in the next read.
+	 */
+	@Test
+	public void overlongLineIsDropped() {
+		final ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.put("01234567".getBytes(StandardCharsets.US_ASCII)).flip();
+		assertFalse(scanner.next(buffer, false));
+		assertFalse(buffer.hasRemaining());
+
+		buffer.clear();
+		buffer.put("89\nnext\n".getBytes(StandardCharsets.US_ASCII)).flip();
+		assertRecord("next", buffer);
+		assertFalse(scanner.next(buffer, true));
+	}
+
+	/**
+	 * Partitions end at a record boundary, as close as possible to the requested size; trailing bytes without a terminator
+	 * are a partition only at the end of the input.
+	 */
+	@Test
+	public void partitionEnd() {
+		final ByteBuffer buffer = buffer("aaa\nbbb\nccc\ndd");
+
+		assertEquals(8, FlatRecordScanner.partitionEnd(buffer, 9, false));
+		assertEquals(4, FlatRecordScanner.partitionEnd(buffer, 2, false));
+		assertEquals(12, FlatRecordScanner.partitionEnd(buffer, 100, false));
+		assertEquals(12, FlatRecordScanner.partitionEnd(buffer, 100, true));
+
+		buffer.position(12);
+		assertEquals(-1, FlatRecordScanner.partitionEnd(buffer, 100, false));
+		assertEquals(14, FlatRecordScanner.partitionEnd(buffer, 100, true));
+	}
+
+	/**
+	 * Asserts the next record in the given buffer is the expected one.
+	 *
+	 * @param expected the expected record.
+	 * @param buffer the buffer.
+	 */
+	private void assertRecord(final String expected, final ByteBuffer buffer) {
+		assertTrue(scanner.next(buffer, false));
+		assertEquals(expected, record(buffer));
+	}
+
+	/**
+	 * Returns the current record of the scanner.
+	 *
+	 * @param buffer the scanned buffer.
+	 * @return the current record of the scanner.
+	 */
+	private String record(final ByteBuffer buffer) {
+		final byte [] bytes = new byte[scanner.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(scanner.start() + i);
+		}
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Returns a buffer, ready for reading, with the given content.
+	 *
+	 * @param content the buffer content.
+	 * @return a buffer, ready for reading, with the given content.
+	 */
+	private static ByteBuffer buffer(final String content) {
+		return ByteBuffer.wrap(content.getBytes(StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,267 @@
+package org.gazzax.labs.solr.ase.ch2.urp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test case for {@link AsyncAddCoordinatesUpdateRequestProcessor}.
+ * Geolocation requests go to a local stub of the geocoding service, which answers with latitude n and longitude -n
+ * for the address "n Main Street", after the delay configured for that address.
+ */
+public class AsyncAddCoordinatesUpdateRequestProcessorTest {
+
+	private HttpServer server;
+	private ExecutorService serverExecutor;
+	private final Map<String, Long> delays = new ConcurrentHashMap<String, Long>();
+	private final List<Long> requestTimes = Collections.synchronizedList(new ArrayList<Long>());
+
+	private AddCoordinatesUpdateRequestProcessorFactory factory;
+	private final RecordingProcessor next = new RecordingProcessor();
+
+	/**
+	 * A processor that records the documents it receives.
+	 */
+	private static class RecordingProcessor extends UpdateRequestProcessor {
+		final List<SolrInputDocument> documents = new ArrayList<SolrInputDocument>();
+		boolean finished;
+
+		/**
+		 * Builds a new processor at the end of the chain.
+		 */
+		RecordingProcessor() {
+			super(null);
+		}
+
+		@Override
+		public void processAdd(final AddUpdateCommand command) {
+			documents.add(command.getSolrInputDocument());
+		}
+
+		@Override
+		public void finish() {
+			finished = true;
+		}
+	}
+
+	/**
+	 * Starts the geocoding service stub.
+	 *
+	 * @throws IOException in case the stub cannot be started.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/geocode", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				requestTimes.add(System.nanoTime());
+
+				final String address = URLDecoder.decode(exchange.getRequestURI().getRawQuery().substring("address=".length()), "UTF-8");
+				final Long delay = delays.get(address);
+				if (delay != null) {
+					try {
+						Thread.sleep(delay);
+					} catch (final InterruptedException exception) {
+						Thread.currentThread().interrupt();
+					}
+				}
+
+				final String n = address.substring(0, address.indexOf(' '));
+				final byte [] response = (
+						"<GeocodeResponse><status>OK</status><result><geometry><location>"
+						+ "<lat>" + n + "</lat><lng>-" + n + "</lng>"
+						+ "</location></geometry></result></GeocodeResponse>").getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=UTF-8");
+				exchange.sendResponseHeaders(200, response.length);
+				final OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(response);
+				} finally {
+					out.close();
+				}
+			}
+		});
+		serverExecutor = Executors.newCachedThreadPool();
+		server.setExecutor(serverExecutor);
+		server.start();
+	}
+
+	/**
+	 * Stops the processor factory and the geocoding service stub.
+	 */
+	@After
+	public void tearDown() {
+		if (factory != null) {
+			factory.executor.shutdownNow();
+			factory.service.shutdown();
+		}
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+
+	/**
+	 * Documents are forwarded in the same order they have been received, even if their coordinates come back in a different order.
+	 */
+	@Test
+	public void documentsAreForwardedInOrder() throws Exception {
+		final UpdateRequestProcessor processor = processor(1000, 100, 100);
+		for (int i = 0; i < 10; i++) {
+			delays.put(address(i), (long) (10 - i) * 20);
+			processor.processAdd(command(i, i == 5 ? null : address(i)));
+		}
+		processor.finish();
+
+		assertEquals(10, next.documents.size());
+		for (int i = 0; i < 10; i++) {
+			final SolrInputDocument document = next.documents.get(i);
+			assertEquals(String.valueOf(i), document.getFieldValue("id"));
+			assertEquals(i == 5 ? null : i + ",-" + i, document.getFieldValue("coordinates"));
+		}
+		assertEquals(9, requestTimes.size());
+	}
+
+	/**
+	 * Documents waiting for their coordinates are forwarded on finish.
+	 */
+	@Test
+	public void finishFlushesPendingDocuments() throws Exception {
+		final UpdateRequestProcessor processor = processor(1000, 100, 100);
+		for (int i = 0; i < 3; i++) {
+			delays.put(address(i), 300L);
+			processor.processAdd(command(i, address(i)));
+		}
+		assertTrue(next.documents.isEmpty());
+		assertFalse(next.finished);
+
+		processor.finish();
+
+		assertTrue(next.finished);
+		assertEquals(3, next.documents.size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(i + ",-" + i, next.documents.get(i).getFieldValue("coordinates"));
+		}
+	}
+
+	/**
+	 * Once the maximum number of pending documents is reached, the oldest one is forwarded (waiting for its coordinates).
+	 */
+	@Test
+	public void pendingDocumentsAreBounded() throws Exception {
+		final UpdateRequestProcessor processor = processor(1000, 100, 2);
+		for (int i = 0; i < 5; i++) {
+			delays.put(address(i), 100L);
+			processor.processAdd(command(i, address(i)));
+			assertTrue(next.documents.size() >= i - 1);
+		}
+		processor.finish();
+
+		assertEquals(5, next.documents.size());
+	}
+
+	/**
+	 * Geolocation requests never exceed the configured rate, whatever the number of workers.
+	 */
+	@Test
+	public void requestsAreRateLimited() throws Exception {
+		final UpdateRequestProcessor processor = processor(10, 1, 100);
+		for (int i = 0; i < 6; i++) {
+			processor.processAdd(command(i, address(i)));
+		}
+		processor.finish();
+
+		assertEquals(6, next.documents.size());
+		assertEquals(6, requestTimes.size());
+
+		final List<Long> times = new ArrayList<Long>(requestTimes);
+		Collections.sort(times);
+
+		// 10 requests per second with no bursts: the first request is immediate, then one request each 100 msecs
+		final long elapsed = TimeUnit.NANOSECONDS.toMillis(times.get(times.size() - 1) - times.get(0));
+		assertTrue("6 requests in " + elapsed + " msecs", elapsed >= 450);
+	}
+
+	/**
+	 * Builds an asynchronous processor that calls the geocoding service stub, with 4 workers and without cache.
+	 *
+	 * @param rate the maximum number of requests per second.
+	 * @param burst the maximum burst.
+	 * @param maxPending the maximum number of documents waiting for their coordinates.
+	 * @return a new asynchronous processor.
+	 */
+	private UpdateRequestProcessor processor(final int rate, final int burst, final int maxPending) {
+		final NamedList<Object> args = new NamedList<Object>();
+		args.add(AddCoordinatesUpdateRequestProcessorFactory.ASYNC_PARAM_NAME, "true");
+		args.add(AddCoordinatesUpdateRequestProcessorFactory.THREADS_PARAM_NAME, "4");
+		args.add(AddCoordinatesUpdateRequestProcessorFactory.RATE_PARAM_NAME, String.valueOf(rate));
+		args.add(AddCoordinatesUpdateRequestProcessorFactory.BURST_PARAM_NAME, String.valueOf(burst));
+		args.add(AddCoordinatesUpdateRequestProcessorFactory.MAX_PENDING_PARAM_NAME, String.valueOf(maxPending));
+		args.add(AddCoordinatesUpdateRequestProcessorFactory.CACHE_PARAM_NAME, "false");
+		args.add(
+				AddCoordinatesUpdateRequestProcessorFactory.SERVICE_URL_PARAM_NAME,
+				"http://127.0.0.1:" + server.getAddress().getPort() + "/geocode?address=");
+
+		final AddCoordinatesUpdateRequestProcessorFactory factory = new AddCoordinatesUpdateRequestProcessorFactory();
+		factory.init(args);
+		this.factory = factory;
+
+		final UpdateRequestProcessor processor = factory.getInstance(null, null, next);
+		assertTrue(processor instanceof AsyncAddCoordinatesUpdateRequestProcessor);
+		return processor;
+	}
+
+	/**
+	 * Builds an add command for a document with the given id and address.
+	 *
+	 * @param id the document id.
+	 * @param address the document address, null if the document doesn't have an address.
+	 * @return a new add command.
+	 */
+	private static AddUpdateCommand command(final int id, final String address) {
+		final SolrInputDocument document = new SolrInputDocument();
+		document.setField("id", String.valueOf(id));
+		if (address != null) {
+			document.setField("address", address);
+		}
+
+		final AddUpdateCommand command = new AddUpdateCommand(null);
+		command.solrDoc = document;
+		return command;
+	}
+
+	/**
+	 * Returns the address of the n-th document.
+	 *
+	 * @param n the document index.
+	 * @return the address of the n-th document.
+	 */
+	private static String address(final int n) {
+		return n + " Main Street";
+	}
+}
@@ -0,0 +1,117 @@
+package org.gazzax.labs.solr.ase.ch3.rw;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time needed to write out an autocomplete response with a given number of suggestions: the original implementation
+ * (the whole response built in a StringBuilder, with two regular expression replacements for each label, and written
+ * at the end) against the current {@link AutocompleteResponseWriter} (each label escaped and streamed directly to the writer).
+ *
+ * Only the serialization is measured: labels are already loaded, as they are when they come from the
+ * PrefixSuggestionComponent. The output goes to a reused {@link StringWriter}.
+ *
+ * <pre>
+ * mvn -Pjmh package &amp;&amp; java -jar target/benchmarks.jar AutocompleteWriterBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AutocompleteWriterBenchmark {
+	private static final String [] WORDS = {
+		"Another", "Brick", "in", "the", "Wall", "Alain", "Caron", "Antony", "Jackson", "Liberia", "Liechtenstein",
+		"Rock'n'Roll", "\"Live\"", "Don't", "Stop", "Me", "Now", "L'amour", "Blues", "Jazz"};
+
+	@Param({"10", "50", "500"})
+	int suggestions;
+
+	private final String query = "Li";
+	private final StringWriter writer = new StringWriter();
+	private String [] labels;
+
+	@Setup
+	public void setUp() {
+		final Random random = new Random(31);
+		labels = new String[suggestions];
+		for (int i = 0; i < suggestions; i++) {
+			final StringBuilder label = new StringBuilder();
+			final int words = 1 + random.nextInt(5);
+			for (int w = 0; w < words; w++) {
+				if (w > 0) {
+					label.append(' ');
+				}
+				label.append(WORDS[random.nextInt(WORDS.length)]);
+			}
+			labels[i] = label.toString();
+		}
+	}
+
+	/**
+	 * The original implementation: the response is built in a StringBuilder and then written out.
+	 */
+	@Benchmark
+	public StringWriter original() throws IOException {
+		writer.getBuffer().setLength(0);
+		final StringBuilder builder = new StringBuilder("{")
+			.append("query:'")
+			.append(query)
+			.append("',");
+		builder.append("suggestions:[");
+		for (int i = 0; i < labels.length; i++) {
+			if (i > 0)  { builder.append(","); }
+			builder
+				.append("'")
+				.append(labels[i].replaceAll("'", "\\\\'").replaceAll("\"", "\\\\\""))
+				.append("'");
+		}
+		builder.append("]").append("}");
+		writer.write(builder.toString());
+		return writer;
+	}
+
+	/**
+	 * The current implementation: the response is streamed to the writer.
+	 */
+	@Benchmark
+	public StringWriter streaming() throws IOException {
+		writer.getBuffer().setLength(0);
+		write(writer);
+		return writer;
+	}
+
+	/**
+	 * Writes out the response like {@link AutocompleteResponseWriter} does, for a list of suggestions.
+	 *
+	 * @param out the character stream writer.
+	 * @throws IOException in case of I/O failure.
+	 */
+	private void write(final Writer out) throws IOException {
+		out.write("{\"query\":");
+		AutocompleteResponseWriter.writeString(out, query);
+		out.write(",\"suggestions\":[");
+		for (int i = 0; i < labels.length; i++) {
+			if (i > 0)  { out.write(','); }
+			AutocompleteResponseWriter.writeString(out, labels[i]);
+		}
+		out.write("]}");
+	}
+}
@@ -0,0 +1,158 @@
+package org.gazzax.labs.solr.ase.ch3.listener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+
+/**
+ * A fingerprint of a set of data files, stored in the user data of the index commit that follows their loading.
+ *
+ * The fingerprint has two parts: a digest of the file paths, sizes and modification times, which is cheap to compute, and
+ * a digest of the file contents (a streaming CRC32 of each file). The contents are read only if the first part matches,
+ * so a changed snapshot is detected without reading it twice.
+ *
+ * Solr replaces the commit user data at each commit, so the fingerprint can't be passed through the update handler: it is
+ * written, through the index writer, with an additional commit that follows the one of the loaded data. For the same reason
+ * the fingerprint is lost as soon as the index changes after the loading, and the data files will be loaded again at the next startup.
+ */
+class DataFileFingerprint {
+	static final String FILES_KEY = "startup.files";
+	static final String CONTENTS_KEY = "startup.contents";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final List<File> files;
+	private final String filesDigest;
+	private String contentsDigest;
+
+	/**
+	 * Builds the fingerprint of the given data files.
+	 *
+	 * @param files the data files.
+	 */
+	DataFileFingerprint(final List<File> files) {
+		this.files = new ArrayList<File>(files);
+		Collections.sort(this.files, new Comparator<File>() {
+			@Override
+			public int compare(final File file1, final File file2) {
+				return file1.getAbsolutePath().compareTo(file2.getAbsolutePath());
+			}
+		});
+
+		final MessageDigest digest = digest();
+		for (final File file : this.files) {
+			digest.update((file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		this.filesDigest = hex(digest.digest());
+	}
+
+	/**
+	 * Returns true if the given searcher has been opened on an index commit with this fingerprint.
+	 *
+	 * @param searcher the searcher.
+	 * @return true if the given searcher has been opened on an index commit with this fingerprint.
+	 * @throws IOException in case of I/O failure while reading the index commit or the data files.
+	 */
+	boolean matches(final SolrIndexSearcher searcher) throws IOException {
+		final Map<String, String> userData = searcher.getIndexReader().getIndexCommit().getUserData();
+		return userData != null
+				&& filesDigest.equals(userData.get(FILES_KEY))
+				&& contents().equals(userData.get(CONTENTS_KEY));
+	}
+
+	/**
+	 * Stores this fingerprint in the user data of a new index commit.
+	 * The loaded data must have already been (hard) committed through the update handler, and the first searcher must
+	 * have already been registered: the new commit doesn't open a searcher.
+	 *
+	 * @param core the core.
+	 * @throws IOException in case of I/O failure while reading the data files or committing.
+	 */
+	void store(final SolrCore core) throws IOException {
+		final String contents = contents();
+		final RefCounted<IndexWriter> writer = core.getSolrCoreState().getIndexWriter(core);
+		try {
+			final IndexWriter indexWriter = writer.get();
+			final Map<String, String> userData = new HashMap<String, String>(indexWriter.getCommitData());
+			userData.put(FILES_KEY, filesDigest);
+			userData.put(CONTENTS_KEY, contents);
+			indexWriter.setCommitData(userData);
+			indexWriter.commit();
+		} finally {
+			writer.decref();
+		}
+	}
+
+	/**
+	 * Returns the digest of the data file contents, computing it the first time.
+	 *
+	 * @return the digest of the data file contents.
+	 * @throws IOException in case of I/O failure while reading the data files.
+	 */
+	private String contents() throws IOException {
+		if (contentsDigest == null) {
+			final MessageDigest digest = digest();
+			final byte [] buffer = new byte[BUFFER_SIZE];
+			final CRC32 crc = new CRC32();
+			for (final File file : files) {
+				crc.reset();
+				final InputStream stream = new FileInputStream(file);
+				try {
+					int read;
+					while ((read = stream.read(buffer)) != -1) {
+						crc.update(buffer, 0, read);
+					}
+				} finally {
+					stream.close();
+				}
+				digest.update((crc.getValue() + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+			contentsDigest = hex(digest.digest());
+		}
+		return contentsDigest;
+	}
+
+	/**
+	 * Returns a new MD5 digest.
+	 *
+	 * @return a new MD5 digest.
+	 */
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (final NoSuchAlgorithmException impossible) {
+			// Every Java platform is required to support MD5
+			throw new IllegalStateException(impossible);
+		}
+	}
+
+	/**
+	 * Returns the hexadecimal representation of the given bytes.
+	 *
+	 * @param bytes the bytes.
+	 * @return the hexadecimal representation of the given bytes.
+	 */
+	private static String hex(final byte [] bytes) {
+		final StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (final byte value : bytes) {
+			builder.append(Character.forDigit((value >> 4) & 0xF, 16)).append(Character.forDigit(value & 0xF, 16));
+		}
+		return builder.toString();
+	}
+}
@@ -1,39 +1,94 @@
 package org.gazzax.labs.solr.ase.ch3.listener;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
+import java.net.URL;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.EventParams;
-import org.apache.solr.common.params.UpdateParams;
-import org.apache.solr.common.util.ContentStream;
-import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.core.SolrEventListener;
-import org.apache.solr.request.LocalSolrQueryRequest;
-import org.apache.solr.request.SolrRequestInfo;
-import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.core.SolrInfoMBean;
 import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A {@link SolrEventListener} that preload sample data when Solr starts up.
  * 
+ * Data (Solr XML) files are declared with the "datafile" parameter, a comma-separated list of files, and / or with the "datadir" 
+ * parameter, a directory whose .xml files will be loaded. Files are loaded in parallel, by at most "threads" threads 
+ * (by default the number of available processors), through the "update.chain" update chain (by default the default chain).
+ * See {@link DataFileLoader} for details.
+ * 
+ * With "async" set to true the data files are loaded in background, so the first searcher is registered (and queries are served) 
+ * immediately. In that case "commit-interval" (if greater than 0) is the number of documents between two commits, which are soft 
+ * commits unless "soft-commit" is false, so partial data becomes searchable while it is loaded. 
+ * The loading status (STARTING, LOADING, READY or FAILED) and progress are exposed through the {@link SolrInfoMBean} interface and 
+ * by the {@link StartupStatusHandler}, which can be polled by a health check.
+ * 
+ * With "skip-unchanged" set to true the fingerprint of the data files (see {@link DataFileFingerprint}) is stored in the index 
+ * commit user data once they have been loaded and committed, and the loading is skipped at the next startup if the fingerprint 
+ * of the index commit still matches. Checking the fingerprint doesn't require a commit, so it happens within the first searcher event. 
+ * Storing it does: that is never done within the (synchronous) first searcher event, because a commit would open another searcher 
+ * before the first one has been registered. Instead, a background task waits for the first searcher registration, then commits 
+ * the loaded data and stores the fingerprint. 
+ * 
  * @author Andrea Gazzarini
  * @since 1.0
  */
 @SuppressWarnings("rawtypes")
-public class SolrStartupListener implements SolrEventListener {
+public class SolrStartupListener implements SolrEventListener, SolrInfoMBean {
+	private final static Logger LOGGER = LoggerFactory.getLogger(SolrStartupListener.class);
+	
+	static final String DATAFILE_PARAM_NAME = "datafile";
+	static final String DATADIR_PARAM_NAME = "datadir";
+	static final String THREADS_PARAM_NAME = "threads";
+	static final String UPDATE_CHAIN_PARAM_NAME = "update.chain";
+	static final String ASYNC_PARAM_NAME = "async";
+	static final String COMMIT_INTERVAL_PARAM_NAME = "commit-interval";
+	static final String SOFT_COMMIT_PARAM_NAME = "soft-commit";
+	static final String SKIP_UNCHANGED_PARAM_NAME = "skip-unchanged";
+	
+	/**
+	 * The startup status.
+	 */
+	enum Status {
+		STARTING, LOADING, READY, FAILED
+	}
 	
 	private String datafile;
+	private String datadir;
+	private int threads;
+	private String updateChain;
+	private boolean async;
+	private int commitInterval;
+	private boolean softCommit;
+	private boolean skipUnchanged;
+	
+	private volatile boolean started;
+	private volatile DataFileLoader loader;
 	
 	@Override
 	public void init(final NamedList args) {
-		this.datafile = (String) args.get("datafile");
+		final SolrParams parameters = SolrParams.toSolrParams(args);
+		this.datafile = parameters.get(DATAFILE_PARAM_NAME);
+		this.datadir = parameters.get(DATADIR_PARAM_NAME);
+		this.threads = parameters.getInt(THREADS_PARAM_NAME, Runtime.getRuntime().availableProcessors());
+		this.updateChain = parameters.get(UPDATE_CHAIN_PARAM_NAME);
+		this.async = parameters.getBool(ASYNC_PARAM_NAME, false);
+		this.commitInterval = async ? parameters.getInt(COMMIT_INTERVAL_PARAM_NAME, 0) : 0;
+		this.softCommit = parameters.getBool(SOFT_COMMIT_PARAM_NAME, true);
+		this.skipUnchanged = parameters.getBool(SKIP_UNCHANGED_PARAM_NAME, false);
 	}
 
 	@Override
@@ -56,38 +111,215 @@ public class SolrStartupListener implements SolrEventListener {
 			return;
 		}
 		
-		LocalSolrQueryRequest request = null;
+		// 2. Collect the data files
+		final List<File> files = DataFileLoader.files(datafile, datadir);
+		if (files.isEmpty()) {
+			started = true;
+			return;
+		}
 		
-		try {
-			
-			// 2. Create the arguments map for the update request
-			final NamedList<String> args = new SimpleOrderedMap<String>();
-			args.add(UpdateParams.ASSUME_CONTENT_TYPE, "text/xml");
-			addEventParms(currentSearcher, args);
+		// 3. Skip the loading if the index has been built from the same data files
+		final DataFileFingerprint fingerprint = skipUnchanged ? new DataFileFingerprint(files) : null;
+		if (fingerprint != null && matches(fingerprint, newSearcher)) {
+			LOGGER.info("Data files are unchanged since they have been loaded in core " + newSearcher.getCore().getName() + ": loading skipped.");
+			started = true;
+			return;
+		}
+		
+		// 4. Create the arguments map for the update requests
+		final NamedList<String> args = new SimpleOrderedMap<String>();
+		addEventParms(currentSearcher, args);
 
-			// 3. Create a new Solr (update) request
-			request = new LocalSolrQueryRequest(newSearcher.getCore(), args);
+		// 5. And finally load the data files (in parallel) through the update chain
+		final SolrCore core = newSearcher.getCore();
+		final DataFileLoader dataFileLoader = new DataFileLoader(
+				core, 
+				files, 
+				SolrParams.toSolrParams(args), 
+				updateChain, 
+				threads, 
+				commitInterval, 
+				softCommit,
+				async && fingerprint != null);
+		loader = dataFileLoader;
+		started = true;
+		
+		if (!async) {
+			dataFileLoader.load();
 			
-			// 4. Fill the request with the (datafile) input stream
-			final List<ContentStream> streams = new ArrayList<ContentStream>();
-			streams.add(new ContentStreamBase() {
-				@Override
-				public InputStream getStream() throws IOException {
-					return new FileInputStream(datafile);
+			// 6. Sync mode: the loaded data is committed, and the fingerprint stored, once the first searcher has been registered
+			if (fingerprint != null && dataFileLoader.status() == DataFileLoader.Status.COMPLETED) {
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						if (awaitFirstSearcher(core) && dataFileLoader.commit()) {
+							store(core, fingerprint);
+						}
+					}
+				});
+			}
+			return;
+		}
+		
+		// 7. Async mode: the loading runs in background, so the first searcher can be registered immediately
+		core.addCloseHook(new CloseHook() {
+			@Override
+			public void preClose(final SolrCore core) {
+				dataFileLoader.cancel();
+			}
+
+			@Override
+			public void postClose(final SolrCore core) {
+				// Nothing to be done here
+			}
+		});
+		
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				// Commits issued before the first searcher registration would fire the first searcher event again
+				if (!awaitFirstSearcher(core)) {
+					dataFileLoader.cancel();
 				}
-			});
-			
-			request.setContentStreams(streams);
-			
-			// 5. Creates a new Solr response
-			final SolrQueryResponse response = new SolrQueryResponse();
-			
-			// 6. And finally call invoke the update handler
-			SolrRequestInfo.setRequestInfo(new SolrRequestInfo(request, response));
-			newSearcher.getCore().getRequestHandler("/update").handleRequest(request, response);		
-		} finally {
-			request.close();
+				
+				dataFileLoader.load();
+				if (fingerprint != null && dataFileLoader.status() == DataFileLoader.Status.COMPLETED) {
+					store(core, fingerprint);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Runs the given task in background.
+	 * 
+	 * @param task the task.
+	 */
+	private static void execute(final Runnable task) {
+		final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "startup-loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.execute(task);
+		executor.shutdown();
+	}
+	
+	/**
+	 * Waits for the registration of the first searcher of the given core.
+	 * 
+	 * @param core the core.
+	 * @return true if the first searcher has been registered, false if that didn't happen (e.g. the core has been closed).
+	 */
+	private static boolean awaitFirstSearcher(final SolrCore core) {
+		try {
+			core.getSearcher().decref();
+			return true;
+		} catch (final SolrException exception) {
+			LOGGER.error("Unable to get the registered searcher of core " + core.getName() + ".", exception);
+			return false;
+		}
+	}
+	
+	/**
+	 * Stores the given fingerprint in the index of the given core. 
+	 * The loaded data must have already been committed.
+	 * 
+	 * @param core the core.
+	 * @param fingerprint the data file fingerprint.
+	 */
+	private static void store(final SolrCore core, final DataFileFingerprint fingerprint) {
+		try {
+			fingerprint.store(core);
+		} catch (final IOException exception) {
+			LOGGER.error("Unable to store the data file fingerprint: data files will be loaded again at the next startup.", exception);
+		}
+	}
+	
+	/**
+	 * Returns true if the given searcher has been opened on an index built from the data files with the given fingerprint.
+	 * 
+	 * @param fingerprint the data file fingerprint.
+	 * @param searcher the searcher.
+	 * @return true if the given searcher has been opened on an index built from the data files with the given fingerprint.
+	 */
+	private boolean matches(final DataFileFingerprint fingerprint, final SolrIndexSearcher searcher) {
+		try {
+			return fingerprint.matches(searcher);
+		} catch (final IOException exception) {
+			LOGGER.error("Unable to check the data file fingerprint: data files will be loaded.", exception);
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns the startup status.
+	 * 
+	 * @return the startup status.
+	 */
+	Status status() {
+		if (!started) {
+			return Status.STARTING;
+		}
+		
+		final DataFileLoader current = loader;
+		if (current == null) {
+			return Status.READY;
+		}
+		
+		switch (current.status()) {
+			case LOADING:
+				return Status.LOADING;
+			case COMPLETED:
+				return Status.READY;
+			default:
+				return Status.FAILED;
+		}
+	}
+	
+	@Override
+	public String getName() {
+		return getClass().getName();
+	}
+
+	@Override
+	public String getVersion() {
+		return "1.0";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Loads sample data when Solr starts up";
+	}
+
+	@Override
+	public Category getCategory() {
+		return Category.OTHER;
+	}
+
+	@Override
+	public String getSource() {
+		return null;
+	}
+
+	@Override
+	public URL[] getDocs() {
+		return null;
+	}
+
+	@Override
+	public NamedList getStatistics() {
+		final NamedList<Object> statistics = new SimpleOrderedMap<Object>();
+		statistics.add("status", status().name());
+		
+		final DataFileLoader current = loader;
+		if (current != null) {
+			statistics.addAll(current.getStatistics());
 		}
+		return statistics;
 	}
 	
 	/**
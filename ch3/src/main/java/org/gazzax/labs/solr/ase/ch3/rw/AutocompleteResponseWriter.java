@@ -1,20 +1,35 @@
 package org.gazzax.labs.solr.ase.ch3.rw;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.util.HashSet;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
-import org.apache.lucene.document.Document;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.core.SolrInfoMBean;
 import org.apache.solr.request.SolrQueryRequest;
-import org.apache.solr.response.QueryResponseWriter;
+import org.apache.solr.response.BinaryQueryResponseWriter;
 import org.apache.solr.response.ResultContext;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.DocList;
 import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.FastWriter;
+import org.apache.solr.util.plugin.SolrCoreAware;
 
 /**
  * A custom response writer for an autocomplete feature.
@@ -24,8 +39,8 @@ import org.apache.solr.search.SolrIndexSearcher;
  * <br/>
  * <pre>
  * 	{
-		 query:'Li',
-		 suggestions:['Liberia','Libyan Arab Jamahiriya','Liechtenstein','Lithuania']
+		 "query":"Li",
+		 "suggestions":["Liberia","Libyan Arab Jamahiriya","Liechtenstein","Lithuania"]
 	}
  * </pre>
  * 
@@ -36,19 +51,96 @@ import org.apache.solr.search.SolrIndexSearcher;
  * Another Brick in the wall (Song)
  * Antony Jackson (Bassist)
  * 
+ * The label field ("label" by default) can be changed with the "label-field" parameter. If "use-doc-values" is true
+ * and the label field has docValues, labels are read from docValues instead of loading the stored documents
+ * (see {@link LabelReader}).
+ * 
+ * <pre>
+	&lt;queryResponseWriter name="autocomplete" class="org.gazzax.labs.solr.ase.ch3.rw.AutocompleteResponseWriter"&gt;
+		&lt;str name="label-field"&gt;label&lt;/str&gt;
+		&lt;bool name="use-doc-values"&gt;true&lt;/bool&gt;
+	&lt;/queryResponseWriter&gt;
+ * </pre>
+ * 
+ * If "multi-field" is true, each suggestion is an object with the label and the payload fields requested with "fl",
+ * all read in one batched pass (see {@link SuggestionFieldReader}), so a client gets ids, categories and so on without a 
+ * second request:
+ * 
+ * <pre>
+ * 	{
+		 "query":"Li",
+		 "suggestions":[{"label":"Liberia","type":"Country"},{"label":"Liechtenstein","type":"Country"}]
+	}
+ * </pre>
+ * 
+ * If "cache-size-in-bytes" is greater than 0, rendered responses are cached, UTF-8 encoded, by searcher version, handler 
+ * and all the effective request parameters (see {@link RenderedResponseCache}), so the short and frequent prefixes are serialized 
+ * only once. The cache is cleared when a new searcher is opened; hit ratio and saved bytes are part of the writer statistics. 
+ * 
  * @author Andrea Gazzarini
  * @since 1.0
  */
-public class AutocompleteResponseWriter implements QueryResponseWriter {	
-	private final static Set<String> FIELDS = new HashSet<String>(1);
-	static 
-	{
-		FIELDS.add("label");
+public class AutocompleteResponseWriter implements BinaryQueryResponseWriter, SolrCoreAware, SolrInfoMBean {	
+	static final String LABEL_FIELD_PARAM_NAME = "label-field";
+	static final String DEFAULT_LABEL_FIELD = "label";
+	static final String USE_DOC_VALUES_PARAM_NAME = "use-doc-values";
+	static final String CACHE_SIZE_PARAM_NAME = "cache-size-in-bytes";
+	static final String MULTI_FIELD_PARAM_NAME = "multi-field";
+	
+	private final static char [] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	
+	private String labelField = DEFAULT_LABEL_FIELD;
+	private boolean useDocValues;
+	private boolean multiField;
+	private RenderedResponseCache cache;
+
+	/**
+	 * Here the writer creates its (binary) output, when the response is sent over HTTP.
+	 * 
+	 * Without a cache, the output is streamed as UTF-8; otherwise it is rendered once in memory and cached, 
+	 * and subsequent requests with the same key get the cached bytes. 
+	 * Note that the cache saves the serialization only: the query has already been executed by the request handler.
+	 * 
+	 * @param out the output stream.
+	 * @param request the current {@link SolrQueryRequest}
+	 * @param response the output response.
+	 * @throws IOException in case of I/O failure.
+	 */
+	@Override
+	public void write(
+			final OutputStream out, 
+			final SolrQueryRequest request, 
+			final SolrQueryResponse response) throws IOException {
+		
+		// 1. No cache (or an error response): stream the output
+		if (cache == null || response.getException() != null) {
+			final Writer writer = new FastWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+			write(writer, request, response);
+			writer.flush();
+			return;
+		}
+		
+		// 2. Cache miss: render the response in memory and cache it
+		final String key = cacheKey(request);
+		byte [] rendered = cache.get(key);
+		if (rendered == null) {
+			final ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+			final Writer writer = new FastWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8));
+			write(writer, request, response);
+			writer.flush();
+			rendered = buffer.toByteArray();
+			cache.put(key, rendered);
+		}
+		
+		// 3. Write out the (pre-encoded) response
+		out.write(rendered);
 	}
 
 	/**
 	 * Here the writer creates its output.
 	 * 
+	 * The output is streamed directly to the given writer, without building intermediate strings.
+	 * 
 	 * @param writer the character stream writer.
 	 * @param request the current {@link SolrQueryRequest}
 	 * @param response the output response.
@@ -64,45 +156,232 @@ public class AutocompleteResponseWriter implements QueryResponseWriter {
 		// 1. Get a reference to values that compound the current response
 		final NamedList elements = response.getValues();
 		
-		// 2. Use a StringBuilder to build the output 
-		final StringBuilder builder = new StringBuilder("{")
-			.append("query:'")
-			.append(request.getParams().get(CommonParams.Q))
-			.append("',");
+		// 2. Write out the query
+		writer.write("{\"query\":");
+		writeString(writer, request.getParams().get(CommonParams.Q));
 		
-		// 3. Get a reference to the object which hold the query result
-		final Object value = elements.getVal(1);		
-		if (value instanceof ResultContext)
+		// 3. Get a reference to the object which hold the query result: matched documents or, 
+		// from the PrefixSuggestionComponent, the suggestions themselves
+		final Object result = elements.get("response");
+		final Object suggestions = elements.get("suggestions");
+		if (result instanceof ResultContext && ((ResultContext) result).docs != null)
 		{
-			final ResultContext context = (ResultContext) value;
-		
 			// The ordered list (actually the page subset) of matched documents
-			final DocList ids = context.docs;
-			if (ids != null)
+			final DocList ids = ((ResultContext) result).docs;
+			final DocIterator iterator = ids.iterator();
+			writer.write(",\"suggestions\":[");
+			
+			if (multiField)
+			{
+				// 4. Read label and payload fields of all documents at once
+				final List<String> fields = fields(request);
+				final int [] docIds = new int[ids.size()];
+				for (int i = 0; i < docIds.length; i++)
+				{
+					docIds[i] = iterator.nextDoc();
+				}
+				final Object [][] values = new SuggestionFieldReader(request.getSearcher(), fields, useDocValues).read(docIds);
+				
+				// 5. Write out each suggestion as an object
+				for (int i = 0; i < values.length; i++)
+				{
+					if (i > 0)  { writer.write(','); }
+					writeSuggestion(writer, fields, values[i]);
+				}
+			} else 
 			{
-				final SolrIndexSearcher searcher = request.getSearcher();
-				final DocIterator iterator = ids.iterator();
-				builder.append("suggestions:[");
+				final LabelReader labels = new LabelReader(request.getSearcher(), labelField, useDocValues);
 				
 				// 4. Iterate over documents
 				for (int i = 0; i < ids.size(); i++)
 				{
 					// 5. For each document we need to get the corresponding "label" attribute
-					final Document document = searcher.doc(iterator.nextDoc(), FIELDS);
-					if (i > 0)  { builder.append(","); }
+					final String label = labels.label(iterator.nextDoc());
+					if (i > 0)  { writer.write(','); }
 					
-					// 6. Append the label value to writer output
-					builder
-						.append("'")
-						.append(((String) document.get("label")).replaceAll("'", "\\\\'").replaceAll("\"", "\\\\\""))
-						.append("'");
+					// 6. Write out the label value
+					writeString(writer, label);
 				}
-				builder.append("]").append("}");
 			}
+			writer.write(']');
+		} else if (suggestions instanceof List)
+		{
+			writer.write(",\"suggestions\":[");
+			final List labels = (List) suggestions;
+			final List<String> fields = Collections.singletonList(labelField);
+			for (int i = 0; i < labels.size(); i++)
+			{
+				if (i > 0)  { writer.write(','); }
+				if (multiField)
+				{
+					writeSuggestion(writer, fields, new Object [] { labels.get(i) });
+				} else
+				{
+					writeString(writer, (String) labels.get(i));
+				}
+			}
+			writer.write(']');
 		}
 		
-		// 7. and finally write out the built character stream by means of output writer.
-		writer.write(builder.toString());
+		writer.write('}');
+	}
+
+	/**
+	 * Returns the fields of each suggestion, in multi-field mode: the label and then the payload fields 
+	 * requested with the "fl" parameter (score, globs and fields not in the schema are ignored).
+	 * 
+	 * @param request the current {@link SolrQueryRequest}
+	 * @return the fields of each suggestion.
+	 */
+	private List<String> fields(final SolrQueryRequest request) 
+	{
+		final List<String> fields = new ArrayList<String>();
+		fields.add(labelField);
+		
+		final String [] fl = request.getParams().getParams(CommonParams.FL);
+		if (fl != null) 
+		{
+			for (final String names : fl) 
+			{
+				for (final String name : names.split("[,\\s]+")) 
+				{
+					if (!name.isEmpty() 
+							&& !fields.contains(name) 
+							&& name.indexOf('*') == -1 
+							&& request.getSchema().getFieldOrNull(name) != null) 
+					{
+						fields.add(name);
+					}
+				}
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * Writes out a suggestion as a JSON object.
+	 * 
+	 * @param writer the character stream writer.
+	 * @param fields the field names.
+	 * @param values the field values (null, a String or a String array), in the same order.
+	 * @throws IOException in case of I/O failure.
+	 */
+	private static void writeSuggestion(final Writer writer, final List<String> fields, final Object [] values) throws IOException {
+		writer.write('{');
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)  { writer.write(','); }
+			writeString(writer, fields.get(i));
+			writer.write(':');
+			
+			final Object value = values[i];
+			if (value == null) {
+				writer.write("null");
+			} else if (value instanceof String []) {
+				final String [] array = (String []) value;
+				writer.write('[');
+				for (int j = 0; j < array.length; j++) {
+					if (j > 0)  { writer.write(','); }
+					writeString(writer, array[j]);
+				}
+				writer.write(']');
+			} else {
+				writeString(writer, (String) value);
+			}
+		}
+		writer.write('}');
+	}
+
+	/**
+	 * Writes out the given value as a JSON string, escaping it character by character.
+	 * 
+	 * @param writer the character stream writer.
+	 * @param value the value (null is written as an empty string).
+	 * @throws IOException in case of I/O failure.
+	 */
+	static void writeString(final Writer writer, final String value) throws IOException {
+		writer.write('"');
+		if (value != null) {
+			final int length = value.length();
+			int unescaped = 0;
+			for (int i = 0; i < length; i++) {
+				final char ch = value.charAt(i);
+				if (ch >= 0x20 && ch != '"' && ch != '\\' && ch != '\u2028' && ch != '\u2029') {
+					continue;
+				}
+				
+				// Flush the run of characters that don't need escaping, then the escaped character
+				if (i > unescaped) {
+					writer.write(value, unescaped, i - unescaped);
+				}
+				unescaped = i + 1;
+				
+				switch (ch) {
+				case '"':
+					writer.write("\\\"");
+					break;
+				case '\\':
+					writer.write("\\\\");
+					break;
+				case '\n':
+					writer.write("\\n");
+					break;
+				case '\r':
+					writer.write("\\r");
+					break;
+				case '\t':
+					writer.write("\\t");
+					break;
+				case '\b':
+					writer.write("\\b");
+					break;
+				case '\f':
+					writer.write("\\f");
+					break;
+				default:
+					writer.write("\\u");
+					writer.write(HEX_DIGITS[(ch >> 12) & 0xF]);
+					writer.write(HEX_DIGITS[(ch >> 8) & 0xF]);
+					writer.write(HEX_DIGITS[(ch >> 4) & 0xF]);
+					writer.write(HEX_DIGITS[ch & 0xF]);
+				}
+			}
+			
+			if (length > unescaped) {
+				writer.write(value, unescaped, length - unescaped);
+			}
+		}
+		writer.write('"');
+	}
+
+	/**
+	 * Returns the cache key of the given request: the searcher version, the handler path and all the effective
+	 * request parameters (handler defaults, appends and invariants included), sorted by name, so any parameter
+	 * that may change the response (e.g. filters, sorting or the default field) is part of the key.
+	 * 
+	 * @param request the current {@link SolrQueryRequest}
+	 * @return the cache key of the given request.
+	 */
+	private String cacheKey(final SolrQueryRequest request) {
+		final SolrParams params = request.getParams();
+		final StringBuilder key = new StringBuilder()
+			.append(request.getSearcher().getIndexReader().getVersion()).append('\u0000')
+			.append(request.getContext().get("path"));
+		
+		final Set<String> names = new TreeSet<String>();
+		for (final Iterator<String> iterator = params.getParameterNamesIterator(); iterator.hasNext();) {
+			names.add(iterator.next());
+		}
+		
+		for (final String name : names) {
+			key.append('\u0000').append(name);
+			final String [] values = params.getParams(name);
+			if (values != null) {
+				for (final String value : values) {
+					key.append('\u0001').append(value);
+				}
+			}
+		}
+		return key.toString();
 	}
 
 	@Override
@@ -115,6 +394,80 @@ public class AutocompleteResponseWriter implements QueryResponseWriter {
 	@Override
 	public void init(final NamedList args) 
 	{
-		// Nothing to be done here
+		final SolrParams parameters = SolrParams.toSolrParams(args);
+		labelField = parameters.get(LABEL_FIELD_PARAM_NAME, DEFAULT_LABEL_FIELD);
+		useDocValues = parameters.getBool(USE_DOC_VALUES_PARAM_NAME, false);
+		multiField = parameters.getBool(MULTI_FIELD_PARAM_NAME, false);
+		
+		final long cacheSizeInBytes = parameters.getInt(CACHE_SIZE_PARAM_NAME, 0);
+		cache = cacheSizeInBytes > 0 ? new RenderedResponseCache(cacheSizeInBytes) : null;
+	}
+
+	@Override
+	public void inform(final SolrCore core) 
+	{
+		if (cache == null) 
+		{
+			return;
+		}
+		
+		// Cached responses of the previous searcher are useless from now on
+		core.registerNewSearcherListener(new SolrEventListener() {
+			@Override
+			public void init(@SuppressWarnings("rawtypes") final NamedList args) {
+				// Nothing to be done here
+			}
+
+			@Override
+			public void postCommit() {
+				// Nothing to be done here
+			}
+
+			@Override
+			public void postSoftCommit() {
+				// Nothing to be done here
+			}
+
+			@Override
+			public void newSearcher(final SolrIndexSearcher newSearcher, final SolrIndexSearcher currentSearcher) {
+				cache.clear();
+			}
+		});
+	}
+
+	@Override
+	public String getName() {
+		return getClass().getName();
+	}
+
+	@Override
+	public String getVersion() {
+		return "1.0";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Autocomplete response writer";
+	}
+
+	@Override
+	public Category getCategory() {
+		return Category.OTHER;
+	}
+
+	@Override
+	public String getSource() {
+		return null;
+	}
+
+	@Override
+	public URL[] getDocs() {
+		return null;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public NamedList getStatistics() {
+		return cache != null ? cache.getStatistics() : new SimpleOrderedMap<Object>();
 	}
 }
\ No newline at end of file
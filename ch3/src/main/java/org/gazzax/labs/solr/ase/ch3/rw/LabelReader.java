@@ -0,0 +1,102 @@
+package org.gazzax.labs.solr.ase.ch3.rw;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Reads the label of the suggested documents, within a single request.
+ *
+ * If enabled, and if the label field has docValues, labels are read from the per-segment docValues
+ * (SORTED or BINARY), so there's no stored field block to decompress and the document cache is left untouched.
+ * The docValues of a segment are resolved the first time a document of that segment is read.
+ * Segments without docValues for the label field (e.g. written before docValues were enabled) and documents
+ * without a value fall back to the stored field.
+ *
+ * Instances are not thread-safe.
+ */
+class LabelReader {
+	private final SolrIndexSearcher searcher;
+	private final String field;
+	private final Set<String> fields;
+	private final List<AtomicReaderContext> leaves;
+	private final BinaryDocValues [] values;
+	private final boolean [] resolved;
+
+	/**
+	 * Builds a new reader.
+	 *
+	 * @param searcher the searcher of the current request.
+	 * @param field the label field name.
+	 * @param useDocValues true if labels should be read from docValues, when available.
+	 */
+	LabelReader(final SolrIndexSearcher searcher, final String field, final boolean useDocValues) {
+		this.searcher = searcher;
+		this.field = field;
+		this.fields = Collections.singleton(field);
+
+		final SchemaField schemaField = searcher.getSchema().getFieldOrNull(field);
+		if (useDocValues && schemaField != null && schemaField.hasDocValues() && !schemaField.multiValued()) {
+			this.leaves = searcher.getTopReaderContext().leaves();
+			this.values = new BinaryDocValues[leaves.size()];
+			this.resolved = new boolean[leaves.size()];
+		} else {
+			this.leaves = null;
+			this.values = null;
+			this.resolved = null;
+		}
+	}
+
+	/**
+	 * Returns the label of the given document.
+	 *
+	 * @param docId the (top level) document id.
+	 * @return the label of the given document, null if the document has no label.
+	 * @throws IOException in case of I/O failure.
+	 */
+	String label(final int docId) throws IOException {
+		if (leaves != null) {
+			// 1. Find the segment and resolve its docValues, if that hasn't been done yet
+			final int leafIndex = ReaderUtil.subIndex(docId, leaves);
+			if (!resolved[leafIndex]) {
+				values[leafIndex] = docValues(leaves.get(leafIndex).reader());
+				resolved[leafIndex] = true;
+			}
+
+			// 2. Read the label from docValues (an empty value means the document has no value)
+			final BinaryDocValues docValues = values[leafIndex];
+			if (docValues != null) {
+				final BytesRef value = docValues.get(docId - leaves.get(leafIndex).docBase);
+				if (value.length > 0) {
+					return value.utf8ToString();
+				}
+			}
+		}
+
+		// 3. Fallback: read the stored field
+		final Document document = searcher.doc(docId, fields);
+		return document.get(field);
+	}
+
+	/**
+	 * Returns the docValues of the label field in the given segment.
+	 *
+	 * @param reader the segment reader.
+	 * @return the docValues of the label field, null if the segment has no docValues for it.
+	 * @throws IOException in case of I/O failure.
+	 */
+	private BinaryDocValues docValues(final AtomicReader reader) throws IOException {
+		final BinaryDocValues sorted = reader.getSortedDocValues(field);
+		return sorted != null ? sorted : reader.getBinaryDocValues(field);
+	}
+}
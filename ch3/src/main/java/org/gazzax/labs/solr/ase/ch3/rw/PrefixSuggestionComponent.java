@@ -0,0 +1,182 @@
+package org.gazzax.labs.solr.ase.ch3.rw;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.util.Bits;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link SearchComponent} that answers autocomplete requests from an in-memory prefix index of the labels
+ * (see {@link PrefixSuggestionIndex}), without query parsing and scoring.
+ *
+ * The index is built from the label field (and, optionally, from a numeric docValues weight field) each time a new searcher
+ * is opened, and then replaces the previous one with a single (volatile) write: requests in progress keep using
+ * the index they already got, so they never block and never see a partially built index.
+ *
+ * <pre>
+	&lt;searchComponent name="prefix-suggester" class="org.gazzax.labs.solr.ase.ch3.rw.PrefixSuggestionComponent"&gt;
+		&lt;str name="label-field"&gt;label&lt;/str&gt;
+		&lt;str name="weight-field"&gt;popularity&lt;/str&gt;
+		&lt;int name="min-prefix-length"&gt;2&lt;/int&gt;
+	&lt;/searchComponent&gt;
+ * </pre>
+ *
+ * The component is meant to be the only component of a request handler which uses the {@link AutocompleteResponseWriter}:
+ * the "q" parameter is the prefix and "rows" is the maximum number of suggestions.
+ */
+public class PrefixSuggestionComponent extends SearchComponent implements SolrCoreAware {
+	private final static Logger LOGGER = LoggerFactory.getLogger(PrefixSuggestionComponent.class);
+
+	static final String LABEL_FIELD_PARAM_NAME = "label-field";
+	static final String DEFAULT_LABEL_FIELD = "label";
+	static final String WEIGHT_FIELD_PARAM_NAME = "weight-field";
+	static final String MIN_PREFIX_LENGTH_PARAM_NAME = "min-prefix-length";
+	static final int DEFAULT_MIN_PREFIX_LENGTH = 2;
+	static final int DEFAULT_ROWS = 10;
+
+	private String labelField;
+	private String weightField;
+	private int minPrefixLength;
+
+	private volatile PrefixSuggestionIndex index;
+	private volatile String indexedSearcherName;
+	private volatile long lastBuildTimeInMsecs;
+
+	@Override
+	public void init(@SuppressWarnings("rawtypes") final NamedList args) {
+		final SolrParams parameters = SolrParams.toSolrParams(args);
+		labelField = parameters.get(LABEL_FIELD_PARAM_NAME, DEFAULT_LABEL_FIELD);
+		weightField = parameters.get(WEIGHT_FIELD_PARAM_NAME);
+		minPrefixLength = parameters.getInt(MIN_PREFIX_LENGTH_PARAM_NAME, DEFAULT_MIN_PREFIX_LENGTH);
+	}
+
+	@Override
+	public void inform(final SolrCore core) {
+		final SolrEventListener listener = new SolrEventListener() {
+			@Override
+			public void init(@SuppressWarnings("rawtypes") final NamedList args) {
+				// Nothing to be done here
+			}
+
+			@Override
+			public void postCommit() {
+				// Nothing to be done here
+			}
+
+			@Override
+			public void postSoftCommit() {
+				// Nothing to be done here
+			}
+
+			@Override
+			public void newSearcher(final SolrIndexSearcher newSearcher, final SolrIndexSearcher currentSearcher) {
+				try {
+					build(newSearcher);
+				} catch (final Exception exception) {
+					LOGGER.error("Unable to build the suggestion index for " + newSearcher.getName() + ": the previous one will be used.", exception);
+				}
+			}
+		};
+
+		core.registerFirstSearcherListener(listener);
+		core.registerNewSearcherListener(listener);
+	}
+
+	@Override
+	public void prepare(final ResponseBuilder responseBuilder) throws IOException {
+		// Nothing to be done here
+	}
+
+	@Override
+	public void process(final ResponseBuilder responseBuilder) throws IOException {
+		// 1. The index is usually built by the searcher listener, unless the first searcher was opened before this component was informed
+		PrefixSuggestionIndex current = index;
+		if (current == null) {
+			synchronized (this) {
+				if (index == null) {
+					build(responseBuilder.req.getSearcher());
+				}
+				current = index;
+			}
+		}
+
+		// 2. Lookup
+		final SolrParams params = responseBuilder.req.getParams();
+		responseBuilder.rsp.add("suggestions", current.lookup(params.get(CommonParams.Q), params.getInt(CommonParams.ROWS, DEFAULT_ROWS)));
+	}
+
+	/**
+	 * Builds the index of the given searcher and makes it the current one.
+	 *
+	 * @param searcher the searcher.
+	 * @throws IOException in case of I/O failure while reading the index.
+	 */
+	synchronized void build(final SolrIndexSearcher searcher) throws IOException {
+		final long start = System.currentTimeMillis();
+
+		// 1. Collect labels and weights of all live documents, segment by segment
+		final LabelReader labelReader = new LabelReader(searcher, labelField, true);
+		final List<String> labels = new ArrayList<String>(searcher.maxDoc());
+		final long [] weights = new long[searcher.maxDoc()];
+		for (final AtomicReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+			final Bits liveDocs = leaf.reader().getLiveDocs();
+			final NumericDocValues weightValues = weightField != null ? leaf.reader().getNumericDocValues(weightField) : null;
+			final int maxDoc = leaf.reader().maxDoc();
+			for (int docId = 0; docId < maxDoc; docId++) {
+				if (liveDocs != null && !liveDocs.get(docId)) {
+					continue;
+				}
+
+				final String label = labelReader.label(leaf.docBase + docId);
+				if (label != null) {
+					weights[labels.size()] = weightValues != null ? weightValues.get(docId) : 0;
+					labels.add(label);
+				}
+			}
+		}
+
+		// 2. Build and publish the new index
+		index = new PrefixSuggestionIndex(labels, weights, minPrefixLength);
+		indexedSearcherName = searcher.getName();
+		lastBuildTimeInMsecs = System.currentTimeMillis() - start;
+
+		LOGGER.info("Suggestion index of " + indexedSearcherName + " built with " + labels.size() + " labels in " + lastBuildTimeInMsecs + " msecs");
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public NamedList getStatistics() {
+		final PrefixSuggestionIndex current = index != null ? index : PrefixSuggestionIndex.EMPTY;
+		final NamedList<Object> statistics = new SimpleOrderedMap<Object>();
+		statistics.add("searcher", indexedSearcherName);
+		statistics.add("labels", current.size());
+		statistics.add("entries", current.entries());
+		statistics.add("lastBuildTime", lastBuildTimeInMsecs);
+		return statistics;
+	}
+
+	@Override
+	public String getDescription() {
+		return "Answers autocomplete requests from an in-memory prefix index";
+	}
+
+	@Override
+	public String getSource() {
+		return null;
+	}
+}
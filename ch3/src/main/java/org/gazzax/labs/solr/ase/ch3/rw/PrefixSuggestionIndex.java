@@ -0,0 +1,332 @@
+package org.gazzax.labs.solr.ase.ch3.rw;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.lucene.analysis.miscellaneous.ASCIIFoldingFilter;
+
+/**
+ * An immutable, in-memory prefix index of suggestion labels.
+ *
+ * Labels are normalized like the "suggestion-ngram" field type does (diacritics folding, lowercasing, whitespace
+ * collapsing) and each label is indexed once for each of its words, as the (normalized) label suffix starting at that word.
+ * So "Espresso and Cappuccino" is found by "es", "espresso an", "cap" and so on.
+ *
+ * Entries are kept in a sorted array of (label, offset) pairs: the entries that start with a given prefix are a contiguous range,
+ * found with two binary searches. The best "k" labels of the range (by weight, and alphabetically among equal weights) are then
+ * extracted from a tournament tree, built once with the index, which gives the best entry of any range in O(log(n)): the best entry
+ * of the range is taken, and the two sub ranges on its sides become the next candidates.
+ * A lookup costs therefore O((k + d) * log(n)), where d is the number of duplicates met (a label matching the prefix with several words),
+ * regardless of how many entries match the prefix, with no query parsing and no scoring.
+ */
+class PrefixSuggestionIndex {
+	static final PrefixSuggestionIndex EMPTY = new PrefixSuggestionIndex(Collections.<String>emptyList(), new long[0], 1);
+
+	private final String [] labels;
+	private final String [] normalized;
+	private final long [] weights;
+	private final int [] entryLabels;
+	private final int [] entryOffsets;
+	private final int [] tree;
+	private final int minPrefixLength;
+
+	/**
+	 * Builds a new index.
+	 *
+	 * @param labels the labels.
+	 * @param weights the label weights, in the same order.
+	 * @param minPrefixLength the minimum (normalized) prefix length for a lookup.
+	 */
+	PrefixSuggestionIndex(final List<String> labels, final long [] weights, final int minPrefixLength) {
+		this.minPrefixLength = Math.max(1, minPrefixLength);
+
+		// 1. Sort labels (and weights) alphabetically, so label ordinals can be used as a tie break
+		final Integer [] order = new Integer[labels.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer index1, final Integer index2) {
+				return labels.get(index1).compareTo(labels.get(index2));
+			}
+		});
+
+		this.labels = new String[order.length];
+		this.normalized = new String[order.length];
+		this.weights = new long[order.length];
+		int entryCount = 0;
+		for (int i = 0; i < order.length; i++) {
+			this.labels[i] = labels.get(order[i]);
+			this.normalized[i] = normalize(this.labels[i]);
+			this.weights[i] = weights[order[i]];
+			entryCount += wordCount(this.normalized[i]);
+		}
+
+		// 2. Collect an entry for each word of each label
+		final Integer [] entries = new Integer[entryCount];
+		final int [] entryLabels = new int[entryCount];
+		final int [] entryOffsets = new int[entryCount];
+		int entry = 0;
+		for (int label = 0; label < normalized.length; label++) {
+			final String value = normalized[label];
+			for (int offset = 0; offset < value.length(); offset++) {
+				if (offset == 0 || value.charAt(offset - 1) == ' ') {
+					entries[entry] = entry;
+					entryLabels[entry] = label;
+					entryOffsets[entry] = offset;
+					entry++;
+				}
+			}
+		}
+
+		// 3. Sort entries by their text
+		Arrays.sort(entries, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer entry1, final Integer entry2) {
+				final String value1 = normalized[entryLabels[entry1]];
+				final String value2 = normalized[entryLabels[entry2]];
+				int offset1 = entryOffsets[entry1];
+				int offset2 = entryOffsets[entry2];
+				while (offset1 < value1.length() && offset2 < value2.length()) {
+					final int difference = value1.charAt(offset1++) - value2.charAt(offset2++);
+					if (difference != 0) {
+						return difference;
+					}
+				}
+				return (value1.length() - offset1) - (value2.length() - offset2);
+			}
+		});
+
+		this.entryLabels = new int[entryCount];
+		this.entryOffsets = new int[entryCount];
+		for (int i = 0; i < entryCount; i++) {
+			this.entryLabels[i] = entryLabels[entries[i]];
+			this.entryOffsets[i] = entryOffsets[entries[i]];
+		}
+
+		// 4. Build the tournament tree: leaves are the entries, each inner node is the best entry below it
+		this.tree = new int[entryCount * 2];
+		for (int i = 0; i < entryCount; i++) {
+			tree[entryCount + i] = i;
+		}
+		for (int node = entryCount - 1; node > 0; node--) {
+			tree[node] = bestOf(tree[node * 2], tree[node * 2 + 1]);
+		}
+	}
+
+	/**
+	 * Returns the (at most) k best labels matching the given prefix.
+	 *
+	 * @param prefix the prefix, as entered by the user.
+	 * @param k the maximum number of labels.
+	 * @return the best labels matching the given prefix, by descending weight.
+	 */
+	List<String> lookup(final String prefix, final int k) {
+		final String normalizedPrefix = prefix != null ? normalize(prefix) : "";
+		if (normalizedPrefix.length() < minPrefixLength || k <= 0) {
+			return Collections.emptyList();
+		}
+
+		// 1. Find the range of entries starting with the prefix
+		final int from = lowerBound(normalizedPrefix, false);
+		final int to = lowerBound(normalizedPrefix, true);
+
+		if (from == to) {
+			return Collections.emptyList();
+		}
+
+		// 2. Extract the best labels, best first: each candidate is a range of entries, with its best entry (range[2])
+		final PriorityQueue<int []> candidates = new PriorityQueue<int []>(k + 1, new Comparator<int []>() {
+			@Override
+			public int compare(final int [] range1, final int [] range2) {
+				return better(entryLabels[range1[2]], entryLabels[range2[2]]);
+			}
+		});
+		candidates.add(new int [] {from, to, bestEntry(from, to)});
+
+		final List<String> result = new ArrayList<String>(Math.min(k, to - from));
+		final Set<Integer> selected = new HashSet<Integer>();
+		while (result.size() < k && !candidates.isEmpty()) {
+			final int [] range = candidates.poll();
+			final int entry = range[2];
+
+			// 3. A label matching the prefix with several words shows up once for each of them
+			if (selected.add(entryLabels[entry])) {
+				result.add(labels[entryLabels[entry]]);
+			}
+
+			if (range[0] < entry) {
+				candidates.add(new int [] {range[0], entry, bestEntry(range[0], entry)});
+			}
+			if (entry + 1 < range[1]) {
+				candidates.add(new int [] {entry + 1, range[1], bestEntry(entry + 1, range[1])});
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of labels in this index.
+	 *
+	 * @return the number of labels in this index.
+	 */
+	int size() {
+		return labels.length;
+	}
+
+	/**
+	 * Returns the number of (word) entries in this index.
+	 *
+	 * @return the number of (word) entries in this index.
+	 */
+	int entries() {
+		return entryLabels.length;
+	}
+
+	/**
+	 * Compares two labels: a label is better than another if it has a greater weight or,
+	 * with the same weight, if it comes first alphabetically.
+	 *
+	 * @param label1 the first label ordinal.
+	 * @param label2 the second label ordinal.
+	 * @return a negative value if the first label is better, a positive value if the second is better, 0 if they are the same label.
+	 */
+	private int better(final int label1, final int label2) {
+		if (weights[label1] != weights[label2]) {
+			return weights[label1] > weights[label2] ? -1 : 1;
+		}
+		return label1 - label2;
+	}
+
+	/**
+	 * Returns the best of two entries (see {@link #better(int, int)}).
+	 *
+	 * @param entry1 the first entry, -1 for none.
+	 * @param entry2 the second entry, -1 for none.
+	 * @return the best of the two entries.
+	 */
+	private int bestOf(final int entry1, final int entry2) {
+		if (entry1 == -1) {
+			return entry2;
+		}
+		if (entry2 == -1) {
+			return entry1;
+		}
+		return better(entryLabels[entry1], entryLabels[entry2]) <= 0 ? entry1 : entry2;
+	}
+
+	/**
+	 * Returns the best entry within the given (non empty) range, walking up the tournament tree.
+	 *
+	 * @param from the first entry of the range.
+	 * @param to the end of the range (exclusive).
+	 * @return the best entry within the given range.
+	 */
+	private int bestEntry(final int from, final int to) {
+		final int leaves = entryLabels.length;
+		int best = -1;
+		for (int low = from + leaves, high = to + leaves; low < high; low >>>= 1, high >>>= 1) {
+			if ((low & 1) == 1) {
+				best = bestOf(best, tree[low++]);
+			}
+			if ((high & 1) == 1) {
+				best = bestOf(best, tree[--high]);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the index of the first entry that starts with (or, if after is true, that comes after all the entries
+	 * starting with) the given prefix.
+	 *
+	 * @param prefix the normalized prefix.
+	 * @param after true for the end of the prefix range, false for its start.
+	 * @return the index of the first entry that starts with, or that follows, the given prefix.
+	 */
+	private int lowerBound(final String prefix, final boolean after) {
+		int low = 0;
+		int high = entryLabels.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			final int comparison = compareToPrefix(middle, prefix);
+			if (comparison < 0 || (after && comparison == 0)) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Compares the text of an entry with a prefix.
+	 *
+	 * @param entry the entry index.
+	 * @param prefix the normalized prefix.
+	 * @return 0 if the entry starts with the prefix, otherwise a negative (positive) value if the entry comes before (after) the prefix.
+	 */
+	private int compareToPrefix(final int entry, final String prefix) {
+		final String value = normalized[entryLabels[entry]];
+		final int offset = entryOffsets[entry];
+		final int length = Math.min(value.length() - offset, prefix.length());
+		for (int i = 0; i < length; i++) {
+			final int difference = value.charAt(offset + i) - prefix.charAt(i);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return length == prefix.length() ? 0 : -1;
+	}
+
+	/**
+	 * Returns the number of words of the given (normalized) value.
+	 *
+	 * @param value the normalized value.
+	 * @return the number of words of the given value.
+	 */
+	private static int wordCount(final String value) {
+		int count = value.isEmpty() ? 0 : 1;
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) == ' ') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Normalizes the given value: diacritics are folded, letters are lowercased and whitespace runs become a single space.
+	 *
+	 * @param value the value.
+	 * @return the normalized value.
+	 */
+	static String normalize(final String value) {
+		final char [] input = value.toCharArray();
+		final char [] folded = new char[input.length * 4];
+		final int length = ASCIIFoldingFilter.foldToASCII(input, 0, folded, 0, input.length);
+
+		final StringBuilder builder = new StringBuilder(length);
+		boolean space = true;
+		for (int i = 0; i < length; i++) {
+			final char ch = folded[i];
+			if (Character.isWhitespace(ch)) {
+				space = true;
+			} else {
+				if (space && builder.length() > 0) {
+					builder.append(' ');
+				}
+				builder.append(Character.toLowerCase(ch));
+				space = false;
+			}
+		}
+		return builder.toString();
+	}
+}
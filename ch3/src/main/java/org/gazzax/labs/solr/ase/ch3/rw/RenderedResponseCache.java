@@ -0,0 +1,115 @@
+package org.gazzax.labs.solr.ase.ch3.rw;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * A bounded cache of fully rendered (UTF-8 encoded) responses.
+ *
+ * The cache is bounded by the total size of the cached responses: when a new response exceeds the limit,
+ * the least recently used responses are evicted. Like the Solr LRUCache, the map is guarded by its own lock,
+ * which is held only for the map access.
+ *
+ * Instances are thread-safe.
+ */
+class RenderedResponseCache {
+	private final long maxSizeInBytes;
+	private final LinkedHashMap<String, byte []> responses = new LinkedHashMap<String, byte []>(256, 0.75f, true);
+	private long sizeInBytes;
+
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Builds a new cache.
+	 *
+	 * @param maxSizeInBytes the maximum total size of the cached responses.
+	 */
+	RenderedResponseCache(final long maxSizeInBytes) {
+		this.maxSizeInBytes = maxSizeInBytes;
+	}
+
+	/**
+	 * Returns the cached response associated with the given key.
+	 *
+	 * @param key the key.
+	 * @return the cached response, null if there's no such response.
+	 */
+	byte [] get(final String key) {
+		lookups.incrementAndGet();
+
+		final byte [] response;
+		synchronized (responses) {
+			response = responses.get(key);
+		}
+
+		if (response != null) {
+			hits.incrementAndGet();
+			bytesSaved.addAndGet(response.length);
+		}
+		return response;
+	}
+
+	/**
+	 * Caches a response, evicting the least recently used responses if needed.
+	 * Responses bigger than a quarter of the cache are not cached.
+	 *
+	 * @param key the key.
+	 * @param response the rendered response.
+	 */
+	void put(final String key, final byte [] response) {
+		if (response.length > maxSizeInBytes / 4) {
+			return;
+		}
+
+		synchronized (responses) {
+			final byte [] previous = responses.put(key, response);
+			sizeInBytes += response.length - (previous != null ? previous.length : 0);
+
+			final Iterator<byte []> iterator = responses.values().iterator();
+			while (sizeInBytes > maxSizeInBytes && iterator.hasNext()) {
+				sizeInBytes -= iterator.next().length;
+				iterator.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Removes all cached responses.
+	 */
+	void clear() {
+		synchronized (responses) {
+			responses.clear();
+			sizeInBytes = 0;
+		}
+	}
+
+	/**
+	 * Returns the cache statistics.
+	 *
+	 * @return the cache statistics.
+	 */
+	NamedList<Object> getStatistics() {
+		final NamedList<Object> statistics = new SimpleOrderedMap<Object>();
+		final long lookupCount = lookups.get();
+		final long hitCount = hits.get();
+		statistics.add("lookups", lookupCount);
+		statistics.add("hits", hitCount);
+		statistics.add("hitratio", lookupCount != 0 ? (float) hitCount / lookupCount : 0f);
+		statistics.add("bytesSaved", bytesSaved.get());
+		statistics.add("evictions", evictions.get());
+		synchronized (responses) {
+			statistics.add("size", responses.size());
+			statistics.add("sizeInBytes", sizeInBytes);
+		}
+		statistics.add("maxSizeInBytes", maxSizeInBytes);
+		return statistics;
+	}
+}
@@ -0,0 +1,128 @@
+package org.gazzax.labs.solr.ase.ch3.rw;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Reads several fields (the label and its payload fields) of the suggested documents, in one batched pass.
+ *
+ * Documents are visited in index order, so the docValues of each segment are resolved once per field and read sequentially.
+ * Single valued fields with docValues (SORTED or BINARY, i.e. string fields such as ids and categories) are read from docValues,
+ * if enabled; the other fields, and the values missing from docValues, are read from the stored fields, with a single
+ * document load for all of them.
+ *
+ * Values are either null, a String or, for multi valued stored fields, a String array.
+ */
+class SuggestionFieldReader {
+	private final SolrIndexSearcher searcher;
+	private final String [] fields;
+	private final boolean [] fromDocValues;
+	private final Set<String> storedFields = new HashSet<String>();
+
+	/**
+	 * Builds a new reader.
+	 *
+	 * @param searcher the searcher of the current request.
+	 * @param fields the names of the fields to read.
+	 * @param useDocValues true if values should be read from docValues, when available.
+	 */
+	SuggestionFieldReader(final SolrIndexSearcher searcher, final List<String> fields, final boolean useDocValues) {
+		this.searcher = searcher;
+		this.fields = fields.toArray(new String[fields.size()]);
+		this.fromDocValues = new boolean[this.fields.length];
+		for (int i = 0; i < this.fields.length; i++) {
+			final SchemaField schemaField = searcher.getSchema().getFieldOrNull(this.fields[i]);
+			fromDocValues[i] = useDocValues && schemaField != null && schemaField.hasDocValues() && !schemaField.multiValued();
+			storedFields.add(this.fields[i]);
+		}
+	}
+
+	/**
+	 * Reads the fields of the given documents.
+	 *
+	 * @param docIds the (top level) document ids, in rank order.
+	 * @return the field values, indexed by rank and then by field.
+	 * @throws IOException in case of I/O failure.
+	 */
+	Object [][] read(final int [] docIds) throws IOException {
+		final Object [][] values = new Object[docIds.length][fields.length];
+
+		// 1. Visit documents in index order, remembering their rank
+		final long [] order = new long[docIds.length];
+		for (int rank = 0; rank < docIds.length; rank++) {
+			order[rank] = ((long) docIds[rank] << 32) | rank;
+		}
+		Arrays.sort(order);
+
+		final List<AtomicReaderContext> leaves = searcher.getTopReaderContext().leaves();
+		final BinaryDocValues [] docValues = new BinaryDocValues[fields.length];
+		int leafIndex = -1;
+		int nextDocBase = 0;
+		for (final long entry : order) {
+			final int docId = (int) (entry >>> 32);
+			final int rank = (int) entry;
+
+			// 2. Entering a new segment: resolve its docValues
+			if (docId >= nextDocBase) {
+				while (docId >= nextDocBase) {
+					leafIndex++;
+					nextDocBase = leafIndex + 1 < leaves.size() ? leaves.get(leafIndex + 1).docBase : Integer.MAX_VALUE;
+				}
+				for (int field = 0; field < fields.length; field++) {
+					docValues[field] = fromDocValues[field] ? docValues(leaves.get(leafIndex).reader(), fields[field]) : null;
+				}
+			}
+
+			// 3. Read docValues
+			boolean missing = false;
+			for (int field = 0; field < fields.length; field++) {
+				if (docValues[field] != null) {
+					final BytesRef value = docValues[field].get(docId - leaves.get(leafIndex).docBase);
+					if (value.length > 0) {
+						values[rank][field] = value.utf8ToString();
+						continue;
+					}
+				}
+				missing = true;
+			}
+
+			// 4. Read the remaining values from stored fields
+			if (missing) {
+				final Document document = searcher.doc(docId, storedFields);
+				for (int field = 0; field < fields.length; field++) {
+					if (values[rank][field] == null) {
+						final String [] stored = document.getValues(fields[field]);
+						if (stored != null && stored.length > 0) {
+							values[rank][field] = stored.length == 1 ? stored[0] : stored;
+						}
+					}
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Returns the docValues of the given field in the given segment.
+	 *
+	 * @param reader the segment reader.
+	 * @param field the field name.
+	 * @return the docValues of the given field, null if the segment has no (SORTED or BINARY) docValues for it.
+	 * @throws IOException in case of I/O failure.
+	 */
+	private static BinaryDocValues docValues(final AtomicReader reader, final String field) throws IOException {
+		final BinaryDocValues sorted = reader.getSortedDocValues(field);
+		return sorted != null ? sorted : reader.getBinaryDocValues(field);
+	}
+}
@@ -0,0 +1,51 @@
+package org.gazzax.labs.solr.ase.ch3.sp;
+
+import java.io.IOException;
+
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+
+/**
+ * A {@link SearchComponent} that collects the prices requested by a {@link RealTimePriceComponent}.
+ * 
+ * Declaring this component after the other components allows the prices to be fetched while they run:
+ * 
+ * <br/>
+ * 
+ * <pre>
+	&lt;searchComponent name="prices-collector" class="org.gazzax.labs.solr.ase.ch3.sp.RealTimePriceCollectorComponent"/&gt;
+	
+	&lt;requestHandler name=”/xyz” (other attributes follow) &gt;
+		&lt;arr name="components"&gt;
+			&lt;str&gt;query&lt;/str&gt;
+			&lt;str&gt;prices&lt;/str&gt;
+			&lt;str&gt;facet&lt;/str&gt;
+			&lt;str&gt;highlight&lt;/str&gt;
+			&lt;str&gt;debug&lt;/str&gt;
+			&lt;str&gt;prices-collector&lt;/str&gt;
+		&lt;/arr&gt;	
+	&lt;/requestHandler&gt;
+ * </pre> 
+ */
+public class RealTimePriceCollectorComponent extends SearchComponent {
+
+	@Override
+	public void prepare(final ResponseBuilder builder) throws IOException {
+		// Nothing to be done here
+	}
+
+	@Override
+	public void process(final ResponseBuilder builder) throws IOException {
+		RealTimePriceComponent.collect(builder);
+	}
+
+	@Override
+	public String getDescription() {
+		return "Real time price collector component";
+	}
+
+	@Override
+	public String getSource() {
+		return null;
+	}
+}
@@ -1,7 +1,26 @@
 package org.gazzax.labs.solr.ase.ch3.sp;
 
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -11,10 +30,16 @@ import org.apache.lucene.document.Document;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.handler.component.SearchComponent;
 import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
 import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
  
 /**
  * A {@link SearchComponent} for gathering realtime prices from an external
@@ -50,12 +75,45 @@ import org.apache.solr.search.SolrIndexSearcher;
 	&lt;/requestHandler&gt;
  * </pre> 
  * 
+ * Prices of a page are fetched in batches ("batch-size" ids each, with one "IN (...)" query, see {@link #getPrices(List)}),
+ * asynchronously, by a pool of "threads" workers. The fetch starts as soon as the page is known and the component waits for 
+ * it at most "time-budget" msecs: prices that aren't available by then are returned as null. 
+ * If a {@link RealTimePriceCollectorComponent} is declared after this component (e.g. in last-components, with this component 
+ * right after the query component), the wait happens there, so prices are fetched while the other components run.
+ * 
+ * <pre>
+	&lt;searchComponent name="prices" class="org.gazzax.labs.solr.ase.ch3.sp.RealTimePriceComponent"&gt;
+		&lt;str name="datasource-jndi-name"&gt;jdbc/prices&lt;/str&gt;		
+		&lt;str name="price-query"&gt;SELECT id, price FROM prices WHERE id IN&lt;/str&gt;		
+		&lt;int name="batch-size"&gt;100&lt;/int&gt;		
+		&lt;int name="threads"&gt;4&lt;/int&gt;		
+		&lt;int name="time-budget"&gt;100&lt;/int&gt;		
+	&lt;/searchComponent&gt;
+ * </pre> 
+ * 
  * @author Andrea Gazzarini
  * @since 1.0
  */
-public class RealTimePriceComponent extends SearchComponent {
+public class RealTimePriceComponent extends SearchComponent implements SolrCoreAware {
+	private final static Logger LOGGER = LoggerFactory.getLogger(RealTimePriceComponent.class);
+	
+	static final String PENDING_PRICES_KEY = RealTimePriceComponent.class.getName() + ".pending";
+	static final Set<String> ID_FIELD = Collections.singleton("id");
+	
+	static final String PRICE_QUERY_PARAM_NAME = "price-query";
+	static final String DEFAULT_PRICE_QUERY = "SELECT id, price FROM prices WHERE id IN";
+	static final String BATCH_SIZE_PARAM_NAME = "batch-size";
+	static final int DEFAULT_BATCH_SIZE = 100;
+	static final String THREADS_PARAM_NAME = "threads";
+	static final int DEFAULT_THREADS = 4;
+	static final String TIME_BUDGET_PARAM_NAME = "time-budget";
+	static final int DEFAULT_TIME_BUDGET = 100;
 
 	private DataSource datasource;
+	private String priceQuery;
+	private int batchSize;
+	private long timeBudgetInMsecs;
+	private ExecutorService executor;
 
 	// although an ideal approach could use a State pattern, in this example, for simplicity
 	// we will use a boolean flag indicating a failure in obtaining a valid external resource reference
@@ -78,6 +136,20 @@ public class RealTimePriceComponent extends SearchComponent {
 		// also a web service. In any case, this is the place where that
 		// resource should be initialized.
 		final SolrParams params = SolrParams.toSolrParams(args);
+		priceQuery = params.get(PRICE_QUERY_PARAM_NAME, DEFAULT_PRICE_QUERY);
+		batchSize = Math.max(1, params.getInt(BATCH_SIZE_PARAM_NAME, DEFAULT_BATCH_SIZE));
+		timeBudgetInMsecs = params.getInt(TIME_BUDGET_PARAM_NAME, DEFAULT_TIME_BUDGET);
+		executor = Executors.newFixedThreadPool(Math.max(1, params.getInt(THREADS_PARAM_NAME, DEFAULT_THREADS)), new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable task) {
+				final Thread thread = new Thread(task, "prices-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
 		final boolean isInDummyMode = params.getBool("dummy-mode", true);
 		if (isInDummyMode) {
 			hasBeenCorrectlyInitialised = true;
@@ -103,9 +175,9 @@ public class RealTimePriceComponent extends SearchComponent {
 			datasource.getConnection().close();
 			
 			// 5a. Mark this component as valid
-			hasBeenCorrectlyInitialised = false;
+			hasBeenCorrectlyInitialised = true;
 		} catch (final Exception exception) {
-			exception.printStackTrace();
+			LOGGER.error("Unable to get the price datasource " + datasourceName + ": prices won't be available.", exception);
 
 			// 5b. Mark this component as invalid (no strictly needed)
 			hasBeenCorrectlyInitialised = false;
@@ -129,10 +201,27 @@ public class RealTimePriceComponent extends SearchComponent {
 		// retry the initialisation.
 	}
 
+	@Override
+	public void inform(final SolrCore core) {
+		core.addCloseHook(new CloseHook() {
+			@Override
+			public void preClose(final SolrCore core) {
+				executor.shutdownNow();
+			}
+
+			@Override
+			public void postClose(final SolrCore core) {
+				// Nothing to be done here
+			}
+		});
+	}
+
 	/**
 	 * Here we define the component core logic.
-	 * For each document belonging to search results, we call an external service
-	 * for gathering a corresponding up-to-date price.
+	 * The identifiers of all documents belonging to search results are collected and their up-to-date prices 
+	 * are requested, in batches, to the external resource. 
+	 * If there's a {@link RealTimePriceCollectorComponent} after this component, it will collect the prices; 
+	 * otherwise prices are collected here.
 	 * 
 	 * @param rb The {@link org.apache.solr.handler.component.ResponseBuilder}
 	 * @throws IOException If there is a low-level I/O error.
@@ -142,33 +231,79 @@ public class RealTimePriceComponent extends SearchComponent {
 		// Sanity check: if the component hasn't been properly initialised 
 		// then it must immediately return.
 		// A more ideal approach could retry the initialisation (in the prepare method).
-		if (!hasBeenCorrectlyInitialised) {
+		if (!hasBeenCorrectlyInitialised || builder.getResults() == null || builder.getResults().docList == null) {
 			return;
 		}
 		
-		// Get a SolrIndexSearcher reference 
+		// 1. Collect the (Solr) identifiers of the page, in order
 		final SolrIndexSearcher searcher = builder.req.getSearcher();
-
-		// This NamediLis will hold the component contribution (i.e. the component result).
-		final NamedList<Double> contribution = new SimpleOrderedMap<Double>();
-		for (final DocIterator it = builder.getResults().docList.iterator(); it.hasNext();) {
-
+		final DocList page = builder.getResults().docList;
+		final List<String> ids = new ArrayList<String>(page.size());
+		for (final DocIterator it = page.iterator(); it.hasNext();) {
 			// This is NOT the Solr ID of our records, but instead the Lucene internal document id
 			// which is different
-			int docId = it.nextDoc();
-			final Document luceneDocument = searcher.doc(docId);
-			
-			// This is the Solr document Id 
-			String id = luceneDocument.get("id");
-
-			// Get the price of the item
-			final Double itemPrice = getPrice(id);
+			final int docId = it.nextDoc();
+			final Document luceneDocument = searcher.doc(docId, ID_FIELD);
+			ids.add(luceneDocument.get("id"));
+		}
+		
+		// 2. Start fetching prices, one batch per task
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeBudgetInMsecs);
+		final List<Future<Map<String, Double>>> batches = new ArrayList<Future<Map<String, Double>>>();
+		for (int from = 0; from < ids.size(); from += batchSize) {
+			final List<String> batch = ids.subList(from, Math.min(ids.size(), from + batchSize));
+			batches.add(executor.submit(new Callable<Map<String, Double>>() {
+				@Override
+				public Map<String, Double> call() throws Exception {
+					return getPrices(batch);
+				}
+			}));
+		}
+		builder.req.getContext().put(PENDING_PRICES_KEY, new PendingPrices(ids, batches, deadline));
+		
+		// 3. Collect prices here, unless a collector will do that later
+		for (int i = builder.components.indexOf(this) + 1; i < builder.components.size(); i++) {
+			if (builder.components.get(i) instanceof RealTimePriceCollectorComponent) {
+				return;
+			}
+		}
+		collect(builder);
+	}
 
-			// Add the price of the item to the component contribution
-			contribution.add(id, itemPrice);
+	/**
+	 * Waits for the prices requested by this component (if any), within the time budget, and adds them to the response.
+	 * Prices that are not available when the time budget expires are added as null.
+	 * 
+	 * @param builder The {@link org.apache.solr.handler.component.ResponseBuilder}
+	 */
+	static void collect(final ResponseBuilder builder) {
+		final PendingPrices pending = (PendingPrices) builder.req.getContext().remove(PENDING_PRICES_KEY);
+		if (pending == null) {
+			return;
+		}
+		
+		// 1. Wait for each batch, until the deadline
+		final Map<String, Double> prices = new HashMap<String, Double>();
+		for (final Future<Map<String, Double>> batch : pending.batches) {
+			try {
+				prices.putAll(batch.get(Math.max(0, pending.deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+			} catch (final TimeoutException exception) {
+				batch.cancel(true);
+			} catch (final ExecutionException exception) {
+				LOGGER.error("Unable to get prices.", exception.getCause());
+			} catch (final InterruptedException exception) {
+				batch.cancel(true);
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		// 2. This NamedList will hold the component contribution (i.e. the component result), in the page order.
+		final NamedList<Double> contribution = new SimpleOrderedMap<Double>();
+		for (final String id : pending.ids) {
+			contribution.add(id, prices.get(id));
 		}
 
-		// Add the component contribution to the response builder
+		// 3. Add the component contribution to the response builder
 		builder.rsp.add("prices", contribution);			
 	}
 
@@ -184,6 +319,56 @@ public class RealTimePriceComponent extends SearchComponent {
 	
 	private final static Random RANDOMIZER = new Random();
 	
+	/**
+	 * Returns the prices associated with the given items, with one request to the external resource.
+	 * In dummy mode prices are random numbers (see {@link #getPrice(String)}); otherwise they are 
+	 * selected by the "price-query" (which must select the id and the price) with an "IN (...)" clause.
+	 * 
+	 * @param ids the record identifiers.
+	 * @return the prices associated with the given items (items without a price are missing).
+	 * @throws SQLException in case of database failure.
+	 */
+	Map<String, Double> getPrices(final List<String> ids) throws SQLException {
+		final Map<String, Double> prices = new HashMap<String, Double>(ids.size() * 2);
+		if (datasource == null) {
+			for (final String id : ids) {
+				prices.put(id, getPrice(id));
+			}
+			return prices;
+		}
+		
+		final StringBuilder query = new StringBuilder(priceQuery).append(" (");
+		for (int i = 0; i < ids.size(); i++) {
+			query.append(i > 0 ? ",?" : "?");
+		}
+		query.append(")");
+
+		final Connection connection = datasource.getConnection();
+		try {
+			final PreparedStatement statement = connection.prepareStatement(query.toString());
+			try {
+				for (int i = 0; i < ids.size(); i++) {
+					statement.setString(i + 1, ids.get(i));
+				}
+				
+				final ResultSet rows = statement.executeQuery();
+				try {
+					while (rows.next()) {
+						final double price = rows.getDouble(2);
+						prices.put(rows.getString(1), rows.wasNull() ? null : price);
+					}
+				} finally {
+					rows.close();
+				}
+			} finally {
+				statement.close();
+			}
+		} finally {
+			connection.close();
+		}
+		return prices;
+	}
+	
 	/**
 	 * Returns the price associated with a given item.
 	 * Note: this method actually returns random numbers :)
@@ -199,4 +384,26 @@ public class RealTimePriceComponent extends SearchComponent {
 		factor = factor == 0 ? 1 : factor;
 		return base * factor;
 	}	
+	
+	/**
+	 * The prices requested for a page, which have not been collected yet.
+	 */
+	static class PendingPrices {
+		final List<String> ids;
+		final List<Future<Map<String, Double>>> batches;
+		final long deadline;
+		
+		/**
+		 * Builds new pending prices.
+		 * 
+		 * @param ids the record identifiers, in page order.
+		 * @param batches the price requests.
+		 * @param deadline the (nanoTime) deadline for collecting the prices.
+		 */
+		PendingPrices(final List<String> ids, final List<Future<Map<String, Double>>> batches, final long deadline) {
+			this.ids = ids;
+			this.batches = batches;
+			this.deadline = deadline;
+		}
+	}
 }
@@ -0,0 +1,205 @@
+package org.gazzax.labs.solr.ase.ch3.warming;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.EventParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrRequestHandler;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.ResultContext;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link SolrEventListener} that warms new searchers with the most frequent queries, filters and facets of the recent traffic,
+ * as sampled by a {@link QuerySamplingComponent}.
+ *
+ * <pre>
+	&lt;listener event="newSearcher" class="org.gazzax.labs.solr.ase.ch3.warming.AutowarmingListener"&gt;
+		&lt;str name="component"&gt;query-sampler&lt;/str&gt;
+		&lt;int name="count"&gt;32&lt;/int&gt;
+		&lt;int name="threads"&gt;2&lt;/int&gt;
+		&lt;int name="time-budget"&gt;5000&lt;/int&gt;
+	&lt;/listener&gt;
+ * </pre>
+ *
+ * The "count" most frequent entries are executed against the new searcher, through the "handler" request handler
+ * (by default the default handler), by "threads" parallel workers and most frequent first. Warming stops when the
+ * "time-budget" (in msecs) expires, so a commit never waits for the new searcher more than that.
+ * Retrieved documents are loaded too, in order to warm the document cache.
+ */
+@SuppressWarnings("rawtypes")
+public class AutowarmingListener implements SolrEventListener {
+	private final static Logger LOGGER = LoggerFactory.getLogger(AutowarmingListener.class);
+
+	static final String COMPONENT_PARAM_NAME = "component";
+	static final String DEFAULT_COMPONENT = "query-sampler";
+	static final String COUNT_PARAM_NAME = "count";
+	static final int DEFAULT_COUNT = 32;
+	static final String THREADS_PARAM_NAME = "threads";
+	static final int DEFAULT_THREADS = 2;
+	static final String TIME_BUDGET_PARAM_NAME = "time-budget";
+	static final int DEFAULT_TIME_BUDGET = 5000;
+	static final String HANDLER_PARAM_NAME = "handler";
+
+	private String componentName;
+	private int count;
+	private int threads;
+	private long timeBudgetInMsecs;
+	private String handlerName;
+
+	@Override
+	public void init(final NamedList args) {
+		final SolrParams parameters = SolrParams.toSolrParams(args);
+		componentName = parameters.get(COMPONENT_PARAM_NAME, DEFAULT_COMPONENT);
+		count = parameters.getInt(COUNT_PARAM_NAME, DEFAULT_COUNT);
+		threads = Math.max(1, parameters.getInt(THREADS_PARAM_NAME, DEFAULT_THREADS));
+		timeBudgetInMsecs = parameters.getInt(TIME_BUDGET_PARAM_NAME, DEFAULT_TIME_BUDGET);
+		handlerName = parameters.get(HANDLER_PARAM_NAME);
+	}
+
+	@Override
+	public void postCommit() {
+		// Nothing to be done here
+	}
+
+	@Override
+	public void postSoftCommit() {
+		// Nothing to be done here
+	}
+
+	@Override
+	public void newSearcher(final SolrIndexSearcher newSearcher, final SolrIndexSearcher currentSearcher) {
+		final SolrCore core = newSearcher.getCore();
+
+		// 1. Get the most frequent entries of the recent traffic
+		final SearchComponent component = core.getSearchComponent(componentName);
+		if (!(component instanceof QuerySamplingComponent)) {
+			LOGGER.error("Search component " + componentName + " isn't a " + QuerySamplingComponent.class.getSimpleName() + ": warming skipped.");
+			return;
+		}
+
+		final List<String> keys = ((QuerySamplingComponent) component).sketch().top(count);
+		final SolrRequestHandler handler = core.getRequestHandler(handlerName);
+		if (keys.isEmpty() || handler == null) {
+			return;
+		}
+
+		// 2. Execute them in parallel, most frequent first, within the time budget
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeBudgetInMsecs);
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, keys.size()), new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable task) {
+				final Thread thread = new Thread(task, "autowarming-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(keys.size());
+		for (final String key : keys) {
+			results.add(executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return System.nanoTime() < deadline && warm(core, handler, newSearcher, key);
+				}
+			}));
+		}
+		executor.shutdown();
+
+		// 3. Wait for the completion, until the deadline
+		int warmed = 0;
+		try {
+			for (final Future<Boolean> result : results) {
+				if (result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+					warmed++;
+				}
+			}
+		} catch (final TimeoutException exception) {
+			LOGGER.info("Warming time budget (" + timeBudgetInMsecs + " msecs) exceeded.");
+		} catch (final ExecutionException exception) {
+			LOGGER.error("Unable to warm the new searcher.", exception);
+		} catch (final InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// Queued entries are discarded, while running entries are not interrupted (that could close the index files)
+			for (final Future<Boolean> result : results) {
+				result.cancel(false);
+			}
+		}
+
+		LOGGER.info("Warmed " + newSearcher.getName() + " with " + warmed + "/" + keys.size() + " entries in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " msecs");
+	}
+
+	/**
+	 * Executes a sampled entry against the new searcher.
+	 *
+	 * @param core the core.
+	 * @param handler the request handler.
+	 * @param newSearcher the searcher being warmed.
+	 * @param key the sampled entry.
+	 * @return true if the entry has been executed without errors.
+	 */
+	private boolean warm(final SolrCore core, final SolrRequestHandler handler, final SolrIndexSearcher newSearcher, final String key) {
+		final ModifiableSolrParams params = QuerySamplingComponent.params(key);
+		params.set(EventParams.EVENT, EventParams.NEW_SEARCHER);
+		params.set(CommonParams.DISTRIB, false);
+
+		final LocalSolrQueryRequest request = new LocalSolrQueryRequest(core, params) {
+			@Override
+			public SolrIndexSearcher getSearcher() {
+				return newSearcher;
+			}
+		};
+
+		final SolrQueryResponse response = new SolrQueryResponse();
+		try {
+			SolrRequestInfo.setRequestInfo(new SolrRequestInfo(request, response));
+			core.execute(handler, request, response);
+			if (response.getException() != null) {
+				LOGGER.debug("Unable to warm the new searcher with " + key, response.getException());
+				return false;
+			}
+
+			// Load the retrieved documents too, so the document cache is warmed as well
+			final Object result = response.getValues().get("response");
+			if (result instanceof ResultContext && ((ResultContext) result).docs != null) {
+				final DocIterator iterator = ((ResultContext) result).docs.iterator();
+				while (iterator.hasNext()) {
+					newSearcher.doc(iterator.nextDoc());
+				}
+			}
+			return true;
+		} catch (final Exception exception) {
+			LOGGER.debug("Unable to warm the new searcher with " + key, exception);
+			return false;
+		} finally {
+			request.close();
+			SolrRequestInfo.clearRequestInfo();
+		}
+	}
+}
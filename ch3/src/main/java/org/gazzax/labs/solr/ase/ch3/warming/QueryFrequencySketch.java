@@ -0,0 +1,212 @@
+package org.gazzax.labs.solr.ase.ch3.warming;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free sketch of the most frequent keys (e.g. queries) of a stream.
+ *
+ * Frequencies are estimated by a count-min sketch (4 rows of counters, so the estimate of a key is the minimum of its 4 counters)
+ * which uses a fixed amount of memory whatever the number of distinct keys. Counters are halved every "width * 10" additions,
+ * so old keys fade away and the sketch follows the recent traffic.
+ *
+ * The candidate top keys are kept in a fixed table: each key can be stored in two slots (chosen by its hash) and it replaces
+ * the less frequent of the two occupants only if its estimate is greater. All updates are compare-and-set operations, so
+ * concurrent additions never block each other; the price is that the top keys are an approximation, which is enough for warming.
+ *
+ * Instances are thread-safe.
+ */
+class QueryFrequencySketch {
+	private static final int DEPTH = 4;
+	private static final int [] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+
+	private final int width;
+	private final int mask;
+	private final AtomicIntegerArray counters;
+	private final AtomicReferenceArray<String> candidates;
+	private final AtomicLong additions = new AtomicLong();
+	private final long agingPeriod;
+
+	/**
+	 * Builds a new sketch.
+	 *
+	 * @param width the number of counters of each row (rounded up to a power of two).
+	 * @param capacity the number of candidate top keys.
+	 */
+	QueryFrequencySketch(final int width, final int capacity) {
+		this.width = Integer.highestOneBit(Math.max(16, width) - 1) << 1;
+		this.mask = this.width - 1;
+		this.counters = new AtomicIntegerArray(DEPTH * this.width);
+		this.candidates = new AtomicReferenceArray<String>(Math.max(1, capacity));
+		this.agingPeriod = this.width * 10L;
+	}
+
+	/**
+	 * Records an occurrence of the given key.
+	 *
+	 * @param key the key.
+	 */
+	void add(final String key) {
+		final int hash = spread(key.hashCode());
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			estimate = Math.min(estimate, increment(index(hash, row)));
+		}
+
+		if (additions.incrementAndGet() % agingPeriod == 0) {
+			age();
+		}
+
+		offer(key, hash, estimate);
+	}
+
+	/**
+	 * Returns the estimated (recent) frequency of the given key.
+	 *
+	 * @param key the key.
+	 * @return the estimated frequency of the given key.
+	 */
+	int estimate(final String key) {
+		final int hash = spread(key.hashCode());
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			estimate = Math.min(estimate, counters.get(index(hash, row)));
+		}
+		return estimate;
+	}
+
+	/**
+	 * Returns the (at most) k most frequent keys, in descending frequency order.
+	 *
+	 * @param k the number of keys.
+	 * @return the most frequent keys.
+	 */
+	List<String> top(final int k) {
+		final Map<String, Integer> estimates = new HashMap<String, Integer>();
+		for (int i = 0; i < candidates.length(); i++) {
+			final String candidate = candidates.get(i);
+			if (candidate != null && !estimates.containsKey(candidate)) {
+				final int estimate = estimate(candidate);
+				if (estimate > 0) {
+					estimates.put(candidate, estimate);
+				}
+			}
+		}
+
+		final List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(estimates.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+			@Override
+			public int compare(final Map.Entry<String, Integer> entry1, final Map.Entry<String, Integer> entry2) {
+				return entry2.getValue().compareTo(entry1.getValue());
+			}
+		});
+
+		final List<String> top = new ArrayList<String>(Math.min(k, entries.size()));
+		for (int i = 0; i < entries.size() && i < k; i++) {
+			top.add(entries.get(i).getKey());
+		}
+		return top;
+	}
+
+	/**
+	 * Offers a key to the candidate table.
+	 *
+	 * @param key the key.
+	 * @param hash the (spread) key hash.
+	 * @param estimate the key estimated frequency.
+	 */
+	private void offer(final String key, final int hash, final int estimate) {
+		final int first = (hash & Integer.MAX_VALUE) % candidates.length();
+		final int second = (Integer.rotateLeft(hash, 16) & Integer.MAX_VALUE) % candidates.length();
+
+		// 1. Already a candidate: nothing to do
+		final String firstOccupant = candidates.get(first);
+		final String secondOccupant = candidates.get(second);
+		if (key.equals(firstOccupant) || key.equals(secondOccupant)) {
+			return;
+		}
+
+		// 2. Free slot
+		if ((firstOccupant == null && candidates.compareAndSet(first, null, key))
+				|| (secondOccupant == null && candidates.compareAndSet(second, null, key))) {
+			return;
+		}
+
+		// 3. Replace the less frequent occupant, if the new key is more frequent
+		if (firstOccupant != null && secondOccupant != null) {
+			final int firstEstimate = estimate(firstOccupant);
+			final int secondEstimate = estimate(secondOccupant);
+			if (firstEstimate <= secondEstimate) {
+				if (estimate > firstEstimate) {
+					candidates.compareAndSet(first, firstOccupant, key);
+				}
+			} else if (estimate > secondEstimate) {
+				candidates.compareAndSet(second, secondOccupant, key);
+			}
+		}
+	}
+
+	/**
+	 * Increments a counter, without overflowing.
+	 *
+	 * @param index the counter index.
+	 * @return the new counter value.
+	 */
+	private int increment(final int index) {
+		int current;
+		do {
+			current = counters.get(index);
+			if (current == Integer.MAX_VALUE) {
+				return current;
+			}
+		} while (!counters.compareAndSet(index, current, current + 1));
+		return current + 1;
+	}
+
+	/**
+	 * Halves all counters.
+	 */
+	private void age() {
+		for (int i = 0; i < counters.length(); i++) {
+			int current;
+			do {
+				current = counters.get(i);
+			} while (current != 0 && !counters.compareAndSet(i, current, current >>> 1));
+		}
+	}
+
+	/**
+	 * Returns the index of the counter of the given row for the given hash.
+	 *
+	 * @param hash the (spread) key hash.
+	 * @param row the row.
+	 * @return the counter index.
+	 */
+	private int index(final int hash, final int row) {
+		final int rowHash = spread(hash * SEEDS[row]);
+		return row * width + (rowHash & mask);
+	}
+
+	/**
+	 * Mixes the bits of the given hash (MurmurHash3 finalizer).
+	 *
+	 * @param hash the hash.
+	 * @return the mixed hash.
+	 */
+	private static int spread(final int hash) {
+		int h = hash;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,195 @@
+package org.gazzax.labs.solr.ase.ch3.warming;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.EventParams;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+
+/**
+ * A {@link SearchComponent} that samples the incoming requests, in order to know which queries, filters and facets
+ * are worth warming when a new searcher is opened (see {@link AutowarmingListener}).
+ *
+ * Each sampled request is recorded, in a {@link QueryFrequencySketch}, as:
+ *
+ * <ul>
+ *	<li>a query: main query, query parser parameters, sort, paging and filters (this warms the query result cache);</li>
+ *	<li>a filter, for each filter query (this warms the filter cache);</li>
+ *	<li>a facet, for each facet field, if faceting is enabled (this warms the field caches used by faceting).</li>
+ * </ul>
+ *
+ * <pre>
+	&lt;searchComponent name="query-sampler" class="org.gazzax.labs.solr.ase.ch3.warming.QuerySamplingComponent"&gt;
+		&lt;int name="sketch-width"&gt;4096&lt;/int&gt;
+		&lt;int name="candidates"&gt;256&lt;/int&gt;
+		&lt;double name="sample-rate"&gt;1.0&lt;/double&gt;
+	&lt;/searchComponent&gt;
+ * </pre>
+ *
+ * The component must be declared in the (first or last) components of the request handlers whose traffic will be sampled.
+ * Requests with the "event" parameter (i.e. warming requests) are never sampled.
+ */
+public class QuerySamplingComponent extends SearchComponent {
+	static final String SKETCH_WIDTH_PARAM_NAME = "sketch-width";
+	static final int DEFAULT_SKETCH_WIDTH = 4096;
+	static final String CANDIDATES_PARAM_NAME = "candidates";
+	static final int DEFAULT_CANDIDATES = 256;
+	static final String SAMPLE_RATE_PARAM_NAME = "sample-rate";
+
+	static final String [] QUERY_PARAMS = {CommonParams.Q, "defType", "df", "qf", "pf", "mm", "q.op", CommonParams.SORT, CommonParams.START, CommonParams.ROWS};
+	static final String MATCH_ALL = "*:*";
+
+	private QueryFrequencySketch sketch = new QueryFrequencySketch(DEFAULT_SKETCH_WIDTH, DEFAULT_CANDIDATES);
+	private double sampleRate = 1;
+	private final AtomicLong sampled = new AtomicLong();
+
+	@Override
+	public void init(@SuppressWarnings("rawtypes") final NamedList args) {
+		final SolrParams parameters = SolrParams.toSolrParams(args);
+		sketch = new QueryFrequencySketch(
+				parameters.getInt(SKETCH_WIDTH_PARAM_NAME, DEFAULT_SKETCH_WIDTH),
+				parameters.getInt(CANDIDATES_PARAM_NAME, DEFAULT_CANDIDATES));
+		sampleRate = parameters.getDouble(SAMPLE_RATE_PARAM_NAME, 1);
+	}
+
+	@Override
+	public void prepare(final ResponseBuilder responseBuilder) throws IOException {
+		final SolrParams params = responseBuilder.req.getParams();
+		if (params.get(EventParams.EVENT) != null || (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+			return;
+		}
+
+		sampled.incrementAndGet();
+
+		// 1. The whole query
+		final StringBuilder query = new StringBuilder();
+		for (final String name : QUERY_PARAMS) {
+			append(query, name, params.getParams(name));
+		}
+		append(query, CommonParams.FQ, params.getParams(CommonParams.FQ));
+		if (query.length() != 0) {
+			sketch.add(query.toString());
+		}
+
+		// 2. Filters, on their own
+		final String [] filters = params.getParams(CommonParams.FQ);
+		if (filters != null) {
+			for (final String filter : filters) {
+				final StringBuilder key = new StringBuilder();
+				append(key, CommonParams.Q, MATCH_ALL);
+				append(key, CommonParams.ROWS, "0");
+				append(key, CommonParams.FQ, filter);
+				sketch.add(key.toString());
+			}
+		}
+
+		// 3. Facet fields, on their own
+		final String [] facetFields = params.getParams(FacetParams.FACET_FIELD);
+		if (facetFields != null && params.getBool(FacetParams.FACET, false)) {
+			for (final String facetField : facetFields) {
+				final StringBuilder key = new StringBuilder();
+				append(key, CommonParams.Q, MATCH_ALL);
+				append(key, CommonParams.ROWS, "0");
+				append(key, FacetParams.FACET, "true");
+				append(key, FacetParams.FACET_FIELD, facetField);
+				sketch.add(key.toString());
+			}
+		}
+	}
+
+	@Override
+	public void process(final ResponseBuilder responseBuilder) throws IOException {
+		// Nothing to be done here: requests are sampled in the prepare phase
+	}
+
+	/**
+	 * Returns the sketch of the sampled requests.
+	 *
+	 * @return the sketch of the sampled requests.
+	 */
+	QueryFrequencySketch sketch() {
+		return sketch;
+	}
+
+	/**
+	 * Returns the request parameters encoded in the given (sampled) key.
+	 *
+	 * @param key the key.
+	 * @return the request parameters.
+	 */
+	static ModifiableSolrParams params(final String key) {
+		final ModifiableSolrParams params = new ModifiableSolrParams();
+		try {
+			for (final String pair : key.split("&")) {
+				final int separator = pair.indexOf('=');
+				if (separator > 0) {
+					params.add(URLDecoder.decode(pair.substring(0, separator), "UTF-8"), URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+				}
+			}
+		} catch (final UnsupportedEncodingException impossible) {
+			// Every Java platform is required to support UTF-8
+			throw new IllegalStateException(impossible);
+		}
+		return params;
+	}
+
+	/**
+	 * Appends the given parameter values to a key.
+	 *
+	 * @param key the key.
+	 * @param name the parameter name.
+	 * @param values the parameter values (may be null).
+	 */
+	private static void append(final StringBuilder key, final String name, final String ... values) {
+		if (values == null) {
+			return;
+		}
+
+		try {
+			for (final String value : values) {
+				if (key.length() != 0) {
+					key.append('&');
+				}
+				key.append(name).append('=').append(URLEncoder.encode(value, "UTF-8"));
+			}
+		} catch (final UnsupportedEncodingException impossible) {
+			// Every Java platform is required to support UTF-8
+			throw new IllegalStateException(impossible);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public NamedList getStatistics() {
+		final NamedList<Object> statistics = new SimpleOrderedMap<Object>();
+		statistics.add("sampledRequests", sampled.get());
+
+		final NamedList<Object> top = new SimpleOrderedMap<Object>();
+		for (final String key : sketch.top(10)) {
+			top.add(key, sketch.estimate(key));
+		}
+		statistics.add("top", top);
+		return statistics;
+	}
+
+	@Override
+	public String getDescription() {
+		return "Samples the incoming requests for warming new searchers";
+	}
+
+	@Override
+	public String getSource() {
+		return null;
+	}
+}
@@ -0,0 +1,5 @@
+/**
+ * This package contains a {@link org.apache.solr.handler.component.SearchComponent} that samples the incoming requests and
+ * a {@link org.apache.solr.core.SolrEventListener} that uses those samples for warming new searchers.
+ */
+package org.gazzax.labs.solr.ase.ch3.warming;
\ No newline at end of file
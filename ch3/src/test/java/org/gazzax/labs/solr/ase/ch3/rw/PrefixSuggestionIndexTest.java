@@ -0,0 +1,204 @@
+package org.gazzax.labs.solr.ase.ch3.rw;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test case for {@link PrefixSuggestionIndex}.
+ */
+public class PrefixSuggestionIndexTest {
+
+	private PrefixSuggestionIndex index;
+
+	/**
+	 * Builds the index under test.
+	 */
+	@Before
+	public void setUp() {
+		index = index(2,
+				"Espresso", 50,
+				"Espresso and Cappuccino", 40,
+				"Esperanto", 30,
+				"Cappuccino", 20,
+				"Latte Macchiato", 10);
+	}
+
+	/**
+	 * Labels are found by any of their words, and only if a word starts with the prefix.
+	 */
+	@Test
+	public void rangeLookup() {
+		assertEquals(Arrays.asList("Espresso", "Espresso and Cappuccino", "Esperanto"), index.lookup("esp", 10));
+		assertEquals(Arrays.asList("Espresso", "Espresso and Cappuccino"), index.lookup("espr", 10));
+		assertEquals(Arrays.asList("Espresso and Cappuccino", "Cappuccino"), index.lookup("cap", 10));
+		assertEquals(Arrays.asList("Latte Macchiato"), index.lookup("mac", 10));
+		assertEquals(Collections.emptyList(), index.lookup("accino", 10));
+	}
+
+	/**
+	 * A prefix with several words matches the label suffix starting at any word.
+	 */
+	@Test
+	public void multiWordPrefix() {
+		assertEquals(Arrays.asList("Espresso and Cappuccino"), index.lookup("espresso an", 10));
+		assertEquals(Arrays.asList("Espresso and Cappuccino"), index.lookup("and capp", 10));
+		assertEquals(Collections.emptyList(), index.lookup("espresso cap", 10));
+	}
+
+	/**
+	 * At most k labels are returned, the best ones.
+	 */
+	@Test
+	public void bestK() {
+		assertEquals(Arrays.asList("Espresso"), index.lookup("es", 1));
+		assertEquals(Arrays.asList("Espresso", "Espresso and Cappuccino"), index.lookup("es", 2));
+	}
+
+	/**
+	 * Prefixes are normalized like labels: diacritics are folded, letters are lowercased and whitespaces collapsed.
+	 */
+	@Test
+	public void normalization() {
+		final PrefixSuggestionIndex index = index(1, "Café  Crème", 1);
+
+		assertEquals(Arrays.asList("Café  Crème"), index.lookup("CAFE", 10));
+		assertEquals(Arrays.asList("Café  Crème"), index.lookup("café   cr", 10));
+		assertEquals(Arrays.asList("Café  Crème"), index.lookup("creme", 10));
+	}
+
+	/**
+	 * A label matching the prefix with several words is returned once.
+	 */
+	@Test
+	public void multiWordDuplicatesAreSuppressed() {
+		final PrefixSuggestionIndex index = index(1,
+				"New York New Jersey", 30,
+				"New Orleans", 20,
+				"Newcastle", 10);
+
+		assertEquals(Arrays.asList("New York New Jersey", "New Orleans", "Newcastle"), index.lookup("new", 10));
+		assertEquals(Arrays.asList("New York New Jersey", "New Orleans"), index.lookup("new", 2));
+		assertEquals(Arrays.asList("New York New Jersey"), index.lookup("new j", 10));
+	}
+
+	/**
+	 * Labels are sorted by descending weight and, with the same weight, alphabetically.
+	 */
+	@Test
+	public void weightThenAlphabeticalTieBreak() {
+		final PrefixSuggestionIndex index = index(1,
+				"Bassist", 10,
+				"Bass Guitar", 20,
+				"Bassoon", 10,
+				"Basso Continuo", 10);
+
+		assertEquals(Arrays.asList("Bass Guitar", "Bassist", "Basso Continuo", "Bassoon"), index.lookup("bass", 10));
+		assertEquals(Arrays.asList("Bass Guitar", "Bassist"), index.lookup("bass", 2));
+	}
+
+	/**
+	 * An empty index, a prefix shorter than the minimum length and a non positive k give no suggestions.
+	 */
+	@Test
+	public void noSuggestions() {
+		assertEquals(Collections.emptyList(), PrefixSuggestionIndex.EMPTY.lookup("es", 10));
+		assertEquals(0, PrefixSuggestionIndex.EMPTY.size());
+
+		assertEquals(Collections.emptyList(), index.lookup("e", 10));
+		assertEquals(Collections.emptyList(), index.lookup(" e ", 10));
+		assertEquals(Collections.emptyList(), index.lookup("", 10));
+		assertEquals(Collections.emptyList(), index.lookup(null, 10));
+		assertEquals(Collections.emptyList(), index.lookup("es", 0));
+		assertEquals(Collections.emptyList(), index.lookup("xyz", 10));
+	}
+
+	/**
+	 * The index returns the same labels of an exhaustive scan, on random data.
+	 */
+	@Test
+	public void sameResultsOfExhaustiveScan() {
+		final Random random = new Random(31);
+		final String [] words = {"a", "ab", "abc", "b", "ba", "bab", "c", "ca"};
+		final List<String> labels = new ArrayList<String>();
+		final long [] weights = new long[300];
+		for (int i = 0; i < weights.length; i++) {
+			final StringBuilder label = new StringBuilder();
+			for (int w = random.nextInt(4); w >= 0; w--) {
+				label.append(words[random.nextInt(words.length)]).append(' ');
+			}
+			labels.add(label.toString().trim() + " " + i);
+			weights[i] = random.nextInt(10);
+		}
+
+		final PrefixSuggestionIndex index = new PrefixSuggestionIndex(labels, weights, 1);
+		assertEquals(labels.size(), index.size());
+		for (final String prefix : new String [] {"a", "ab", "b", "ba b", "c", "ab a", "1", "abc ca"}) {
+			for (final int k : new int [] {1, 5, 50, 1000}) {
+				assertEquals(prefix + " / " + k, exhaustiveScan(labels, weights, prefix, k), index.lookup(prefix, k));
+			}
+		}
+	}
+
+	/**
+	 * Returns the best labels matching the given prefix, scanning all labels.
+	 *
+	 * @param labels the labels.
+	 * @param weights the label weights.
+	 * @param prefix the prefix.
+	 * @param k the maximum number of labels.
+	 * @return the best labels matching the given prefix.
+	 */
+	private static List<String> exhaustiveScan(final List<String> labels, final long [] weights, final String prefix, final int k) {
+		final List<Integer> matches = new ArrayList<Integer>();
+		for (int i = 0; i < labels.size(); i++) {
+			final String label = labels.get(i);
+			if (label.startsWith(prefix) || label.contains(" " + prefix)) {
+				matches.add(i);
+			}
+		}
+
+		Collections.sort(matches, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer label1, final Integer label2) {
+				if (weights[label1] != weights[label2]) {
+					return weights[label1] > weights[label2] ? -1 : 1;
+				}
+				return labels.get(label1).compareTo(labels.get(label2));
+			}
+		});
+
+		final List<String> result = new ArrayList<String>();
+		for (final Integer match : matches.subList(0, Math.min(k, matches.size()))) {
+			result.add(labels.get(match));
+		}
+		assertTrue(result.size() <= k);
+		return result;
+	}
+
+	/**
+	 * Builds an index with the given labels and weights.
+	 *
+	 * @param minPrefixLength the minimum prefix length.
+	 * @param labelsAndWeights the labels, each one followed by its weight.
+	 * @return a new index.
+	 */
+	private static PrefixSuggestionIndex index(final int minPrefixLength, final Object ... labelsAndWeights) {
+		final List<String> labels = new ArrayList<String>();
+		final long [] weights = new long[labelsAndWeights.length / 2];
+		for (int i = 0; i < labelsAndWeights.length; i += 2) {
+			labels.add((String) labelsAndWeights[i]);
+			weights[i / 2] = ((Integer) labelsAndWeights[i + 1]).longValue();
+		}
+		return new PrefixSuggestionIndex(labels, weights, minPrefixLength);
+	}
+}
@@ -0,0 +1,103 @@
+package org.gazzax.labs.solr.ase.ch3.warming;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test case for {@link QueryFrequencySketch}.
+ */
+public class QueryFrequencySketchTest {
+
+	/**
+	 * Before any aging, estimates are never below the actual frequencies.
+	 */
+	@Test
+	public void estimatesNeverUnderestimate() {
+		final QueryFrequencySketch sketch = new QueryFrequencySketch(1024, 64);
+		assertEquals(0, sketch.estimate("q=*:*"));
+
+		final Random random = new Random(31);
+		final int [] frequencies = new int[200];
+		for (int i = 0; i < frequencies.length; i++) {
+			frequencies[i] = 1 + random.nextInt(20);
+			for (int j = 0; j < frequencies[i]; j++) {
+				sketch.add("q=" + i);
+			}
+		}
+
+		for (int i = 0; i < frequencies.length; i++) {
+			assertTrue("q=" + i, sketch.estimate("q=" + i) >= frequencies[i]);
+		}
+	}
+
+	/**
+	 * Counters are halved every "width * 10" additions.
+	 */
+	@Test
+	public void aging() {
+		// Width is 16, so counters are halved at the 160th addition
+		final QueryFrequencySketch sketch = new QueryFrequencySketch(16, 8);
+		for (int i = 0; i < 100; i++) {
+			sketch.add("old");
+		}
+		for (int i = 0; i < 59; i++) {
+			sketch.add("new");
+		}
+		assertEquals(100, sketch.estimate("old"));
+		assertEquals(59, sketch.estimate("new"));
+
+		sketch.add("new");
+		assertEquals(50, sketch.estimate("old"));
+		assertEquals(30, sketch.estimate("new"));
+	}
+
+	/**
+	 * Old keys fade away: a key that is no longer requested is overtaken by a recent one with fewer (total) occurrences.
+	 */
+	@Test
+	public void recentKeysOvertakeOldKeys() {
+		final QueryFrequencySketch sketch = new QueryFrequencySketch(16, 8);
+		for (int i = 0; i < 155; i++) {
+			sketch.add("old");
+		}
+		for (int i = 0; i < 150; i++) {
+			sketch.add("new");
+		}
+
+		assertEquals(Arrays.asList("new", "old"), sketch.top(2));
+		assertTrue(sketch.estimate("old") < 155);
+	}
+
+	/**
+	 * The most frequent keys are returned in descending frequency order, at most k of them.
+	 */
+	@Test
+	public void top() {
+		final QueryFrequencySketch sketch = new QueryFrequencySketch(1024, 64);
+		assertEquals(Collections.emptyList(), sketch.top(3));
+
+		for (int i = 0; i < 100; i++) {
+			sketch.add("q=rare " + i);
+			if (i < 50) {
+				sketch.add("q=first");
+			}
+			if (i < 40) {
+				sketch.add("q=second");
+			}
+			if (i < 30) {
+				sketch.add("q=third");
+			}
+		}
+
+		assertEquals(Arrays.asList("q=first", "q=second", "q=third"), sketch.top(3));
+		assertEquals(Arrays.asList("q=first"), sketch.top(1));
+		assertEquals(Collections.emptyList(), sketch.top(0));
+		assertTrue(sketch.top(1000).size() <= 64);
+	}
+}
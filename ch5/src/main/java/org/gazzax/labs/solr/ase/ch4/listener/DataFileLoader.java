@@ -0,0 +1,354 @@
+package org.gazzax.labs.solr.ase.ch4.listener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.loader.XMLLoader;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads a set of (Solr XML) data files in a core.
+ *
+ * Files are loaded in parallel, by a bounded pool of threads, each one with its own local update request that goes
+ * through the update processing chain of the core. Larger files are scheduled first, so that a big file doesn't end up
+ * being loaded alone at the end. Documents are counted while they are added, and the loading progress
+ * (files, documents and documents per second) is periodically logged.
+ *
+ * With a commit interval, a (possibly soft) commit is issued every "interval" documents, so that data becomes searchable
+ * while it is loaded. A hard commit is issued at the end of the loading if there's a commit interval or if it is explicitly requested. The loader status can be polled (e.g. by a health check) while the loading is running.
+ */
+class DataFileLoader {
+	private final static Logger LOGGER = LoggerFactory.getLogger(DataFileLoader.class);
+
+	static final String DATA_FILE_SUFFIX = ".xml";
+	static final int PROGRESS_INTERVAL = 50000;
+
+	/**
+	 * The loader status.
+	 */
+	enum Status {
+		LOADING, COMPLETED, FAILED
+	}
+
+	/**
+	 * An {@link UpdateRequestProcessor} that counts the added documents.
+	 */
+	private class CountingProcessor extends UpdateRequestProcessor {
+		/**
+		 * Builds a new {@link CountingProcessor}.
+		 *
+		 * @param next the first processor of the update chain.
+		 */
+		CountingProcessor(final UpdateRequestProcessor next) {
+			super(next);
+		}
+
+		@Override
+		public void processAdd(final AddUpdateCommand command) throws IOException {
+			super.processAdd(command);
+			final long count = documents.incrementAndGet();
+			if (count % PROGRESS_INTERVAL == 0) {
+				logProgress("Loading in progress");
+			}
+
+			if (commitInterval > 0 && count % commitInterval == 0) {
+				commit(command.getReq(), softCommit);
+			}
+		}
+	}
+
+	private final SolrCore core;
+	private final List<File> files;
+	private final SolrParams parameters;
+	private final String updateChain;
+	private final int threads;
+	private final int commitInterval;
+	private final boolean softCommit;
+	private final boolean finalCommit;
+
+	private final XMLLoader loader = new XMLLoader().init(null);
+	private final AtomicLong documents = new AtomicLong();
+	private final AtomicInteger loadedFiles = new AtomicInteger();
+	private final AtomicInteger failedFiles = new AtomicInteger();
+	private volatile long startTime;
+	private volatile long endTime;
+	private volatile Status status = Status.LOADING;
+	private volatile ExecutorService executor;
+	private volatile boolean cancelled;
+
+	/**
+	 * Builds a new loader.
+	 *
+	 * @param core the target core.
+	 * @param files the data files.
+	 * @param parameters the parameters of the update requests.
+	 * @param updateChain the name of the update chain, null for the default chain.
+	 * @param threads the maximum number of files loaded in parallel.
+	 * @param commitInterval the number of documents between two commits, 0 for not committing.
+	 * @param softCommit true if intermediate commits must be soft commits.
+	 * @param finalCommit true if a hard commit must be issued at the end of the loading (even without a commit interval).
+	 */
+	DataFileLoader(
+			final SolrCore core,
+			final List<File> files,
+			final SolrParams parameters,
+			final String updateChain,
+			final int threads,
+			final int commitInterval,
+			final boolean softCommit,
+			final boolean finalCommit) {
+		this.core = core;
+		this.files = new ArrayList<File>(files);
+		this.parameters = parameters;
+		this.updateChain = updateChain;
+		this.threads = Math.max(1, Math.min(threads, files.size()));
+		this.commitInterval = commitInterval;
+		this.softCommit = softCommit;
+		this.finalCommit = finalCommit || commitInterval > 0;
+
+		Collections.sort(this.files, new Comparator<File>() {
+			@Override
+			public int compare(final File file1, final File file2) {
+				final long length1 = file1.length();
+				final long length2 = file2.length();
+				return length1 > length2 ? -1 : (length1 == length2 ? 0 : 1);
+			}
+		});
+	}
+
+	/**
+	 * Returns the data files declared with the given parameters.
+	 *
+	 * @param datafiles a comma-separated list of data files (may be null).
+	 * @param datadir a directory whose .xml files are data files (may be null).
+	 * @return the data files.
+	 */
+	static List<File> files(final String datafiles, final String datadir) {
+		final List<File> files = new ArrayList<File>();
+		if (datafiles != null) {
+			for (final String datafile : datafiles.split(",")) {
+				if (datafile.trim().length() != 0) {
+					files.add(new File(datafile.trim()));
+				}
+			}
+		}
+
+		if (datadir != null) {
+			final File [] members = new File(datadir).listFiles();
+			if (members == null) {
+				LOGGER.error("Data directory " + datadir + " doesn't exist or cannot be read.");
+			} else {
+				for (final File member : members) {
+					if (member.isFile() && member.getName().endsWith(DATA_FILE_SUFFIX)) {
+						files.add(member);
+					}
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Loads the data files, waiting for their completion.
+	 */
+	void load() {
+		startTime = System.currentTimeMillis();
+		if (cancelled) {
+			status = Status.FAILED;
+			return;
+		}
+
+		LOGGER.info("Loading " + files.size() + " data file(s) in core " + core.getName() + " with " + threads + " thread(s)");
+
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable task) {
+				final Thread thread = new Thread(task, "startup-loader-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		for (final File file : files) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					load(file);
+				}
+			});
+		}
+
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				logProgress("Loading in progress");
+			}
+		} catch (final InterruptedException exception) {
+			cancel();
+			Thread.currentThread().interrupt();
+		}
+
+		boolean committed = true;
+		if (cancelled) {
+			failedFiles.set(files.size() - loadedFiles.get());
+		} else if (finalCommit) {
+			committed = commit();
+		}
+
+		endTime = System.currentTimeMillis();
+		status = failedFiles.get() == 0 && committed ? Status.COMPLETED : Status.FAILED;
+		logProgress(failedFiles.get() != 0
+				? "Loading completed with " + failedFiles.get() + " failed file(s)"
+				: (committed ? "Loading completed" : "Loading completed, but the final commit failed"));
+	}
+
+	/**
+	 * Stops the loading: files that are being loaded are interrupted, if possible, and the remaining files are skipped.
+	 */
+	void cancel() {
+		cancelled = true;
+		final ExecutorService current = executor;
+		if (current != null) {
+			current.shutdownNow();
+		}
+	}
+
+	/**
+	 * Hard commits the loaded documents, opening a new searcher (without waiting for it).
+	 * Within the first searcher event, this must be called only once the first searcher has been registered.
+	 *
+	 * @return true if the commit succeeded.
+	 */
+	boolean commit() {
+		final LocalSolrQueryRequest request = new LocalSolrQueryRequest(core, parameters);
+		try {
+			return commit(request, false);
+		} finally {
+			request.close();
+		}
+	}
+
+	/**
+	 * Returns the status of this loader.
+	 *
+	 * @return the status of this loader.
+	 */
+	Status status() {
+		return status;
+	}
+
+	/**
+	 * Returns the statistics of this loader.
+	 *
+	 * @return the statistics of this loader.
+	 */
+	NamedList<Object> getStatistics() {
+		final long elapsed = Math.max(1, (endTime != 0 ? endTime : System.currentTimeMillis()) - startTime);
+		final NamedList<Object> statistics = new SimpleOrderedMap<Object>();
+		statistics.add("files", files.size());
+		statistics.add("loadedFiles", loadedFiles.get());
+		statistics.add("failedFiles", failedFiles.get());
+		statistics.add("documents", documents.get());
+		statistics.add("elapsedMs", startTime != 0 ? elapsed : 0);
+		statistics.add("docsPerSecond", startTime != 0 ? documents.get() * 1000d / elapsed : 0d);
+		return statistics;
+	}
+
+	/**
+	 * Loads a single data file.
+	 *
+	 * @param file the data file.
+	 */
+	private void load(final File file) {
+		if (cancelled) {
+			return;
+		}
+
+		final LocalSolrQueryRequest request = new LocalSolrQueryRequest(core, parameters);
+		final SolrQueryResponse response = new SolrQueryResponse();
+		try {
+			SolrRequestInfo.setRequestInfo(new SolrRequestInfo(request, response));
+
+			final UpdateRequestProcessor processor = new CountingProcessor(
+					core.getUpdateProcessingChain(updateChain).createProcessor(request, response));
+			try {
+				loader.load(request, response, new ContentStreamBase.FileStream(file), processor);
+			} finally {
+				processor.finish();
+			}
+
+			loadedFiles.incrementAndGet();
+			logProgress("Loaded " + file);
+		} catch (final Exception exception) {
+			failedFiles.incrementAndGet();
+			LOGGER.error("Unable to load data file " + file, exception);
+		} finally {
+			request.close();
+			SolrRequestInfo.clearRequestInfo();
+		}
+	}
+
+	/**
+	 * Commits the loaded documents, opening a new searcher (without waiting for it) so that they become searchable.
+	 *
+	 * @param request the current request.
+	 * @param soft true for a soft commit, false for a hard commit.
+	 * @return true if the commit succeeded.
+	 */
+	private boolean commit(final SolrQueryRequest request, final boolean soft) {
+		final CommitUpdateCommand command = new CommitUpdateCommand(request, false);
+		command.softCommit = soft;
+		command.waitSearcher = false;
+		try {
+			core.getUpdateHandler().commit(command);
+			return true;
+		} catch (final IOException exception) {
+			LOGGER.error("Unable to commit the loaded documents.", exception);
+			return false;
+		}
+	}
+
+	/**
+	 * Logs the loading progress.
+	 *
+	 * @param message the message that precedes the progress data.
+	 */
+	private void logProgress(final String message) {
+		final long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+		LOGGER.info(String.format(
+				Locale.ROOT,
+				"%s: %d/%d files, %d documents in %d ms (%.1f docs/sec)",
+				message,
+				loadedFiles.get(),
+				files.size(),
+				documents.get(),
+				elapsed,
+				documents.get() * 1000d / elapsed));
+	}
+}
@@ -0,0 +1,51 @@
+package org.gazzax.labs.solr.ase.ch4.listener;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+
+/**
+ * A request handler that reports the status of the {@link SolrStartupListener}, for health checks.
+ *
+ * The response contains the status and the loading statistics. While the startup data is being loaded (or if the loading failed)
+ * the request fails with a 503 (Service Unavailable) status code, so a load balancer doesn't route queries to the node.
+ * A core without a startup listener is always ready.
+ *
+ * <pre>
+	&lt;requestHandler name="/startup-status" class="org.gazzax.labs.solr.ase.ch4.listener.StartupStatusHandler"/&gt;
+ * </pre>
+ */
+public class StartupStatusHandler extends RequestHandlerBase {
+
+	@Override
+	public void handleRequestBody(final SolrQueryRequest request, final SolrQueryResponse response) throws Exception {
+		// 1. The listener is registered (as a SolrInfoMBean) by Solr itself
+		final SolrInfoMBean bean = request.getCore().getInfoRegistry().get(SolrStartupListener.class.getName());
+		if (!(bean instanceof SolrStartupListener)) {
+			response.add("status", SolrStartupListener.Status.READY.name());
+			return;
+		}
+
+		// 2. Add the loading statistics and fail if the core isn't ready
+		final SolrStartupListener listener = (SolrStartupListener) bean;
+		final SolrStartupListener.Status status = listener.status();
+		response.add("startup", listener.getStatistics());
+		if (status != SolrStartupListener.Status.READY) {
+			throw new SolrException(ErrorCode.SERVICE_UNAVAILABLE, "Core " + request.getCore().getName() + " is not ready: " + status);
+		}
+		response.add("status", status.name());
+	}
+
+	@Override
+	public String getDescription() {
+		return "Reports the status of the startup data loading";
+	}
+
+	@Override
+	public String getSource() {
+		return null;
+	}
+}